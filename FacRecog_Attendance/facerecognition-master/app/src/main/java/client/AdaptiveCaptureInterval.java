@@ -0,0 +1,98 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package client;
+
+/**
+ * Adjusts the camera capture interval to the observed service latency, using
+ * additive-increase/multiplicative-decrease on the snapshot rate. While the
+ * service keeps up, the rate grows by a fixed step after every request. When
+ * a request fails, snapshots are dropped before being sent, or a round trip
+ * takes longer than the interval, the rate is cut by a constant factor. The
+ * interval always stays within the configured bounds.
+ */
+public class AdaptiveCaptureInterval {
+
+    private static final double RATE_INCREASE_PER_REQUEST = 0.25; // snapshots per second
+    private static final double RATE_DECREASE_FACTOR = 0.5;
+
+    private double minIntervalInSec;
+    private double maxIntervalInSec;
+    private double intervalInSec;
+
+    public AdaptiveCaptureInterval(double initialIntervalInSec, double minIntervalInSec, double maxIntervalInSec) {
+        setBounds(minIntervalInSec, maxIntervalInSec);
+        this.intervalInSec = clamp(initialIntervalInSec);
+    }
+
+    /**
+     * Changes the bounds, moving the current interval inside them if needed.
+     */
+    public synchronized void setBounds(double minIntervalInSec, double maxIntervalInSec) {
+        if (minIntervalInSec <= 0 || minIntervalInSec > maxIntervalInSec) {
+            throw new IllegalArgumentException("Bad capture interval bounds: " + minIntervalInSec + "-" + maxIntervalInSec);
+        }
+        this.minIntervalInSec = minIntervalInSec;
+        this.maxIntervalInSec = maxIntervalInSec;
+        this.intervalInSec = clamp(intervalInSec);
+    }
+
+    public synchronized double getMinIntervalInSec() {
+        return minIntervalInSec;
+    }
+
+    public synchronized double getMaxIntervalInSec() {
+        return maxIntervalInSec;
+    }
+
+    public synchronized double getIntervalInSec() {
+        return intervalInSec;
+    }
+
+    /**
+     * Restarts the adjustment from the given interval.
+     */
+    public synchronized void reset(double intervalInSec) {
+        this.intervalInSec = clamp(intervalInSec);
+    }
+
+    /**
+     * Feeds the outcome of one request into the adjustment.
+     * @param roundTripMillis time from sending the snapshot until the response arrived.
+     * @param snapshotWaiting whether the next snapshot was already waiting to be sent.
+     * @param droppedSnapshots snapshots replaced before being sent since the previous request.
+     * @param failed whether the request failed.
+     * @return the new capture interval in seconds.
+     */
+    public synchronized double onRequestCompleted(long roundTripMillis, boolean snapshotWaiting, long droppedSnapshots, boolean failed) {
+        double rate = 1 / intervalInSec;
+
+        if (failed || droppedSnapshots > 0 || roundTripMillis > intervalInSec * 1000) {
+            rate *= RATE_DECREASE_FACTOR;
+        } else if (!snapshotWaiting) {
+            rate += RATE_INCREASE_PER_REQUEST;
+        }
+
+        intervalInSec = clamp(1 / rate);
+        return intervalInSec;
+    }
+
+    private double clamp(double interval) {
+        return Math.max(minIntervalInSec, Math.min(maxIntervalInSec, interval));
+    }
+}
@@ -27,7 +27,10 @@ import controll.MenuBarController;
 import controll.ServiceController;
 import dto.RecognitionDTO;
 import gui.ClientUI;
+import jfr.StageSpan;
 import opencv.CameraCapture;
+import opencv.FrameSlot;
+import opencv.Snapshot;
 import opencv.Util;
 
 import javax.imageio.ImageIO;
@@ -38,19 +41,24 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.util.Arrays;
+import java.util.Locale;
 import java.util.Observable;
 import java.util.Observer;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 
 public class Client implements Observer, ServiceController, CameraController, MenuBarController {
 
     private static String SERVICE_TYPE = ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_DETECT_IDENTIFY;
     private static String SERVICE_URL = "http://localhost:8080";
-    private static String SERVICE_REQUEST_URL = SERVICE_URL + SERVICE_TYPE;
+    private static ServicePool.Balancing BALANCING = ServicePool.Balancing.LEAST_OUTSTANDING;
+    private static int STREAM_WINDOW = 0;
     private static double CAMERA_CAPTURE_INTERVAL_IN_SEC = 0.2;
+    private static double CAMERA_CAPTURE_INTERVAL_MIN_IN_SEC = 0.05;
+    private static double CAMERA_CAPTURE_INTERVAL_MAX_IN_SEC = 2.0;
+    private static long TRACE_REPORT_INTERVAL_IN_SEC = 30;
     private static boolean usingGUI = true;
     private static File outputDir;
 
@@ -60,6 +68,12 @@ public class Client implements Observer, ServiceController, CameraController, Me
         if (Arrays.asList(args).contains("--nogui")) {
             usingGUI = false;
         }
+        for (int i = 0; i < args.length; i++) {
+            // stream camera snapshots over one connection, with up to the given number of frames in flight
+            if (args[i].equals("--stream")) {
+                STREAM_WINDOW = i + 1 < args.length && args[i + 1].matches("\\d+") ? Integer.parseInt(args[i + 1]) : 2;
+            }
+        }
 
         new Client();
 
@@ -79,16 +93,20 @@ public class Client implements Observer, ServiceController, CameraController, Me
                     if (i + 1 < args.length) {
                         if (args[i + 1].length() > 1) {
                             SERVICE_URL = args[i + 1];
-                            SERVICE_REQUEST_URL = SERVICE_URL + SERVICE_TYPE;
-                            serviceRequester.setServiceUrl(SERVICE_REQUEST_URL);
+                            serviceRequester.setServiceUrls(ServicePool.parseUrls(SERVICE_URL), BALANCING);
                         }
                         i++;
                     }
+                } else if (args[i].contains("--balancing")) {
+                    if (i + 1 < args.length) {
+                        BALANCING = ServicePool.Balancing.valueOf(args[i + 1].toUpperCase(Locale.ROOT).replace('-', '_'));
+                        serviceRequester.setServiceUrls(ServicePool.parseUrls(SERVICE_URL), BALANCING);
+                        i++;
+                    }
                 } else if (args[i].contains("--type")) {
                     if (i + 1 < args.length) {
                         SERVICE_TYPE = args[i + 1];
-                        SERVICE_REQUEST_URL = SERVICE_URL + SERVICE_TYPE;
-                        serviceRequester.setServiceUrl(SERVICE_REQUEST_URL);
+                        serviceRequester.setServiceType(SERVICE_TYPE);
                         i++;
                     }
                 } else if (args[i].contains("--outdir")) {
@@ -111,6 +129,11 @@ public class Client implements Observer, ServiceController, CameraController, Me
     private static ServiceRequester serviceRequester;
     private CameraCapture cameraCapture;
     private volatile boolean activeCameraCapture = false;
+    private final FrameSlot<Snapshot> snapshotSlot;
+    private final AdaptiveCaptureInterval adaptiveCaptureInterval;
+    private volatile boolean automaticCaptureInterval = false;
+    private long droppedSnapshots;
+    private final FrameTracer frameTracer = new FrameTracer();
 
     private final ExecutorService executorService;
 
@@ -120,17 +143,24 @@ public class Client implements Observer, ServiceController, CameraController, Me
 
     public Client() {
 
-        LinkedBlockingQueue<BufferedImage> capturedImageQueue = new LinkedBlockingQueue<BufferedImage>();
+        snapshotSlot = new FrameSlot<Snapshot>();
+        adaptiveCaptureInterval = new AdaptiveCaptureInterval(CAMERA_CAPTURE_INTERVAL_IN_SEC,
+                CAMERA_CAPTURE_INTERVAL_MIN_IN_SEC, CAMERA_CAPTURE_INTERVAL_MAX_IN_SEC);
         executorService = Executors.newSingleThreadExecutor();
 
-        serviceRequester = new ServiceRequester(capturedImageQueue, SERVICE_REQUEST_URL, this);
+        serviceRequester = new ServiceRequester(snapshotSlot, ServicePool.parseUrls(SERVICE_URL), BALANCING, SERVICE_TYPE, this);
+        if (STREAM_WINDOW > 0) {
+            serviceRequester.setStreaming(STREAM_WINDOW);
+        }
+        frameTracer.startReporting(TRACE_REPORT_INTERVAL_IN_SEC, TimeUnit.SECONDS);
 
         if (usingGUI) {
-            cameraCapture = new CameraCapture(captureWidth, captureHeight, capturedImageQueue);
+            cameraCapture = new CameraCapture(captureWidth, captureHeight, snapshotSlot);
             cameraCapture.addObserver(this);
             cameraCapture.setCaptureIntervalInSeconds(CAMERA_CAPTURE_INTERVAL_IN_SEC);
 
             clientUI = new ClientUI(captureWidth / 4, captureHeight / 4, this, this);
+            clientUI.updateCaptureRate(1 / CAMERA_CAPTURE_INTERVAL_IN_SEC, false);
         }
 
     }
@@ -149,13 +179,22 @@ public class Client implements Observer, ServiceController, CameraController, Me
 
     //---------------- ServiceController interface -----------------
     @Override
-    public void receivedRecognitionDto(final RecognitionDTO recognitionResponse) {
+    public void receivedRecognitionDto(final RecognitionDTO recognitionResponse, final FrameTrace trace) {
         if (usingGUI) {
             executorService.submit(new Runnable() {
                 @Override
                 public void run() {
+                    final StageSpan span = StageSpan.begin("client.render", trace.getFrameId(), trace.getCameraId(),
+                            recognitionResponse.getCols(), recognitionResponse.getRows());
                     BufferedImage bufferedImage = Util.identificationDtoToBufferedImage(recognitionResponse);
-                    clientUI.updateServedImage(bufferedImage, recognitionResponse.getPredictedPerson());
+                    clientUI.updateServedImage(bufferedImage, recognitionResponse.getPredictedPerson(), new Runnable() {
+                        @Override
+                        public void run() {
+                            span.end();
+                            trace.rendered();
+                            frameTracer.frameCompleted(trace);
+                        }
+                    });
                 }
             });
         } else {
@@ -172,6 +211,8 @@ public class Client implements Observer, ServiceController, CameraController, Me
 
                 System.err.println("Writing received image to: " + resultImagePath);
                 ImageIO.write(bufferedImage, "jpg", new File(resultImagePath));
+                trace.rendered();
+                frameTracer.frameCompleted(trace);
             } catch (FileNotFoundException e) {
                 e.printStackTrace();
             } catch (IOException e) {
@@ -181,6 +222,23 @@ public class Client implements Observer, ServiceController, CameraController, Me
     }
 
 
+    @Override
+    public void requestCompleted(long roundTripMillis, boolean succeeded) {
+        if (!succeeded) {
+            frameTracer.requestFailed();
+        }
+        if (!usingGUI || !automaticCaptureInterval) {
+            return;
+        }
+        long dropped = snapshotSlot.getDroppedCount();
+        double interval = adaptiveCaptureInterval.onRequestCompleted(roundTripMillis, !snapshotSlot.isEmpty(),
+                dropped - droppedSnapshots, !succeeded);
+        droppedSnapshots = dropped;
+        cameraCapture.setCaptureIntervalInSeconds(interval);
+        clientUI.updateCaptureRate(1 / interval, true);
+    }
+
+
     //---------------- CameraController interface ------------------
 
     @Override
@@ -206,6 +264,10 @@ public class Client implements Observer, ServiceController, CameraController, Me
             clientUI.toggleCameraOff();
             cameraCapture.stopCapture();
             serviceRequester.shutdown();
+            String report = frameTracer.report();
+            if (report != null) {
+                Log.info(report);
+            }
         }
     }
 
@@ -220,7 +282,10 @@ public class Client implements Observer, ServiceController, CameraController, Me
     public void setCameraCaptureInterval(double interval) {
         Log.info("Changing camera capture interval from '" + CAMERA_CAPTURE_INTERVAL_IN_SEC + "' to '" + interval + "'.");
         CAMERA_CAPTURE_INTERVAL_IN_SEC = interval;
-        cameraCapture.setCaptureIntervalInSeconds(CAMERA_CAPTURE_INTERVAL_IN_SEC);
+        if (!automaticCaptureInterval) {
+            cameraCapture.setCaptureIntervalInSeconds(CAMERA_CAPTURE_INTERVAL_IN_SEC);
+            clientUI.updateCaptureRate(1 / CAMERA_CAPTURE_INTERVAL_IN_SEC, false);
+        }
     }
 
     @Override
@@ -228,12 +293,48 @@ public class Client implements Observer, ServiceController, CameraController, Me
         return CAMERA_CAPTURE_INTERVAL_IN_SEC;
     }
 
+    @Override
+    public void setAutomaticCaptureInterval(boolean automatic) {
+        Log.info((automatic ? "Enabling" : "Disabling") + " automatic camera capture interval.");
+        automaticCaptureInterval = automatic;
+        double interval = CAMERA_CAPTURE_INTERVAL_IN_SEC;
+        if (automatic) {
+            adaptiveCaptureInterval.reset(CAMERA_CAPTURE_INTERVAL_IN_SEC);
+            droppedSnapshots = snapshotSlot.getDroppedCount();
+            interval = adaptiveCaptureInterval.getIntervalInSec();
+        }
+        cameraCapture.setCaptureIntervalInSeconds(interval);
+        clientUI.updateCaptureRate(1 / interval, automatic);
+    }
+
+    @Override
+    public boolean isAutomaticCaptureInterval() {
+        return automaticCaptureInterval;
+    }
+
+    @Override
+    public void setCaptureIntervalBounds(double minInterval, double maxInterval) {
+        Log.info("Changing automatic camera capture interval bounds to '" + minInterval + "-" + maxInterval + "'.");
+        adaptiveCaptureInterval.setBounds(minInterval, maxInterval);
+        CAMERA_CAPTURE_INTERVAL_MIN_IN_SEC = minInterval;
+        CAMERA_CAPTURE_INTERVAL_MAX_IN_SEC = maxInterval;
+        if (automaticCaptureInterval) {
+            double interval = adaptiveCaptureInterval.getIntervalInSec();
+            cameraCapture.setCaptureIntervalInSeconds(interval);
+            clientUI.updateCaptureRate(1 / interval, true);
+        }
+    }
+
+    @Override
+    public double[] getCaptureIntervalBounds() {
+        return new double[]{adaptiveCaptureInterval.getMinIntervalInSec(), adaptiveCaptureInterval.getMaxIntervalInSec()};
+    }
+
     @Override
     public void changeServiceUrl(String url) {
         Log.info("Changing service URL from '" + SERVICE_URL + "' to '" + url + "'.");
+        serviceRequester.setServiceUrls(ServicePool.parseUrls(url), BALANCING);
         SERVICE_URL = url;
-        SERVICE_REQUEST_URL = SERVICE_URL + SERVICE_TYPE;
-        serviceRequester.setServiceUrl(SERVICE_REQUEST_URL);
     }
 
     @Override
@@ -245,8 +346,7 @@ public class Client implements Observer, ServiceController, CameraController, Me
     public void setServiceType(String serviceType) {
         Log.info("Changing service type from '" + SERVICE_TYPE + "' to '" + serviceType + "'.");
         SERVICE_TYPE = serviceType;
-        SERVICE_REQUEST_URL = SERVICE_URL + SERVICE_TYPE;
-        serviceRequester.setServiceUrl(SERVICE_REQUEST_URL);
+        serviceRequester.setServiceType(SERVICE_TYPE);
 
     }
 
@@ -0,0 +1,266 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package client;
+
+import api.ApiHeaders;
+import api.ApiUrls;
+import api.StreamFrames;
+import com.esotericsoftware.minlog.Log;
+import controll.ServiceController;
+import dto.RecognitionDTO;
+import jfr.StageSpan;
+import metrics.ServerTiming;
+import opencv.Util;
+import org.eclipse.jetty.websocket.client.WebSocketClient;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketHttpHeaders;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.jetty.JettyWebSocketClient;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Streams frames to the service over one WebSocket connection, see {@link StreamFrames},
+ * instead of a request per frame. Results arrive on the connection's thread
+ * while the next frames are sent, and are handed to the service controller as
+ * the responses of requests are.
+ * <p>
+ * At most window frames are sent before their results arrive, so frames wait
+ * in the client, where newer snapshots replace them, instead of in the service.
+ * When the service sheds a frame, no more are sent until its Retry-After has
+ * passed. A closed connection fails its frames in flight, and the next frame
+ * connects again, to another instance if there is one.
+ */
+public class FrameStream extends BinaryWebSocketHandler {
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final ServicePool servicePool;
+    private final ServiceController serviceController;
+    private final Semaphore credits;
+    private final Map<Long, InFlight> inFlight = new ConcurrentHashMap<Long, InFlight>();
+    private final JettyWebSocketClient client;
+    private volatile WebSocketSession session;
+    private volatile ServicePool.Node node;
+    private volatile ServicePool.Node failedNode;
+    private volatile long resumeNanos = System.nanoTime();
+    private volatile long lastRoundTripMillis;
+
+    /**
+     * @param window the most frames sent before their results arrive.
+     */
+    public FrameStream(ServicePool servicePool, int window, ServiceController serviceController) {
+        this.servicePool = servicePool;
+        this.credits = new Semaphore(window);
+        this.serviceController = serviceController;
+        WebSocketClient webSocketClient = new WebSocketClient();
+        // Jetty only takes messages up to 64kB by default, a small fraction of a result image
+        webSocketClient.getPolicy().setMaxBinaryMessageSize(StreamFrames.MAX_MESSAGE_BYTES);
+        this.client = new JettyWebSocketClient(webSocketClient);
+        this.client.start();
+    }
+
+    /**
+     * Waits until another frame may be sent: the window has room and the service
+     * has not asked to wait.
+     * @return false if the timeout passed first.
+     */
+    public boolean awaitCredit(long timeout, TimeUnit unit) throws InterruptedException {
+        long waitNanos = resumeNanos - System.nanoTime();
+        if (waitNanos > 0) {
+            if (waitNanos > unit.toNanos(timeout)) {
+                unit.sleep(timeout);
+                return false;
+            }
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+        return credits.tryAcquire(timeout, unit);
+    }
+
+    /**
+     * Sends a frame, connecting first if not connected. Takes the credit of a
+     * successful {@link #awaitCredit}, which the result of the frame returns.
+     * @param kind StreamFrames.DETECT or StreamFrames.IDENTIFY.
+     */
+    public void send(BufferedImage image, byte kind, FrameTrace trace) throws IOException {
+        byte[] imageBytes = Util.image2Bytes(image);
+        StageSpan span = StageSpan.begin("client.request", trace.getFrameId(), trace.getCameraId(), image.getWidth(), image.getHeight())
+                .bytes(imageBytes.length);
+        inFlight.put(trace.getFrameId(), new InFlight(trace, span));
+        trace.requestStarted();
+        try {
+            WebSocketSession connected = connect(trace.getCameraId());
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(imageBytes.length + 32);
+            StreamFrames.writeFrameHeader(new DataOutputStream(bytes), kind, image.getType(), image.getWidth(), image.getHeight(),
+                    trace.getFrameId(), StreamFrames.DEFAULT_DEADLINE);
+            bytes.write(imageBytes);
+            connected.sendMessage(new BinaryMessage(bytes.toByteArray()));
+        } catch (IOException e) {
+            if (inFlight.remove(trace.getFrameId()) == null) {
+                // failed already by the connection closing
+                throw e;
+            }
+            credits.release();
+            span.failed(e);
+            serviceController.requestCompleted(0, false);
+            throw e;
+        }
+    }
+
+    private synchronized WebSocketSession connect(String cameraId) throws IOException {
+        WebSocketSession connected = session;
+        if (connected != null && connected.isOpen()) {
+            return connected;
+        }
+        node = servicePool.acquire(failedNode);
+        URI uri = URI.create(node.getUrl().replaceFirst("^http", "ws") + ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_STREAM);
+        WebSocketHttpHeaders headers = new WebSocketHttpHeaders();
+        if (cameraId != null) {
+            headers.add(ApiHeaders.CAMERA_ID, cameraId);
+        }
+        try {
+            Log.info("Streaming frames to " + uri);
+            session = client.doHandshake(this, headers, uri).get(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            failedNode = null;
+            return session;
+        } catch (Exception e) {
+            node.completed(CONNECT_TIMEOUT_MILLIS, false);
+            failedNode = node;
+            throw new IOException("Could not connect to " + uri + ": " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws IOException {
+        ByteBuffer payload = message.getPayload();
+        byte[] bytes = new byte[payload.remaining()];
+        payload.get(bytes);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        StreamFrames.ResultHeader result = StreamFrames.readResultHeader(in);
+
+        InFlight frame = inFlight.remove(result.getFrameId());
+        if (frame == null) {
+            Log.warn("Result of unknown frame " + result.getFrameId());
+            return;
+        }
+        credits.release();
+        FrameTrace trace = frame.trace;
+        if (result.getStatus() != StreamFrames.RECOGNISED) {
+            if (result.getStatus() == StreamFrames.OVERLOADED) {
+                resumeNanos = System.nanoTime() + TimeUnit.SECONDS.toNanos(result.getRetryAfterSeconds());
+            }
+            Log.warn("Frame " + result.getFrameId() + " not recognised: " + result.getMessage());
+            frame.span.end(result.getStatus() == StreamFrames.OVERLOADED ? "overloaded" : "failed");
+            serviceController.requestCompleted(System.currentTimeMillis() - frame.sentMillis, false);
+            return;
+        }
+
+        RecognitionDTO recognitionDTO = new RecognitionDTO();
+        recognitionDTO.setPredictedPerson(result.getPredictedPerson());
+        recognitionDTO.setType(result.getImageType());
+        recognitionDTO.setCols(result.getWidth());
+        recognitionDTO.setRows(result.getHeight());
+        recognitionDTO.setModelVersion(result.getModelVersion());
+        byte[] image = new byte[in.available()];
+        in.readFully(image);
+        recognitionDTO.setBytes(image);
+        trace.responseReceived(ServerTiming.parse(result.getMessage()));
+        frame.span.end();
+
+        if (recognitionDTO.getPredictedPerson().length() > 0) {
+            Log.info("Identified person: " + recognitionDTO.getPredictedPerson());
+        }
+        lastRoundTripMillis = trace.getRoundTripMillis();
+        Log.info("Total stream round trip: " + lastRoundTripMillis + " (frame " + trace.getFrameId() + ", server: " + trace.getServerTiming() + ")");
+        serviceController.requestCompleted(lastRoundTripMillis, true);
+        serviceController.receivedRecognitionDto(recognitionDTO, trace);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession closed, CloseStatus status) {
+        Log.info("Frame stream closed: " + status);
+        boolean failed = !CloseStatus.NORMAL.equals(status);
+        ServicePool.Node closedNode = node;
+        if (closedNode != null) {
+            closedNode.completed(lastRoundTripMillis, !failed);
+            if (failed) {
+                failedNode = closedNode;
+            }
+        }
+        for (Long frameId : inFlight.keySet()) {
+            InFlight frame = inFlight.remove(frameId);
+            if (frame != null) {
+                credits.release();
+                frame.span.end("closed");
+                serviceController.requestCompleted(System.currentTimeMillis() - frame.sentMillis, false);
+            }
+        }
+    }
+
+    /**
+     * Returns the credit of a successful {@link #awaitCredit} when no frame was sent after all.
+     */
+    public void releaseCredit() {
+        credits.release();
+    }
+
+    /**
+     * Closes the connection, if open. The next frame connects again.
+     */
+    public void disconnect() {
+        WebSocketSession open = session;
+        try {
+            if (open != null && open.isOpen()) {
+                open.close(CloseStatus.NORMAL);
+            }
+        } catch (IOException e) {
+            Log.warn("Could not close the frame stream: " + e.getMessage());
+        }
+    }
+
+    public void close() {
+        disconnect();
+        client.stop();
+    }
+
+    private static class InFlight {
+
+        final FrameTrace trace;
+        final StageSpan span;
+        final long sentMillis = System.currentTimeMillis();
+
+        InFlight(FrameTrace trace, StageSpan span) {
+            this.trace = trace;
+            this.span = span;
+        }
+    }
+}
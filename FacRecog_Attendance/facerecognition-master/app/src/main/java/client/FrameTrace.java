@@ -0,0 +1,115 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package client;
+
+import metrics.ServerTiming;
+
+/**
+ * The timeline of one frame, from camera capture until its recognition result
+ * is shown. Handed from thread to thread along with the frame, but only
+ * updated by one thread at a time.
+ */
+public class FrameTrace {
+
+    private final long frameId;
+    private final String cameraId;
+    private final long captureNanos;
+    private long dequeuedNanos;
+    private long requestStartNanos;
+    private long responseNanos;
+    private long renderedNanos;
+    private ServerTiming serverTiming = new ServerTiming();
+
+    /**
+     * @param frameId number of the frame, sent along with the request.
+     * @param cameraId ID of the camera which captured the frame, may be null.
+     * @param captureNanos the System.nanoTime() at which the frame was captured.
+     */
+    public FrameTrace(long frameId, String cameraId, long captureNanos) {
+        this.frameId = frameId;
+        this.cameraId = cameraId;
+        this.captureNanos = captureNanos;
+        this.dequeuedNanos = captureNanos;
+    }
+
+    public long getFrameId() {
+        return frameId;
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    /** The frame was taken by the sender. */
+    public void dequeued() {
+        dequeuedNanos = System.nanoTime();
+    }
+
+    /** The frame is converted and about to be sent. */
+    public void requestStarted() {
+        requestStartNanos = System.nanoTime();
+    }
+
+    /** The response has been read, with the stage timings the server reported. */
+    public void responseReceived(ServerTiming serverTiming) {
+        responseNanos = System.nanoTime();
+        this.serverTiming = serverTiming;
+    }
+
+    /** The result is on screen, or written out when running without GUI. */
+    public void rendered() {
+        renderedNanos = System.nanoTime();
+    }
+
+    public long getRoundTripMillis() {
+        return (responseNanos - requestStartNanos) / 1000000;
+    }
+
+    public long getQueueWaitNanos() {
+        return dequeuedNanos - captureNanos;
+    }
+
+    public long getPrepareNanos() {
+        return requestStartNanos - dequeuedNanos;
+    }
+
+    public long getServerNanos() {
+        return (long) (serverTiming.getTotalMillis() * 1e6);
+    }
+
+    /**
+     * @return the round trip minus the time spent on the server: transfer over the
+     * network plus the time the request and response spent in HTTP handling.
+     */
+    public long getNetworkNanos() {
+        return Math.max(0, responseNanos - requestStartNanos - getServerNanos());
+    }
+
+    public long getRenderNanos() {
+        return renderedNanos - responseNanos;
+    }
+
+    public long getTotalNanos() {
+        return renderedNanos - captureNanos;
+    }
+
+    public ServerTiming getServerTiming() {
+        return serverTiming;
+    }
+}
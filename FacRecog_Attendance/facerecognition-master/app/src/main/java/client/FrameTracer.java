@@ -0,0 +1,143 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package client;
+
+import com.esotericsoftware.minlog.Log;
+import metrics.LatencyHistogram;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects the timelines of completed frames and reports, at a fixed interval,
+ * where frames spent their time: waiting for the sender after capture, being
+ * prepared for sending, on the network, on the server, or being rendered.
+ * Every report covers the frames completed since the previous one.
+ */
+public class FrameTracer {
+
+    public enum Phase {
+        QUEUE_WAIT("queue wait"), PREPARE("prepare"), NETWORK("network"), SERVER("server"), RENDER("render"), TOTAL("total");
+
+        private final String label;
+
+        Phase(String label) {
+            this.label = label;
+        }
+    }
+
+    private final Map<Phase, LatencyHistogram> latencies = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+    private final AtomicLong failedRequests = new AtomicLong();
+    private ScheduledExecutorService reporter;
+
+    public FrameTracer() {
+        for (Phase phase : Phase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Records the timeline of a frame whose result has been rendered.
+     */
+    public void frameCompleted(FrameTrace trace) {
+        latencies.get(Phase.QUEUE_WAIT).record(trace.getQueueWaitNanos());
+        latencies.get(Phase.PREPARE).record(trace.getPrepareNanos());
+        latencies.get(Phase.NETWORK).record(trace.getNetworkNanos());
+        latencies.get(Phase.SERVER).record(trace.getServerNanos());
+        latencies.get(Phase.RENDER).record(trace.getRenderNanos());
+        latencies.get(Phase.TOTAL).record(trace.getTotalNanos());
+    }
+
+    public void requestFailed() {
+        failedRequests.incrementAndGet();
+    }
+
+    public LatencyHistogram getLatency(Phase phase) {
+        return latencies.get(phase);
+    }
+
+    /**
+     * Logs a report every interval until stopped.
+     */
+    public synchronized void startReporting(long interval, TimeUnit unit) {
+        stopReporting();
+        reporter = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "frame-trace-reporter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        reporter.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                String report = report();
+                if (report != null) {
+                    Log.info(report);
+                }
+            }
+        }, interval, interval, unit);
+    }
+
+    public synchronized void stopReporting() {
+        if (reporter != null) {
+            reporter.shutdownNow();
+            reporter = null;
+        }
+    }
+
+    /**
+     * Summarises the frames completed since the previous report and starts over.
+     * @return the report, or null if no frames were completed or failed.
+     */
+    public synchronized String report() {
+        long frames = latencies.get(Phase.TOTAL).getCount();
+        long failed = failedRequests.getAndSet(0);
+        if (frames == 0 && failed == 0) {
+            return null;
+        }
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+                "Frame timing, %d frames, %d failed requests (p50/p95/p99 ms):", frames, failed));
+        Phase slowest = null;
+        double slowestP95 = -1;
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram latency = latencies.get(phase);
+            double p95 = latency.getPercentile(95, TimeUnit.MILLISECONDS);
+            report.append(String.format(Locale.ROOT, "%n  %-10s %8.1f %8.1f %8.1f", phase.label,
+                    latency.getPercentile(50, TimeUnit.MILLISECONDS), p95,
+                    latency.getPercentile(99, TimeUnit.MILLISECONDS)));
+            if (phase != Phase.TOTAL && p95 > slowestP95) {
+                slowest = phase;
+                slowestP95 = p95;
+            }
+            latency.reset();
+        }
+        if (frames > 0) {
+            report.append(String.format(Locale.ROOT, "%n  most time spent in: %s", slowest.label));
+        }
+        return report.toString();
+    }
+}
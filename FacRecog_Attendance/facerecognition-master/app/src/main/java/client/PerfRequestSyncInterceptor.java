@@ -18,7 +18,9 @@
 
 package client;
 
+import api.ApiHeaders;
 import com.google.common.base.Stopwatch;
+import metrics.ServerTiming;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.http.HttpRequest;
@@ -29,19 +31,24 @@ import org.springframework.http.client.ClientHttpResponse;
 import java.io.IOException;
 import java.util.concurrent.TimeUnit;
 
+/**
+ * Logs the response time of every request, and how much of it the server
+ * reported spending on the request. Safe to share between threads.
+ */
 public class PerfRequestSyncInterceptor implements ClientHttpRequestInterceptor {
 
     private final static Logger LOG = LoggerFactory.getLogger(PerfRequestSyncInterceptor.class);
-    private final static Stopwatch stopwatch = new Stopwatch();
+
     @Override
     public ClientHttpResponse intercept(HttpRequest hr, byte[] bytes, ClientHttpRequestExecution chre) throws IOException {
-        stopwatch.start();
-        long time = System.currentTimeMillis();
+        Stopwatch stopwatch = new Stopwatch().start();
         ClientHttpResponse response = chre.execute(hr, bytes);
         stopwatch.stop();
 
-        LOG.info(hr.getMethod() + "@ uri="+hr.getURI() + " payload(kB)= "+ (bytes.length/1024) + ", response_time=" + stopwatch.elapsedTime(TimeUnit.MILLISECONDS)+  ", response_code=" + response.getStatusCode().value());
+        ServerTiming serverTiming = ServerTiming.parse(response.getHeaders().getFirst(ApiHeaders.SERVER_TIMING));
+        LOG.info(hr.getMethod() + "@ uri="+hr.getURI() + " payload(kB)= "+ (bytes.length/1024) + ", response_time=" + stopwatch.elapsedTime(TimeUnit.MILLISECONDS)
+                + ", server_time=" + Math.round(serverTiming.getTotalMillis()) + ", response_code=" + response.getStatusCode().value());
 
         return response;
     }
-}
\ No newline at end of file
+}
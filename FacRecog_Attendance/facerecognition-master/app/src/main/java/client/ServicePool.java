@@ -0,0 +1,272 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+
+package client;
+
+import com.esotericsoftware.minlog.Log;
+import dto.PingDTO;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Spreads requests over several instances of the service. Each request goes
+ * to the healthy instance with the fewest requests outstanding or, when
+ * balancing by latency, with the lowest average latency weighted by the
+ * requests outstanding. An instance is ejected once its /ping fails or after
+ * several requests to it fail in a row, and readmitted once its /ping
+ * answers again. When all instances are ejected, requests go to all of them,
+ * as there is nowhere better to send them.
+ */
+public class ServicePool {
+
+    public enum Balancing {
+        LEAST_OUTSTANDING, LATENCY_WEIGHTED
+    }
+
+    public static final String PING_PATH = "/ping";
+    private static final int EJECT_AFTER_FAILURES = 3;
+    private static final double LATENCY_SMOOTHING = 0.3;
+    private static final int PING_TIMEOUT_MILLIS = 1000;
+
+    private final List<Node> nodes;
+    private final Balancing balancing;
+    private final RestTemplate pingTemplate;
+    private final Random random = new Random();
+    private ScheduledExecutorService healthChecker;
+
+    /**
+     * @param serviceUrls the root URLs of the instances, such as http://localhost:8080.
+     */
+    public ServicePool(List<String> serviceUrls, Balancing balancing) {
+        if (serviceUrls.isEmpty()) {
+            throw new IllegalArgumentException("No service URLs");
+        }
+        List<Node> nodes = new ArrayList<Node>();
+        for (String serviceUrl : serviceUrls) {
+            nodes.add(new Node(stripTrailingSlash(serviceUrl.trim())));
+        }
+        this.nodes = Collections.unmodifiableList(nodes);
+        this.balancing = balancing;
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout(PING_TIMEOUT_MILLIS);
+        requestFactory.setReadTimeout(PING_TIMEOUT_MILLIS);
+        this.pingTemplate = new RestTemplate(requestFactory);
+    }
+
+    /**
+     * Parses a comma separated list of root URLs.
+     */
+    public static List<String> parseUrls(String urls) {
+        List<String> parsed = new ArrayList<String>();
+        for (String url : urls.split(",")) {
+            if (!url.trim().isEmpty()) {
+                parsed.add(url.trim());
+            }
+        }
+        return parsed;
+    }
+
+    public List<Node> getNodes() {
+        return nodes;
+    }
+
+    public Balancing getBalancing() {
+        return balancing;
+    }
+
+    /**
+     * Pings every instance now and then at the given interval, on a daemon thread.
+     * A pool of one instance is not checked, as it has no other to turn to.
+     */
+    public synchronized void startHealthChecks(long intervalMillis) {
+        if (healthChecker != null || nodes.size() < 2) {
+            return;
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "service-health-check");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        healthChecker.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                checkHealth();
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void close() {
+        if (healthChecker != null) {
+            healthChecker.shutdownNow();
+            healthChecker = null;
+        }
+    }
+
+    void checkHealth() {
+        for (Node node : nodes) {
+            try {
+                pingTemplate.getForObject(node.url + PING_PATH, PingDTO.class);
+                node.pingSucceeded();
+            } catch (RestClientException e) {
+                node.eject("ping failed: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Chooses the instance for a request and counts the request as outstanding
+     * on it, until passed to {@link Node#completed}.
+     * @param exclude an instance not to choose if there is another, such as one a request just failed on, or null.
+     */
+    public Node acquire(Node exclude) {
+        Node chosen = choose(exclude, true);
+        if (chosen == null) {
+            chosen = choose(exclude, false);
+        }
+        if (chosen == null) {
+            chosen = choose(null, false);
+        }
+        chosen.outstanding.incrementAndGet();
+        return chosen;
+    }
+
+    private Node choose(Node exclude, boolean healthyOnly) {
+        Node best = null;
+        double bestScore = Double.MAX_VALUE;
+        int ties = 0;
+        for (Node node : nodes) {
+            if (node == exclude || (healthyOnly && node.ejected)) {
+                continue;
+            }
+            double score = score(node);
+            if (score < bestScore) {
+                best = node;
+                bestScore = score;
+                ties = 1;
+            } else if (score == bestScore && random.nextInt(++ties) == 0) {
+                // an equal choice between ties, so idle instances share the requests
+                best = node;
+            }
+        }
+        return best;
+    }
+
+    private double score(Node node) {
+        int outstanding = node.outstanding.get();
+        if (balancing == Balancing.LATENCY_WEIGHTED) {
+            return node.latencyMillis * (outstanding + 1);
+        }
+        return outstanding;
+    }
+
+    private static String stripTrailingSlash(String url) {
+        return url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+    }
+
+    /**
+     * One instance of the service, with what is known about its health and latency.
+     */
+    public static class Node {
+
+        private final String url;
+        private final AtomicInteger outstanding = new AtomicInteger();
+        private volatile double latencyMillis;
+        private volatile boolean ejected;
+        private int consecutiveFailures;
+
+        Node(String url) {
+            this.url = url;
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+
+        /**
+         * @return the smoothed latency of the requests to the instance, 0 before the first.
+         */
+        public double getLatencyMillis() {
+            return latencyMillis;
+        }
+
+        public boolean isEjected() {
+            return ejected;
+        }
+
+        /**
+         * Records the outcome of a request acquired from the pool.
+         */
+        public void completed(long latencyMillis, boolean succeeded) {
+            outstanding.decrementAndGet();
+            synchronized (this) {
+                if (succeeded) {
+                    consecutiveFailures = 0;
+                    this.latencyMillis = this.latencyMillis == 0 ? latencyMillis
+                            : this.latencyMillis + LATENCY_SMOOTHING * (latencyMillis - this.latencyMillis);
+                    return;
+                }
+                if (++consecutiveFailures >= EJECT_AFTER_FAILURES) {
+                    eject(consecutiveFailures + " requests failed in a row");
+                }
+            }
+        }
+
+        synchronized void eject(String reason) {
+            if (!ejected) {
+                ejected = true;
+                Log.warn("Ejecting service " + url + ": " + reason);
+            }
+        }
+
+        synchronized void pingSucceeded() {
+            if (ejected) {
+                ejected = false;
+                consecutiveFailures = 0;
+                // forget the latency from before, so the instance is tried again soon
+                latencyMillis = 0;
+                Log.info("Readmitting service " + url);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s (%s, %d outstanding, %.0fms)", url, ejected ? "ejected" : "healthy",
+                    outstanding.get(), latencyMillis);
+        }
+    }
+}
@@ -18,59 +18,154 @@
 
 package client;
 
+import api.ApiHeaders;
+import api.ApiUrls;
+import api.StreamFrames;
 import com.esotericsoftware.minlog.Log;
 import controll.ServiceController;
 import dto.RecognitionDTO;
+import jfr.PipelineEvents;
+import jfr.StageSpan;
+import metrics.ServerTiming;
+import opencv.FrameSlot;
+import opencv.Snapshot;
+import opencv.Util;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.http.client.ClientHttpRequest;
 import org.springframework.http.client.ClientHttpRequestInterceptor;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
 import org.springframework.util.LinkedMultiValueMap;
 import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RequestCallback;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.ResponseExtractor;
+import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
 import java.awt.image.BufferedImage;
 import java.awt.image.DataBufferByte;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.URI;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class ServiceRequester implements Runnable {
 
-    private LinkedBlockingQueue<BufferedImage> imageQueue;
-    private String serviceUrl;
+    private FrameSlot<Snapshot> snapshotSlot;
+    private volatile ServicePool servicePool;
+    private volatile String serviceType;
+    private volatile FrameStream frameStream;
+    private volatile int streamWindow;
     private final ServiceController serviceController;
     private volatile boolean running;
     private RestTemplate restTemplate;
     private Thread runningThread;
     private static int QUEUE_POLL_RATE = 50; //milliseconds
+    private static final String SNAPSHOT_QUEUE = "snapshot";
+    private static final long HEALTH_CHECK_INTERVAL_MILLIS = 2000;
+    private static final int MAX_ATTEMPTS = 2;
     private final List<ClientHttpRequestInterceptor> requestInterceptors = new ArrayList<ClientHttpRequestInterceptor>();
 
 
-    public ServiceRequester(LinkedBlockingQueue<BufferedImage> imageQueue, String serviceUrl, ServiceController serviceController) {
-        this.imageQueue = imageQueue;
-        this.serviceUrl = serviceUrl;
+    /**
+     * A requester which only sends the images it is given through executeRequest,
+     * and is not run to send camera snapshots.
+     */
+    public ServiceRequester(String serviceUrl, ServiceController serviceController) {
+        this(null, Collections.singletonList(rootOf(serviceUrl)), ServicePool.Balancing.LEAST_OUTSTANDING,
+                serviceUrl.substring(rootOf(serviceUrl).length()), serviceController);
+    }
+
+    /**
+     * @param serviceUrls the root URLs of the service instances to spread requests over, see {@link ServicePool}.
+     * @param serviceType the path of the endpoint requests are sent to, such as /recog/detectIdentify.
+     */
+    public ServiceRequester(FrameSlot<Snapshot> snapshotSlot, List<String> serviceUrls, ServicePool.Balancing balancing,
+                            String serviceType, ServiceController serviceController) {
+        this.snapshotSlot = snapshotSlot;
+        this.serviceType = serviceType;
         this.serviceController = serviceController;
-        this.restTemplate = new RestTemplate();
+        setServiceUrls(serviceUrls, balancing);
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setBufferRequestBody(false);
+        this.restTemplate = new RestTemplate(requestFactory);
 
+        // interceptors make the request factory buffer request bodies, so only enable them when needed
         //this.requestInterceptors.add(new PerfRequestSyncInterceptor());
         //this.restTemplate.setInterceptors(requestInterceptors);
     }
 
-    public HttpEntity<byte[]> createRequestHeaders(BufferedImage image) {
+    public HttpEntity<byte[]> createRequestHeaders(BufferedImage image, FrameTrace trace) {
         byte[] imageBytes = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
         MultiValueMap<String, String> headers = new LinkedMultiValueMap<String, String>();
 
-        headers.add("imageType", String.valueOf(image.getType()));
-        headers.add("imageWidth", String.valueOf(image.getWidth()));
-        headers.add("imageHeight", String.valueOf(image.getHeight()));
+        headers.add(ApiHeaders.IMAGE_TYPE, String.valueOf(image.getType()));
+        headers.add(ApiHeaders.IMAGE_WIDTH, String.valueOf(image.getWidth()));
+        headers.add(ApiHeaders.IMAGE_HEIGHT, String.valueOf(image.getHeight()));
+        addTraceHeaders(headers, trace);
 
         return new HttpEntity<byte[]>(imageBytes, headers);
     }
 
-    public void setServiceUrl(String serviceUrl) {
-        this.serviceUrl = serviceUrl;
+    private static void addTraceHeaders(MultiValueMap<String, String> headers, FrameTrace trace) {
+        headers.add(ApiHeaders.FRAME_ID, String.valueOf(trace.getFrameId()));
+        if (trace.getCameraId() != null) {
+            headers.add(ApiHeaders.CAMERA_ID, trace.getCameraId());
+        }
+    }
+
+    /**
+     * Sends requests to the given instances from now on, checking their health in the background.
+     */
+    public void setServiceUrls(List<String> serviceUrls, ServicePool.Balancing balancing) {
+        ServicePool previous = servicePool;
+        servicePool = new ServicePool(serviceUrls, balancing);
+        servicePool.startHealthChecks(HEALTH_CHECK_INTERVAL_MILLIS);
+        if (previous != null) {
+            previous.close();
+        }
+        if (streamWindow > 0) {
+            setStreaming(streamWindow);
+        }
+    }
+
+    /**
+     * Streams camera snapshots over a WebSocket connection from now on, see
+     * {@link FrameStream}, or sends a request for each again.
+     * @param window the most snapshots sent before their results arrive, 0 to stop streaming.
+     */
+    public void setStreaming(int window) {
+        FrameStream previous = frameStream;
+        streamWindow = window;
+        frameStream = window > 0 ? new FrameStream(servicePool, window, serviceController) : null;
+        if (previous != null) {
+            previous.close();
+        }
+    }
+
+    public void setServiceType(String serviceType) {
+        this.serviceType = serviceType;
+    }
+
+    public ServicePool getServicePool() {
+        return servicePool;
+    }
+
+    private static String rootOf(String serviceUrl) {
+        URI uri = URI.create(serviceUrl);
+        return uri.getScheme() + "://" + uri.getRawAuthority();
     }
 
     @Override
@@ -81,13 +176,40 @@ public class ServiceRequester implements Runnable {
         while (running) {
             try {
 
-                BufferedImage image = imageQueue.poll(QUEUE_POLL_RATE, TimeUnit.MILLISECONDS);
+                // when streaming, wait for room to send before taking a snapshot, so the newest one is sent
+                FrameStream stream = frameStream;
+                if (stream != null && !stream.awaitCredit(QUEUE_POLL_RATE, TimeUnit.MILLISECONDS)) {
+                    continue;
+                }
+                Snapshot snapshot = snapshotSlot.poll(QUEUE_POLL_RATE, TimeUnit.MILLISECONDS);
+                if (stream != null && snapshot == null) {
+                    stream.releaseCredit();
+                }
 
-                if (!running && imageQueue.isEmpty())
+                if (!running && snapshot == null)
                     return;
-                if (image != null) {
+                if (snapshot != null) {
 
-                    executeRequest(image);
+                    FrameTrace trace = new FrameTrace(snapshot.getFrameId(), snapshot.getCameraId(), snapshot.getCaptureNanos());
+                    trace.dequeued();
+                    PipelineEvents.handoff(SNAPSHOT_QUEUE, PipelineEvents.TAKEN, trace.getFrameId(), trace.getCameraId(), trace.getQueueWaitNanos());
+                    StageSpan prepare = StageSpan.begin("client.prepare", trace.getFrameId(), trace.getCameraId(), snapshot.getWidth(), snapshot.getHeight());
+                    BufferedImage image = snapshot.toBufferedImage();
+                    snapshot.release();
+                    prepare.end();
+                    if (stream != null) {
+                        try {
+                            stream.send(image, streamFrameKind(), trace);
+                        } catch (IOException e) {
+                            Log.warn("Streaming frame failed: " + e.getMessage());
+                        }
+                    } else {
+                        try {
+                            executeRequest(image, trace);
+                        } catch (RestClientException e) {
+                            Log.warn("Recognition request failed: " + e.getMessage());
+                        }
+                    }
 
 
                 }
@@ -99,18 +221,113 @@ public class ServiceRequester implements Runnable {
 
     }
 
+    private byte streamFrameKind() {
+        return serviceType.contains(ApiUrls.URL_RECOG_DETECT_IDENTIFY) ? StreamFrames.IDENTIFY : StreamFrames.DETECT;
+    }
+
     public void executeRequest(BufferedImage image) {
-        long requestStartTime = System.currentTimeMillis();
+        executeRequest(image, new FrameTrace(0, null, System.nanoTime()));
+    }
 
-        HttpEntity<byte[]> request = createRequestHeaders(image);
+    /**
+     * Sends a frame for recognition, recording the request and the timings
+     * reported by the server in the trace of the frame.
+     */
+    public void executeRequest(BufferedImage image, FrameTrace trace) {
+        StageSpan span = StageSpan.begin("client.request", trace.getFrameId(), trace.getCameraId(), image.getWidth(), image.getHeight())
+                .bytes(Util.image2Bytes(image).length);
+        trace.requestStarted();
+        long requestStartTime = System.currentTimeMillis();
 
-        RecognitionDTO responseDto = restTemplate.postForObject(serviceUrl, request, RecognitionDTO.class);
+        RecognitionDTO responseDto;
+        ServicePool pool = servicePool;
+        ServicePool.Node failedNode = null;
+        for (int attempt = 1; ; attempt++) {
+            ServicePool.Node node = pool.acquire(failedNode);
+            String serviceUrl = node.getUrl() + serviceType;
+            long attemptStartTime = System.currentTimeMillis();
+            try {
+                if (ApiUrls.isRawUrl(serviceUrl)) {
+                    responseDto = executeRawRequest(serviceUrl, image, trace);
+                } else {
+                    HttpEntity<byte[]> request = createRequestHeaders(image, trace);
+                    ResponseEntity<RecognitionDTO> response = restTemplate.postForEntity(serviceUrl, request, RecognitionDTO.class);
+                    trace.responseReceived(ServerTiming.parse(response.getHeaders().getFirst(ApiHeaders.SERVER_TIMING)));
+                    responseDto = response.getBody();
+                }
+                node.completed(System.currentTimeMillis() - attemptStartTime, true);
+                break;
+            } catch (RestClientException e) {
+                // only failures of the instance itself count against it, not bad requests or a busy instance shedding load
+                boolean instanceFailed = e instanceof ResourceAccessException || (e instanceof HttpServerErrorException
+                        && ((HttpServerErrorException) e).getStatusCode() != HttpStatus.SERVICE_UNAVAILABLE);
+                node.completed(System.currentTimeMillis() - attemptStartTime, !instanceFailed);
+                if (e instanceof ResourceAccessException && attempt < MAX_ATTEMPTS && pool.getNodes().size() > 1) {
+                    Log.warn("Request to " + node.getUrl() + " failed, trying another instance: " + e.getMessage());
+                    failedNode = node;
+                    continue;
+                }
+                span.failed(e);
+                serviceController.requestCompleted(System.currentTimeMillis() - requestStartTime, false);
+                throw e;
+            } catch (RuntimeException e) {
+                // a response that cannot be read, such as malformed headers, is a failure of the instance
+                node.completed(System.currentTimeMillis() - attemptStartTime, false);
+                span.failed(e);
+                serviceController.requestCompleted(System.currentTimeMillis() - requestStartTime, false);
+                throw new RestClientException("Unreadable response from " + node.getUrl() + ": " + e.getMessage(), e);
+            }
+        }
+        span.end();
         if(responseDto.getPredictedPerson().length() > 0) {
             Log.info("Identified person: " + responseDto.getPredictedPerson());
         }
-        Log.info("Total request time: " + (System.currentTimeMillis() - requestStartTime));
+        long roundTripMillis = trace.getRoundTripMillis();
+        Log.info("Total request time: " + roundTripMillis + " (frame " + trace.getFrameId() + ", server: " + trace.getServerTiming() + ")");
         Log.info("--------------------------------------");
-        serviceController.receivedRecognitionDto(responseDto);
+        serviceController.requestCompleted(roundTripMillis, true);
+        serviceController.receivedRecognitionDto(responseDto, trace);
+    }
+
+    /**
+     * Sends the image pixels as the raw request body, straight from the image raster,
+     * and reads the raw response body once into the array backing the returned DTO.
+     */
+    private RecognitionDTO executeRawRequest(String serviceUrl, final BufferedImage image, final FrameTrace trace) {
+        return restTemplate.execute(serviceUrl, HttpMethod.POST, new RequestCallback() {
+            @Override
+            public void doWithRequest(ClientHttpRequest request) throws IOException {
+                byte[] imageBytes = Util.image2Bytes(image);
+                HttpHeaders headers = request.getHeaders();
+                headers.setContentType(MediaType.APPLICATION_OCTET_STREAM);
+                headers.setContentLength(imageBytes.length);
+                headers.add(ApiHeaders.IMAGE_TYPE, String.valueOf(image.getType()));
+                headers.add(ApiHeaders.IMAGE_WIDTH, String.valueOf(image.getWidth()));
+                headers.add(ApiHeaders.IMAGE_HEIGHT, String.valueOf(image.getHeight()));
+                addTraceHeaders(headers, trace);
+                request.getBody().write(imageBytes);
+            }
+        }, new ResponseExtractor<RecognitionDTO>() {
+            @Override
+            public RecognitionDTO extractData(ClientHttpResponse response) throws IOException {
+                HttpHeaders headers = response.getHeaders();
+                RecognitionDTO recognitionDTO = new RecognitionDTO();
+                recognitionDTO.setPredictedPerson(headers.getFirst(ApiHeaders.PREDICTED_PERSON));
+                recognitionDTO.setType(Integer.parseInt(headers.getFirst(ApiHeaders.IMAGE_TYPE)));
+                recognitionDTO.setCols(Integer.parseInt(headers.getFirst(ApiHeaders.IMAGE_WIDTH)));
+                recognitionDTO.setRows(Integer.parseInt(headers.getFirst(ApiHeaders.IMAGE_HEIGHT)));
+                String modelVersion = headers.getFirst(ApiHeaders.MODEL_VERSION);
+                if (modelVersion != null) {
+                    recognitionDTO.setModelVersion(Long.parseLong(modelVersion));
+                }
+
+                byte[] bytes = new byte[(int) headers.getContentLength()];
+                new DataInputStream(response.getBody()).readFully(bytes);
+                recognitionDTO.setBytes(bytes);
+                trace.responseReceived(ServerTiming.parse(headers.getFirst(ApiHeaders.SERVER_TIMING)));
+                return recognitionDTO;
+            }
+        });
     }
 
     public void shutdown() {
@@ -121,6 +338,10 @@ public class ServiceRequester implements Runnable {
         } catch (InterruptedException e) {
             e.printStackTrace();
         }
+        FrameStream stream = frameStream;
+        if (stream != null) {
+            stream.disconnect();
+        }
     }
 
 }
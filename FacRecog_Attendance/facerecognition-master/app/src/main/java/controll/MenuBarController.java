@@ -27,6 +27,14 @@ public interface MenuBarController {
 
     double getCameraCaptureInterval();
 
+    void setAutomaticCaptureInterval(boolean automatic);
+
+    boolean isAutomaticCaptureInterval();
+
+    void setCaptureIntervalBounds(double minInterval, double maxInterval);
+
+    double[] getCaptureIntervalBounds();
+
     void changeServiceUrl(String url);
 
     String getServiceUrl();
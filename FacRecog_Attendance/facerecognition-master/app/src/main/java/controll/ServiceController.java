@@ -18,10 +18,13 @@
 
 package controll;
 
+import client.FrameTrace;
 import dto.RecognitionDTO;
 
 import java.awt.image.BufferedImage;
 
 public interface ServiceController {
-    void receivedRecognitionDto(RecognitionDTO recognitionResponse);
+    void receivedRecognitionDto(RecognitionDTO recognitionResponse, FrameTrace trace);
+
+    void requestCompleted(long roundTripMillis, boolean succeeded);
 }
@@ -35,9 +35,13 @@ public class ClientMenuBar extends JMenuBar implements ActionListener {
 
     private JMenu settingsMenu;
     private JMenuItem requestInterval;
+    private JCheckBoxMenuItem automaticInterval;
+    private JMenuItem intervalBounds;
     private JMenuItem serviceUrl;
     private JRadioButtonMenuItem radioAsync;
     private JRadioButtonMenuItem detect;
+    private JRadioButtonMenuItem radioAsyncRaw;
+    private JRadioButtonMenuItem detectRaw;
 
     public ClientMenuBar(MenuBarController menuBarController) {
         super();
@@ -61,7 +65,14 @@ public class ClientMenuBar extends JMenuBar implements ActionListener {
         requestInterval = new JMenuItem("Change camera capture interv.");
         settingsMenu.add(requestInterval);
 
-        serviceUrl = new JMenuItem("Change service URL.");
+        automaticInterval = new JCheckBoxMenuItem("Automatic camera capture interv.");
+        automaticInterval.setSelected(menuBarController.isAutomaticCaptureInterval());
+        settingsMenu.add(automaticInterval);
+
+        intervalBounds = new JMenuItem("Change automatic interv. bounds.");
+        settingsMenu.add(intervalBounds);
+
+        serviceUrl = new JMenuItem("Change service URLs.");
         settingsMenu.add(serviceUrl);
 
         settingsMenu.addSeparator();
@@ -77,15 +88,27 @@ public class ClientMenuBar extends JMenuBar implements ActionListener {
         group.add(detect);
         settingsMenu.add(detect);
 
+        radioAsyncRaw = new JRadioButtonMenuItem(ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_DETECT_IDENTIFY_RAW);
+        group.add(radioAsyncRaw);
+        settingsMenu.add(radioAsyncRaw);
+
+        detectRaw = new JRadioButtonMenuItem(ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_DETECT_RAW);
+        group.add(detectRaw);
+        settingsMenu.add(detectRaw);
+
         add(settingsMenu);
     }
 
     private void asd() {
         exitApp.addActionListener(this);
         requestInterval.addActionListener(this);
+        automaticInterval.addActionListener(this);
+        intervalBounds.addActionListener(this);
         serviceUrl.addActionListener(this);
         radioAsync.addActionListener(this);
         detect.addActionListener(this);
+        radioAsyncRaw.addActionListener(this);
+        detectRaw.addActionListener(this);
     }
 
     @Override
@@ -104,16 +127,38 @@ public class ClientMenuBar extends JMenuBar implements ActionListener {
                     System.err.println("Bad request interval: non-double value received.");
                 }
             }
+        } else if(src == automaticInterval) {
+            menuBarController.setAutomaticCaptureInterval(automaticInterval.isSelected());
+        } else if(src == intervalBounds) {
+            double[] bounds = menuBarController.getCaptureIntervalBounds();
+            String currentBounds = bounds[0] + "-" + bounds[1];
+            String newBounds = JOptionPane.showInputDialog("Insert automatic interval bounds (min-max seconds):", currentBounds);
+            if(newBounds != null && !newBounds.equals(currentBounds)) {
+                try {
+                    String[] parts = newBounds.split("-");
+                    menuBarController.setCaptureIntervalBounds(Double.parseDouble(parts[0].trim()), Double.parseDouble(parts[1].trim()));
+                } catch (Exception ex) {
+                    System.err.println("Bad interval bounds: expected 'min-max' in seconds.");
+                }
+            }
         } else if(src == serviceUrl) {
             String currentUrl = menuBarController.getServiceUrl();
-            String newUrl = JOptionPane.showInputDialog("Insert service URL:", currentUrl);
+            String newUrl = JOptionPane.showInputDialog("Insert service URLs, comma separated:", currentUrl);
             if(newUrl != null && !newUrl.equals(currentUrl)) {
-                menuBarController.changeServiceUrl(newUrl);
+                try {
+                    menuBarController.changeServiceUrl(newUrl);
+                } catch (Exception ex) {
+                    System.err.println("Bad service URLs: expected e.g. 'http://host1:8080,http://host2:8080'.");
+                }
             }
         } else if(src == radioAsync) {
             menuBarController.setServiceType(radioAsync.getText());
         } else if(src == detect) {
             menuBarController.setServiceType(detect.getText());
+        } else if(src == radioAsyncRaw) {
+            menuBarController.setServiceType(radioAsyncRaw.getText());
+        } else if(src == detectRaw) {
+            menuBarController.setServiceType(detectRaw.getText());
         }
 
     }
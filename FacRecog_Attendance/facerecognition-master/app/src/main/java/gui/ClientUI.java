@@ -39,6 +39,7 @@ public class ClientUI {
 
     private ImageIcon servedImageIcon;
     private JLabel servedTextLabel;
+    private JLabel captureRateLabel;
     private String currentDetectedPerson = "";
 
 
@@ -120,7 +121,12 @@ public class ClientUI {
 
         panel.add(buttonStartCapture);
         panel.add(buttonStopCapture);
-        contentPane.add(panel, BorderLayout.PAGE_END);
+
+        JPanel controlPanel = new JPanel(new BorderLayout());
+        captureRateLabel = new JLabel("Capture rate: ");
+        controlPanel.add(panel, BorderLayout.CENTER);
+        controlPanel.add(captureRateLabel, BorderLayout.PAGE_END);
+        contentPane.add(controlPanel, BorderLayout.PAGE_END);
     }
 
 
@@ -130,6 +136,14 @@ public class ClientUI {
      * @param identifiedPerson the name of the person identified in the image.
      */
     public void updateServedImage(final BufferedImage bufferedImage, final String identifiedPerson) {
+        updateServedImage(bufferedImage, identifiedPerson, null);
+    }
+
+    /**
+     * Shows a recognition result.
+     * @param onDisplayed run on the event dispatch thread once the image is shown, may be null.
+     */
+    public void updateServedImage(final BufferedImage bufferedImage, final String identifiedPerson, final Runnable onDisplayed) {
         SwingUtilities.invokeLater(new Runnable() {
             @Override
             public void run() {
@@ -139,11 +153,28 @@ public class ClientUI {
                 }
                 servedImageIcon.setImage(bufferedImage);
                 camCaptureControlFrame.repaint();
+                if (onDisplayed != null) {
+                    onDisplayed.run();
+                }
             }
         });
     }
 
 
+    /**
+     * Shows the effective rate at which snapshots are sent to the recognition service.
+     * @param snapshotsPerSecond the current snapshot rate.
+     * @param automatic whether the rate is adjusted automatically.
+     */
+    public void updateCaptureRate(final double snapshotsPerSecond, final boolean automatic) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                captureRateLabel.setText(String.format("Capture rate: %.1f snapshots/s%s", snapshotsPerSecond, automatic ? " (automatic)" : ""));
+            }
+        });
+    }
+
     public void toggleCameraOn() {
         buttonStartCapture.setEnabled(false);
         buttonStopCapture.setEnabled(true);
@@ -0,0 +1,383 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package load;
+
+import api.ApiUrls;
+import client.FrameTrace;
+import client.ServiceRequester;
+import com.esotericsoftware.minlog.Log;
+import controll.ServiceController;
+import dto.RecognitionDTO;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends recognition requests to one or more services at a controlled load, to
+ * find the point where they saturate. Requests use the same format as the
+ * client, through {@link ServiceRequester}.
+ * <p>
+ * In open-loop mode requests are sent at a constant rate whether or not
+ * earlier ones have completed, like cameras would. In closed-loop mode a fixed
+ * number of workers each send a request as soon as the previous one completed;
+ * their latencies are corrected for coordinated omission using the interval
+ * each worker is meant to keep. Both modes run a warm-up phase first, whose
+ * results are discarded.
+ * <pre>
+ * gradlew app:loadtest -Pargs="--mode open --rate 20 --endpoints /recog/detect:3,/recog/detectIdentify:1 --sizes 1080x720:1,640x480:1"
+ * </pre>
+ */
+public class LoadGenerator {
+
+    private static final long PROGRESS_INTERVAL_IN_SEC = 10;
+    private static final int SYNTHETIC_FRAMES_PER_SIZE = 4;
+
+    private final List<String> targets = new ArrayList<String>();
+    private final WeightedChoice<String> endpoints = new WeightedChoice<String>();
+    private final WeightedChoice<Dimension> sizes = new WeightedChoice<Dimension>();
+    private final Map<Dimension, List<BufferedImage>> frames = new HashMap<Dimension, List<BufferedImage>>();
+    private final Map<String, ServiceRequester> requesters = new HashMap<String, ServiceRequester>();
+    private final AtomicLong requestCount = new AtomicLong();
+    private boolean closedLoop;
+    private double rate = 10;
+    private int concurrency = -1;
+    private long intervalMillis = -1;
+    private long warmUpSeconds = 10;
+    private long durationSeconds = 60;
+    private int cameras = 1;
+    private long seed = 1;
+    private File imageDir;
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator loadGenerator = new LoadGenerator();
+        try {
+            loadGenerator.parseArguments(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [--url http://host:port,...] [--endpoints path:weight,...] [--sizes WxH:weight,...]\n"
+                    + "       [--mode open|closed] [--rate requests/s] [--concurrency n] [--interval ms]\n"
+                    + "       [--warmup seconds] [--duration seconds] [--images dir] [--cameras n] [--seed n]");
+            System.exit(1);
+        }
+        Log.set(Log.LEVEL_WARN);
+        LoadResults results = loadGenerator.run();
+        System.out.println(results.report());
+    }
+
+    void parseArguments(String[] args) throws IOException {
+        String urls = "http://localhost:8080";
+        String endpointMix = ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_DETECT + ":1," + ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_DETECT_IDENTIFY + ":1";
+        String sizeMix = "1080x720:1";
+        for (int i = 0; i < args.length; i++) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            String value = args[++i];
+            switch (args[i - 1]) {
+                case "--url": urls = value; break;
+                case "--endpoints": endpointMix = value; break;
+                case "--sizes": sizeMix = value; break;
+                case "--mode": closedLoop = parseMode(value); break;
+                case "--rate": rate = Double.parseDouble(value); break;
+                case "--concurrency": concurrency = Integer.parseInt(value); break;
+                case "--interval": intervalMillis = Long.parseLong(value); break;
+                case "--warmup": warmUpSeconds = Long.parseLong(value); break;
+                case "--duration": durationSeconds = Long.parseLong(value); break;
+                case "--images": imageDir = new File(value); break;
+                case "--cameras": cameras = Integer.parseInt(value); break;
+                case "--seed": seed = Long.parseLong(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + args[i - 1]);
+            }
+        }
+        if (rate <= 0 || durationSeconds <= 0 || warmUpSeconds < 0 || cameras <= 0) {
+            throw new IllegalArgumentException("Rate, duration and cameras must be positive");
+        }
+        if (concurrency <= 0) {
+            concurrency = closedLoop ? 4 : 64;
+        }
+        targets.addAll(Arrays.asList(urls.split(",")));
+        for (String[] endpoint : parseMix(endpointMix)) {
+            endpoints.add(endpoint[0], Integer.parseInt(endpoint[1]));
+        }
+        for (String[] size : parseMix(sizeMix)) {
+            String[] widthHeight = size[0].split("x");
+            if (widthHeight.length != 2) {
+                throw new IllegalArgumentException("Bad frame size " + size[0] + ", expected e.g. 1080x720");
+            }
+            sizes.add(new Dimension(Integer.parseInt(widthHeight[0]), Integer.parseInt(widthHeight[1])), Integer.parseInt(size[1]));
+        }
+        createFrames();
+    }
+
+    /**
+     * Runs the warm-up phase and then the measured phase.
+     * @return results of the measured phase.
+     */
+    LoadResults run() throws InterruptedException {
+        System.setProperty("http.maxConnections", String.valueOf(concurrency));
+        for (String target : targets) {
+            for (String endpoint : endpoints.getValues()) {
+                requesters.put(target + endpoint, new ServiceRequester(target + endpoint, NO_CONTROLLER));
+            }
+        }
+        System.out.println((closedLoop ? "Closed loop, " + concurrency + " workers" : "Open loop, " + rate + " requests/s")
+                + ", targets " + targets + ", warm-up " + warmUpSeconds + "s, duration " + durationSeconds + "s");
+        return closedLoop ? runClosedLoop() : runOpenLoop();
+    }
+
+    private LoadResults runOpenLoop() throws InterruptedException {
+        LoadResults warmUp = new LoadResults(endpoints.getValues(), 0);
+        LoadResults measured = new LoadResults(endpoints.getValues(), 0);
+        ExecutorService workers = Executors.newFixedThreadPool(concurrency);
+        Random random = new Random(seed);
+        long intervalNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(warmUpSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(durationSeconds);
+        long nextProgress = measureStart;
+        boolean measuring = false;
+
+        for (long i = 0; ; i++) {
+            final long due = start + i * intervalNanos;
+            if (due >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!measuring && due >= measureStart) {
+                measuring = true;
+                measured.start();
+            }
+            if (measuring && due >= nextProgress) {
+                printProgress(measured, due - measureStart);
+                nextProgress += TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_IN_SEC);
+            }
+            final LoadResults results = measuring ? measured : warmUp;
+            final Random requestRandom = new Random(random.nextLong());
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    send(requestRandom, due, results);
+                }
+            });
+        }
+        workers.shutdown();
+        workers.awaitTermination(1, TimeUnit.MINUTES);
+        workers.shutdownNow();
+        measured.stop();
+        return measured;
+    }
+
+    private LoadResults runClosedLoop() throws InterruptedException {
+        LoadResults warmUp = new LoadResults(endpoints.getValues(), 0);
+        runWorkers(warmUp, TimeUnit.SECONDS.toNanos(warmUpSeconds), 0);
+
+        long intervalNanos = intervalMillis >= 0 ? TimeUnit.MILLISECONDS.toNanos(intervalMillis)
+                : (long) warmUp.getLatency().getPercentile(50, TimeUnit.NANOSECONDS);
+        System.out.println("Correcting for coordinated omission with an expected interval of "
+                + TimeUnit.NANOSECONDS.toMillis(intervalNanos) + "ms per worker");
+        LoadResults measured = new LoadResults(endpoints.getValues(), intervalNanos);
+        measured.start();
+        runWorkers(measured, TimeUnit.SECONDS.toNanos(durationSeconds), intervalNanos);
+        measured.stop();
+        return measured;
+    }
+
+    /**
+     * Runs the closed-loop workers for the given time. Workers wait out the
+     * rest of the interval after a fast response, so they keep to it.
+     */
+    private void runWorkers(final LoadResults results, long durationNanos, final long intervalNanos) throws InterruptedException {
+        final long end = System.nanoTime() + durationNanos;
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int w = 0; w < concurrency; w++) {
+            final Random random = new Random(seed + w);
+            Thread worker = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long due = System.nanoTime();
+                    while (due < end) {
+                        send(random, due, results);
+                        due = Math.max(due + intervalNanos, System.nanoTime());
+                        long wait;
+                        while ((wait = due - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(wait);
+                        }
+                    }
+                }
+            }, "load-worker-" + w);
+            worker.start();
+            workers.add(worker);
+        }
+        long nextProgress = System.nanoTime() + TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_IN_SEC);
+        long started = System.nanoTime();
+        for (Thread worker : workers) {
+            while (worker.isAlive()) {
+                worker.join(TimeUnit.NANOSECONDS.toMillis(Math.max(1, nextProgress - System.nanoTime())));
+                if (System.nanoTime() >= nextProgress) {
+                    printProgress(results, System.nanoTime() - started);
+                    nextProgress += TimeUnit.SECONDS.toNanos(PROGRESS_INTERVAL_IN_SEC);
+                }
+            }
+        }
+    }
+
+    private void send(Random random, long dueNanos, LoadResults results) {
+        long requestNumber = requestCount.getAndIncrement();
+        String target = targets.get((int) (requestNumber % targets.size()));
+        String endpoint = endpoints.pick(random);
+        List<BufferedImage> images = frames.get(sizes.pick(random));
+        BufferedImage image = images.get(random.nextInt(images.size()));
+
+        long sentNanos = System.nanoTime();
+        try {
+            FrameTrace trace = new FrameTrace(requestNumber, "load/" + (requestNumber % cameras), dueNanos);
+            requesters.get(target + endpoint).executeRequest(image, trace);
+            results.requestCompleted(endpoint, dueNanos, sentNanos, System.nanoTime());
+        } catch (RuntimeException e) {
+            // connection errors, error statuses and unreadable responses alike
+            results.requestFailed();
+        }
+    }
+
+    private static void printProgress(LoadResults results, long elapsedNanos) {
+        System.out.println(String.format(Locale.ROOT, "%4ds: %.1f requests/s, %d completed, %d failed, p99 %.1fms",
+                TimeUnit.NANOSECONDS.toSeconds(elapsedNanos), results.getThroughput(), results.getCompleted(),
+                results.getFailures(), results.getLatency().getPercentile(99, TimeUnit.MILLISECONDS)));
+    }
+
+    /**
+     * Prepares gray frames of every size, as captured by the client: scaled from
+     * the images in the image directory, or drawn if none is given.
+     */
+    private void createFrames() throws IOException {
+        List<BufferedImage> sources = new ArrayList<BufferedImage>();
+        if (imageDir != null) {
+            File[] files = imageDir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    BufferedImage image = ImageIO.read(file);
+                    if (image != null) {
+                        sources.add(image);
+                    }
+                }
+            }
+            if (sources.isEmpty()) {
+                throw new IllegalArgumentException("No images found in " + imageDir);
+            }
+        }
+        for (Dimension size : sizes.getValues()) {
+            List<BufferedImage> sized = new ArrayList<BufferedImage>();
+            if (sources.isEmpty()) {
+                for (int i = 0; i < SYNTHETIC_FRAMES_PER_SIZE; i++) {
+                    sized.add(drawFrame(size, new Random(seed + i)));
+                }
+            } else {
+                for (BufferedImage source : sources) {
+                    sized.add(scaleToGray(source, size));
+                }
+            }
+            frames.put(size, sized);
+        }
+    }
+
+    private static BufferedImage scaleToGray(BufferedImage source, Dimension size) {
+        BufferedImage frame = new BufferedImage(size.width, size.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        g.drawImage(source, 0, 0, size.width, size.height, null);
+        g.dispose();
+        return frame;
+    }
+
+    /**
+     * A textured background with a face-like shape, so detection does
+     * comparable work to a camera frame.
+     */
+    private static BufferedImage drawFrame(Dimension size, Random random) {
+        BufferedImage frame = new BufferedImage(size.width, size.height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = frame.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        for (int i = 0; i < 200; i++) {
+            g.setColor(new Color(random.nextInt(256), random.nextInt(256), random.nextInt(256)));
+            g.fillRect(random.nextInt(size.width), random.nextInt(size.height), 5 + random.nextInt(size.width / 8), 5 + random.nextInt(size.height / 8));
+        }
+        int faceWidth = size.width / 3;
+        int faceHeight = faceWidth * 4 / 3;
+        int x = (size.width - faceWidth) / 2;
+        int y = (size.height - faceHeight) / 2;
+        g.setColor(new Color(200, 170, 150));
+        g.fillOval(x, y, faceWidth, faceHeight);
+        g.setColor(Color.DARK_GRAY);
+        g.fillOval(x + faceWidth / 4 - faceWidth / 16, y + faceHeight * 2 / 5, faceWidth / 8, faceWidth / 12);
+        g.fillOval(x + faceWidth * 3 / 4 - faceWidth / 16, y + faceHeight * 2 / 5, faceWidth / 8, faceWidth / 12);
+        g.drawLine(x + faceWidth / 2, y + faceHeight / 2, x + faceWidth / 2, y + faceHeight * 3 / 5);
+        g.drawArc(x + faceWidth / 3, y + faceHeight * 3 / 5, faceWidth / 3, faceHeight / 6, 200, 140);
+        g.dispose();
+        return frame;
+    }
+
+    private static boolean parseMode(String mode) {
+        if (mode.equals("closed")) {
+            return true;
+        } else if (mode.equals("open")) {
+            return false;
+        }
+        throw new IllegalArgumentException("Unknown mode " + mode + ", expected open or closed");
+    }
+
+    /**
+     * Splits e.g. "a:3,b:1" into {a, 3} and {b, 1}. A value without weight has weight 1.
+     */
+    private static List<String[]> parseMix(String mix) {
+        List<String[]> entries = new ArrayList<String[]>();
+        for (String entry : mix.split(",")) {
+            int colon = entry.lastIndexOf(':');
+            entries.add(colon < 0 ? new String[]{entry, "1"} : new String[]{entry.substring(0, colon), entry.substring(colon + 1)});
+        }
+        return entries;
+    }
+
+    private static final ServiceController NO_CONTROLLER = new ServiceController() {
+        @Override
+        public void receivedRecognitionDto(RecognitionDTO recognitionResponse, FrameTrace trace) {
+        }
+
+        @Override
+        public void requestCompleted(long roundTripMillis, boolean succeeded) {
+        }
+    };
+}
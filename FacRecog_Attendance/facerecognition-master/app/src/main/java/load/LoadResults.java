@@ -0,0 +1,124 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package load;
+
+import metrics.LatencyHistogram;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latencies and outcomes of the requests sent during one phase of a load test.
+ * Latency is measured from the time a request was due to be sent, so time a
+ * request spent waiting for a free connection or worker counts against the
+ * service, as it would for a real camera. Service time is measured from the
+ * time the request was actually sent.
+ */
+public class LoadResults {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+
+    private final Map<String, LatencyHistogram> latencies = new LinkedHashMap<String, LatencyHistogram>();
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram serviceTime = new LatencyHistogram();
+    private final AtomicLong failures = new AtomicLong();
+    private final long expectedIntervalNanos;
+    private volatile long startNanos = System.nanoTime();
+    private volatile long endNanos;
+
+    /**
+     * @param endpoints the endpoints requests are sent to.
+     * @param expectedIntervalNanos interval at which each closed-loop worker is meant to send,
+     *                              used to correct for coordinated omission, 0 for open-loop load.
+     */
+    public LoadResults(Iterable<String> endpoints, long expectedIntervalNanos) {
+        this.expectedIntervalNanos = expectedIntervalNanos;
+        for (String endpoint : endpoints) {
+            latencies.put(endpoint, new LatencyHistogram());
+        }
+    }
+
+    public void start() {
+        startNanos = System.nanoTime();
+    }
+
+    public void stop() {
+        endNanos = System.nanoTime();
+    }
+
+    /**
+     * @param dueNanos when the request was due to be sent.
+     * @param sentNanos when it was actually sent.
+     * @param completedNanos when the response had been read.
+     */
+    public void requestCompleted(String endpoint, long dueNanos, long sentNanos, long completedNanos) {
+        latency.recordCorrected(completedNanos - dueNanos, expectedIntervalNanos);
+        latencies.get(endpoint).recordCorrected(completedNanos - dueNanos, expectedIntervalNanos);
+        serviceTime.record(completedNanos - sentNanos);
+    }
+
+    public void requestFailed() {
+        failures.incrementAndGet();
+    }
+
+    public long getCompleted() {
+        return serviceTime.getCount();
+    }
+
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return completed requests per second.
+     */
+    public double getThroughput() {
+        long end = endNanos == 0 ? System.nanoTime() : endNanos;
+        return getCompleted() / Math.max(1e-9, (end - startNanos) / 1e9);
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+                "Throughput: %.1f requests/s, %d completed, %d failed%n", getThroughput(), getCompleted(), getFailures()));
+        report.append(String.format(Locale.ROOT, "%-30s %9s %9s %9s %9s %9s%n", "latency (ms)", "p50", "p90", "p99", "p99.9", "max"));
+        appendRow(report, "all" + (expectedIntervalNanos > 0 ? " (corrected)" : ""), latency);
+        for (Map.Entry<String, LatencyHistogram> endpoint : latencies.entrySet()) {
+            if (endpoint.getValue().getCount() > 0) {
+                appendRow(report, endpoint.getKey(), endpoint.getValue());
+            }
+        }
+        appendRow(report, "service time (uncorrected)", serviceTime);
+        return report.toString();
+    }
+
+    private static void appendRow(StringBuilder report, String name, LatencyHistogram histogram) {
+        report.append(String.format(Locale.ROOT, "%-30s", name));
+        for (double percentile : PERCENTILES) {
+            report.append(String.format(Locale.ROOT, " %9.1f", histogram.getPercentile(percentile, TimeUnit.MILLISECONDS)));
+        }
+        report.append(String.format(Locale.ROOT, " %9.1f%n", histogram.getMax(TimeUnit.MILLISECONDS)));
+    }
+}
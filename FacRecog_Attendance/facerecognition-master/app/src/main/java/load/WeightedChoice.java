@@ -0,0 +1,58 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package load;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Picks values at random in proportion to their weights, e.g. a mix of 3
+ * detect requests for every detect-and-identify request.
+ */
+public class WeightedChoice<T> {
+
+    private final List<T> values = new ArrayList<T>();
+    private final List<Integer> cumulativeWeights = new ArrayList<Integer>();
+    private int totalWeight;
+
+    public WeightedChoice<T> add(T value, int weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("Weight must be positive: " + value + ":" + weight);
+        }
+        totalWeight += weight;
+        values.add(value);
+        cumulativeWeights.add(totalWeight);
+        return this;
+    }
+
+    public List<T> getValues() {
+        return values;
+    }
+
+    public T pick(Random random) {
+        int choice = random.nextInt(totalWeight);
+        for (int i = 0; i < values.size(); i++) {
+            if (choice < cumulativeWeights.get(i)) {
+                return values.get(i);
+            }
+        }
+        throw new IllegalStateException("No values to choose from");
+    }
+}
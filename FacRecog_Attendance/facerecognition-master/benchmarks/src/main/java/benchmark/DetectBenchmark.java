@@ -0,0 +1,71 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import opencv.FaceDetector;
+import opencv.MatPool;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Haar cascade face detection on a downscaled frame, as run by the service.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DetectBenchmark {
+
+    private final MatPool matPool = new MatPool(4);
+    private MatPool.Lease buffers;
+    private FaceDetector detector;
+    private byte[] frameBytes;
+    private Mat frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        detector = new FaceDetector(SyntheticImages.cascadeFile());
+
+        BufferedImage image = SyntheticImages.face(1, 1, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+        buffers = matPool.lease();
+        Mat gray = Util.convertBytesToImage(buffers, Util.image2Bytes(image), image.getType(), image.getWidth(), image.getHeight());
+        frame = Util.downscale(buffers, gray, 4);
+        frameBytes = Util.matToBytes(frame);
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffers.close();
+        matPool.clear();
+    }
+
+    @Benchmark
+    public int detectFaces() {
+        // restore the frame, detection draws onto it
+        frame.ptr().put(frameBytes);
+        return detector.detectFaces(buffers.header(frame));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dto.RecognitionDTO;
+import opencv.MatPool;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding of the downscaled result frame into a response, and its conversion
+ * into an image on the client.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class EncodeBenchmark {
+
+    private final MatPool matPool = new MatPool(4);
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private MatPool.Lease buffers;
+    private Mat frame;
+    private BufferedImage reusedImage;
+    private RecognitionDTO recognitionDTO;
+
+    @Setup
+    public void setUp() {
+        BufferedImage image = SyntheticImages.face(1, 1, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+        buffers = matPool.lease();
+        Mat gray = Util.convertBytesToImage(buffers, Util.image2Bytes(image), image.getType(), image.getWidth(), image.getHeight());
+        frame = Util.downscale(buffers, gray, 4);
+
+        recognitionDTO = new RecognitionDTO();
+        recognitionDTO.setPredictedPerson("Person1");
+        recognitionDTO.setBytes(Util.matToBytes(frame));
+        recognitionDTO.setCols(frame.cols());
+        recognitionDTO.setRows(frame.rows());
+        recognitionDTO.setType(frame.type());
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffers.close();
+        matPool.clear();
+    }
+
+    @Benchmark
+    public byte[] matToBytes() {
+        return Util.matToBytes(frame);
+    }
+
+    @Benchmark
+    public BufferedImage matToBufferedImage() {
+        return Util.matToBufferedImage(frame);
+    }
+
+    @Benchmark
+    public BufferedImage matToReusedBufferedImage() {
+        reusedImage = Util.matToBufferedImage(frame, reusedImage);
+        return reusedImage;
+    }
+
+    @Benchmark
+    public byte[] recognitionDtoToJson() throws JsonProcessingException {
+        return objectMapper.writeValueAsBytes(recognitionDTO);
+    }
+
+    @Benchmark
+    public RecognitionDTO recognitionDtoFromJson() throws java.io.IOException {
+        return objectMapper.readValue(objectMapper.writeValueAsBytes(recognitionDTO), RecognitionDTO.class);
+    }
+}
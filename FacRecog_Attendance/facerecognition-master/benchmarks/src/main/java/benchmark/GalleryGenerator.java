@@ -0,0 +1,75 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes a synthetic training gallery for testing without real photos, in the
+ * naming scheme FaceRecogniser reads, e.g. 2-Kami_3.png:
+ * <pre>
+ * gradlew benchmarks:gallery -Pargs="--out /tmp/gallery --identities 1000 --images-per-identity 5"
+ * </pre>
+ * Existing images of the same identities are overwritten, with identical content.
+ */
+public class GalleryGenerator {
+
+    public static void main(String[] args) throws IOException {
+        File out = null;
+        int identities = 100;
+        int imagesPerIdentity = 5;
+        int width = SyntheticImages.FRAME_WIDTH;
+        int height = SyntheticImages.FRAME_HEIGHT;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--out": out = new File(value); break;
+                    case "--identities": identities = Integer.parseInt(value); break;
+                    case "--images-per-identity": imagesPerIdentity = Integer.parseInt(value); break;
+                    case "--width": width = Integer.parseInt(value); break;
+                    case "--height": height = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (out == null) {
+                throw new IllegalArgumentException("--out is required");
+            }
+            if (identities <= 0 || imagesPerIdentity <= 0) {
+                throw new IllegalArgumentException("Identities and images per identity must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: GalleryGenerator --out dir [--identities n] [--images-per-identity n] [--width px] [--height px]");
+            System.exit(1);
+        }
+
+        long start = System.nanoTime();
+        SyntheticImages.writeGallery(out, identities, imagesPerIdentity, width, height);
+        System.out.println(String.format(Locale.ROOT, "Wrote %d images of %d identities to %s in %ds",
+                identities * imagesPerIdentity, identities, out.getAbsolutePath(),
+                TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - start)));
+    }
+}
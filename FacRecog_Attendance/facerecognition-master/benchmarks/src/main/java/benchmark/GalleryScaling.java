@@ -0,0 +1,210 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.esotericsoftware.minlog.Log;
+import metrics.LatencyHistogram;
+import metrics.ProcessMemory;
+import opencv.FaceRecogniser;
+import opencv.IvfLbphEngine;
+import opencv.MatPool;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Trains and predicts with synthetic galleries of growing size, to show where
+ * training time, memory and prediction latency stop scaling. One gallery is
+ * grown from scale to scale, so every scale only draws its new identities.
+ * <pre>
+ * gradlew benchmarks:scaling -Pargs="--scales 10,100,1000,10000 --images-per-identity 3"
+ * </pre>
+ * With --algorithm ivf-lbph prediction time should grow with about the square
+ * root of the gallery size; --probes trades its accuracy for speed.
+ * Memory is the growth of the resident set while the model is loaded, which
+ * includes the native training images and model that the heap does not show.
+ */
+public class GalleryScaling {
+
+    private int[] scales = {10, 100, 1000};
+    private int imagesPerIdentity = 3;
+    private int width = SyntheticImages.FRAME_WIDTH;
+    private int height = SyntheticImages.FRAME_HEIGHT;
+    private int downscaleFactor = FaceRecogniser.DEFAULT_DOWNSCALE_FACTOR;
+    private String algorithm = "lbph";
+    private int queries = 100;
+    private int probes = IvfLbphEngine.DEFAULT_PROBES;
+    private File galleryDir;
+
+    public static void main(String[] args) throws IOException {
+        GalleryScaling scaling = new GalleryScaling();
+        boolean keepGallery = false;
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--scales": scaling.scales = parseScales(value); break;
+                    case "--images-per-identity": scaling.imagesPerIdentity = Integer.parseInt(value); break;
+                    case "--width": scaling.width = Integer.parseInt(value); break;
+                    case "--height": scaling.height = Integer.parseInt(value); break;
+                    case "--downscale": scaling.downscaleFactor = Integer.parseInt(value); break;
+                    case "--algorithm": scaling.algorithm = value.toLowerCase(Locale.ROOT); break;
+                    case "--queries": scaling.queries = Integer.parseInt(value); break;
+                    case "--probes": scaling.probes = Integer.parseInt(value); break;
+                    case "--dir": scaling.galleryDir = new File(value); keepGallery = true; break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: GalleryScaling [--scales 10,100,...] [--images-per-identity n] [--width px] [--height px]\n"
+                    + "       [--downscale n] [--algorithm lbph|eigen|fisher|java-lbph|ivf-lbph|quantized-lbph-16|quantized-lbph-8] [--probes n]\n"
+                    + "       [--queries n] [--dir gallery]");
+            System.exit(1);
+        }
+        if (scaling.galleryDir == null) {
+            scaling.galleryDir = Files.createTempDirectory("gallery").toFile();
+        }
+
+        Log.set(Log.LEVEL_WARN);
+        try {
+            List<String> rows = scaling.run();
+            System.out.println();
+            System.out.println(String.format(Locale.ROOT, "%10s %8s %10s %9s %10s %12s %10s %10s %10s %10s %9s",
+                    "identities", "images", "generate s", "train s", "images/s", "resident MB", "heap MB",
+                    "p50 ms", "p99 ms", "max ms", "accuracy"));
+            for (String row : rows) {
+                System.out.println(row);
+            }
+        } finally {
+            if (!keepGallery) {
+                SyntheticImages.deleteRecursively(scaling.galleryDir);
+            }
+        }
+    }
+
+    List<String> run() throws IOException {
+        List<String> rows = new ArrayList<String>();
+        MatPool matPool = new MatPool(1);
+        Random random = new Random(1);
+        int generated = 0;
+        for (int identities : scales) {
+            long start = System.nanoTime();
+            if (identities > generated) {
+                SyntheticImages.writeGallery(galleryDir, generated + 1, identities, imagesPerIdentity, width, height);
+                generated = identities;
+            }
+            double generateSeconds = (System.nanoTime() - start) / 1e9;
+
+            // train on exactly this scale's identities
+            File trainingDir = new File(galleryDir, "scale-" + identities);
+            linkGallery(trainingDir, identities);
+
+            System.gc();
+            long residentBefore = ProcessMemory.getResidentBytes();
+            long trainStart = System.nanoTime();
+            FaceRecogniser recogniser = createRecogniser(trainingDir);
+            double trainSeconds = (System.nanoTime() - trainStart) / 1e9;
+            System.gc();
+            long residentGrowth = ProcessMemory.getResidentBytes() - residentBefore;
+            long heapUsed = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+
+            LatencyHistogram latency = new LatencyHistogram();
+            int identified = 0;
+            for (int q = 0; q < queries; q++) {
+                int identity = 1 + random.nextInt(identities);
+                BufferedImage image = SyntheticImages.face(identity, imagesPerIdentity + 1, width, height);
+                MatPool.Lease buffers = matPool.lease();
+                try {
+                    Mat gray = Util.convertBytesToImage(buffers, Util.image2Bytes(image), image.getType(), width, height);
+                    Mat query = Util.downscale(buffers, gray, downscaleFactor);
+                    long predictStart = System.nanoTime();
+                    String person = recogniser.predictPerson(query);
+                    latency.recordSince(predictStart);
+                    if (person.equals(SyntheticImages.personName(identity))) {
+                        identified++;
+                    }
+                } finally {
+                    buffers.close();
+                }
+            }
+            recogniser.release();
+            SyntheticImages.deleteRecursively(trainingDir);
+
+            int images = identities * imagesPerIdentity;
+            String row = String.format(Locale.ROOT, "%10d %8d %10.1f %9.1f %10.0f %12.1f %10.1f %10.2f %10.2f %10.2f %8.1f%%",
+                    identities, images, generateSeconds, trainSeconds, images / trainSeconds,
+                    residentGrowth / 1e6, heapUsed / 1e6,
+                    latency.getPercentile(50, TimeUnit.MICROSECONDS) / 1000, latency.getPercentile(99, TimeUnit.MICROSECONDS) / 1000,
+                    latency.getMax(TimeUnit.MICROSECONDS) / 1000, 100.0 * identified / queries);
+            System.out.println(row);
+            rows.add(row);
+        }
+        matPool.clear();
+        return rows;
+    }
+
+    /**
+     * FaceRecogniser trains on a whole directory, so link the images of the
+     * first identities into a directory of their own.
+     */
+    private void linkGallery(File dir, int identities) throws IOException {
+        if (!dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        for (int identity = 1; identity <= identities; identity++) {
+            for (int variant = 1; variant <= imagesPerIdentity; variant++) {
+                String name = identity + "-" + SyntheticImages.personName(identity) + "_" + variant + ".png";
+                Files.createLink(new File(dir, name).toPath(), new File(galleryDir, name).toPath());
+            }
+        }
+    }
+
+    private FaceRecogniser createRecogniser(File trainingDir) {
+        FaceRecogniser recogniser = new FaceRecogniser(trainingDir, new File(galleryDir, "storage").getAbsolutePath(), downscaleFactor,
+                ParameterSweep.parseAlgorithm(algorithm));
+        recogniser.setIndexProbes(probes);
+        return recogniser;
+    }
+
+    private static int[] parseScales(String values) {
+        String[] parts = values.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+            if (i > 0 && parsed[i] < parsed[i - 1]) {
+                throw new IllegalArgumentException("Scales must be ascending: " + values);
+            }
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,390 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.esotericsoftware.minlog.Log;
+import opencv.FaceDetector;
+import opencv.FaceRecogniser;
+import opencv.MatPool;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Runs a labelled image set through the recognition pipeline for every
+ * combination of downscale factor, Haar scale factor, min neighbours and
+ * recognition algorithm, and prints the cost per frame against detection and
+ * identification accuracy, marking the Pareto-optimal configurations.
+ * <p>
+ * Images are named as for training, e.g. 2-Gustav_3.png, and are expected to
+ * show one face each: detection counts as correct when exactly one face is
+ * found, identification when the predicted name matches the file name. The
+ * pipeline predicts on the whole frame, so prediction does not depend on the
+ * detector parameters; every stage is timed once per setting that affects it
+ * and the costs are added up per configuration.
+ * <pre>
+ * gradlew benchmarks:sweep -Pargs="--train training --test labelled --downscale 2,4 --algorithms lbph,fisher"
+ * </pre>
+ * Without --train and --test a synthetic gallery is generated.
+ */
+public class ParameterSweep {
+
+    private final MatPool matPool = new MatPool(4);
+    private File trainingDir;
+    private List<LabelledImage> images = new ArrayList<LabelledImage>();
+    private int[] downscaleFactors = {2, 4, 6};
+    private double[] scaleFactors = {1.05, 1.1, 1.2, 1.3};
+    private int[] minNeighbours = {2, 3, 4, 6};
+    private String[] algorithms = {"lbph", "eigen", "fisher"};
+    private int repeat = 3;
+    private int identities = 20;
+    private int imagesPerIdentity = 3;
+
+    public static void main(String[] args) throws IOException {
+        ParameterSweep sweep = new ParameterSweep();
+        File generated = null;
+        try {
+            File testDir = null;
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--train": sweep.trainingDir = new File(value); break;
+                    case "--test": testDir = new File(value); break;
+                    case "--downscale": sweep.downscaleFactors = parseInts(value); break;
+                    case "--scale-factors": sweep.scaleFactors = parseDoubles(value); break;
+                    case "--min-neighbours": sweep.minNeighbours = parseInts(value); break;
+                    case "--algorithms": sweep.algorithms = value.toLowerCase(Locale.ROOT).split(","); break;
+                    case "--repeat": sweep.repeat = Integer.parseInt(value); break;
+                    case "--identities": sweep.identities = Integer.parseInt(value); break;
+                    case "--images-per-identity": sweep.imagesPerIdentity = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (args.length % 2 != 0) {
+                throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+            }
+            if ((sweep.trainingDir == null) != (testDir == null)) {
+                throw new IllegalArgumentException("--train and --test go together");
+            }
+            if (testDir == null) {
+                generated = Files.createTempDirectory("sweep").toFile();
+                sweep.generateImages(generated);
+            } else {
+                sweep.loadImages(testDir);
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: ParameterSweep [--train dir --test dir] [--downscale 2,4,...] [--scale-factors 1.1,1.2,...]\n"
+                    + "       [--min-neighbours 3,4,...] [--algorithms lbph,eigen,fisher,java-lbph] [--repeat n]\n"
+                    + "       [--identities n] [--images-per-identity n]");
+            System.exit(1);
+        }
+        Log.set(Log.LEVEL_WARN);
+        try {
+            List<Configuration> results = sweep.run();
+            System.out.println(report(results));
+        } finally {
+            sweep.matPool.clear();
+            if (generated != null) {
+                SyntheticImages.deleteRecursively(generated);
+            }
+        }
+    }
+
+    /**
+     * Writes a synthetic training gallery, and keeps unseen images of every identity to test with.
+     */
+    private void generateImages(File dir) throws IOException {
+        trainingDir = new File(dir, "training");
+        SyntheticImages.writeGallery(trainingDir, identities, imagesPerIdentity, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+        for (int identity = 1; identity <= identities; identity++) {
+            BufferedImage image = SyntheticImages.face(identity, imagesPerIdentity + 1, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+            images.add(new LabelledImage(SyntheticImages.personName(identity), image));
+        }
+    }
+
+    private void loadImages(File testDir) throws IOException {
+        File[] files = Util.findImagesInDirectory(testDir.getAbsolutePath());
+        if (files == null || files.length == 0) {
+            throw new IllegalArgumentException("No images found in " + testDir);
+        }
+        for (File file : files) {
+            BufferedImage image = ImageIO.read(file);
+            BufferedImage gray = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+            Graphics2D g = gray.createGraphics();
+            g.drawImage(image, 0, 0, null);
+            g.dispose();
+            //Example: a file called 2-Gustav_3 shows Gustav
+            images.add(new LabelledImage(file.getName().split("\\-|_|\\.")[1], gray));
+        }
+    }
+
+    List<Configuration> run() throws IOException {
+        FaceDetector detector = new FaceDetector(SyntheticImages.cascadeFile());
+        List<Configuration> results = new ArrayList<Configuration>();
+        for (int downscaleFactor : downscaleFactors) {
+            List<byte[]> frames = new ArrayList<byte[]>();
+            int width = 0;
+            int height = 0;
+            long resizeNanos = 0;
+            for (LabelledImage image : images) {
+                MatPool.Lease buffers = matPool.lease();
+                try {
+                    Mat gray = Util.convertBytesToImage(buffers, image.pixels, BufferedImage.TYPE_BYTE_GRAY, image.width, image.height);
+                    Mat frame = null;
+                    for (int r = 0; r <= repeat; r++) {
+                        long start = System.nanoTime();
+                        frame = Util.downscale(buffers, gray, downscaleFactor);
+                        if (r > 0) {
+                            resizeNanos += System.nanoTime() - start;
+                        }
+                    }
+                    frames.add(Util.matToBytes(frame));
+                    width = frame.cols();
+                    height = frame.rows();
+                } finally {
+                    buffers.close();
+                }
+            }
+            double resizeMillis = resizeNanos / 1e6 / repeat / images.size();
+
+            List<Configuration> detections = new ArrayList<Configuration>();
+            for (double scaleFactor : scaleFactors) {
+                for (int neighbours : minNeighbours) {
+                    detector.setScaleFactor(scaleFactor);
+                    detector.setMinNeighbours(neighbours);
+                    Configuration detection = new Configuration(null, downscaleFactor, scaleFactor, neighbours);
+                    detection.resizeMillis = resizeMillis;
+                    measureDetection(detector, frames, width, height, detection);
+                    detections.add(detection);
+                }
+            }
+
+            for (String algorithm : algorithms) {
+                Configuration prediction = new Configuration(algorithm, downscaleFactor, 0, 0);
+                measurePrediction(createRecogniser(algorithm, downscaleFactor), frames, width, height, prediction);
+                for (Configuration detection : detections) {
+                    Configuration configuration = new Configuration(algorithm, downscaleFactor, detection.scaleFactor, detection.minNeighbours);
+                    configuration.resizeMillis = resizeMillis;
+                    configuration.detectMillis = detection.detectMillis;
+                    configuration.detectionAccuracy = detection.detectionAccuracy;
+                    configuration.predictMillis = prediction.predictMillis;
+                    configuration.identificationAccuracy = prediction.identificationAccuracy;
+                    results.add(configuration);
+                }
+                System.out.println(String.format(Locale.ROOT, "%s, downscale %d: %.1f%% identified, %.2fms per prediction",
+                        algorithm, downscaleFactor, prediction.identificationAccuracy * 100, prediction.predictMillis));
+            }
+        }
+        markParetoOptimal(results);
+        return results;
+    }
+
+    private void measureDetection(FaceDetector detector, List<byte[]> frames, int width, int height, Configuration result) {
+        MatPool.Lease buffers = matPool.lease();
+        try {
+            Mat frame = buffers.acquire(height, width, Util.matTypeOf(BufferedImage.TYPE_BYTE_GRAY));
+            long nanos = 0;
+            int detected = 0;
+            for (byte[] pixels : frames) {
+                for (int r = 0; r <= repeat; r++) {
+                    // restore the frame, detection draws onto it
+                    frame.ptr().put(pixels);
+                    long start = System.nanoTime();
+                    int faces = detector.detectFaces(buffers.header(frame));
+                    if (r > 0) {
+                        nanos += System.nanoTime() - start;
+                    } else if (faces == 1) {
+                        detected++;
+                    }
+                }
+            }
+            result.detectMillis = nanos / 1e6 / repeat / frames.size();
+            result.detectionAccuracy = (double) detected / frames.size();
+        } finally {
+            buffers.close();
+        }
+    }
+
+    private void measurePrediction(FaceRecogniser recogniser, List<byte[]> frames, int width, int height, Configuration result) {
+        MatPool.Lease buffers = matPool.lease();
+        try {
+            Mat frame = buffers.acquire(height, width, Util.matTypeOf(BufferedImage.TYPE_BYTE_GRAY));
+            long nanos = 0;
+            int identified = 0;
+            for (int i = 0; i < frames.size(); i++) {
+                frame.ptr().put(frames.get(i));
+                for (int r = 0; r <= repeat; r++) {
+                    long start = System.nanoTime();
+                    String person = recogniser.predictPerson(frame);
+                    if (r > 0) {
+                        nanos += System.nanoTime() - start;
+                    } else if (person.equals(images.get(i).person)) {
+                        identified++;
+                    }
+                }
+            }
+            result.predictMillis = nanos / 1e6 / repeat / frames.size();
+            result.identificationAccuracy = (double) identified / frames.size();
+        } finally {
+            buffers.close();
+        }
+    }
+
+    private FaceRecogniser createRecogniser(String algorithm, int downscaleFactor) {
+        return new FaceRecogniser(trainingDir, new File(trainingDir, "storage").getAbsolutePath(), downscaleFactor,
+                parseAlgorithm(algorithm));
+    }
+
+    /**
+     * @param name lbph, eigen, fisher, java-lbph, ivf-lbph, quantized-lbph-16 or quantized-lbph-8
+     */
+    static FaceRecogniser.Algorithm parseAlgorithm(String name) {
+        try {
+            return FaceRecogniser.Algorithm.valueOf(name.toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown algorithm " + name + ", expected one of lbph, eigen, fisher, java-lbph, ivf-lbph, quantized-lbph-16, quantized-lbph-8");
+        }
+    }
+
+    /**
+     * A configuration is Pareto-optimal when no other one is at least as cheap
+     * and as accurate in both respects, and better in one of them.
+     */
+    static void markParetoOptimal(List<Configuration> configurations) {
+        for (Configuration candidate : configurations) {
+            candidate.paretoOptimal = true;
+            for (Configuration other : configurations) {
+                if (other.dominates(candidate)) {
+                    candidate.paretoOptimal = false;
+                    break;
+                }
+            }
+        }
+    }
+
+    static String report(List<Configuration> configurations) {
+        StringBuilder report = new StringBuilder();
+        report.append(String.format(Locale.ROOT, "%n%-8s %9s %8s %10s %10s %10s %11s %10s %10s %10s  %s%n",
+                "algo", "downscale", "scale", "neighbours", "resize ms", "detect ms", "predict ms", "total ms", "detected", "identified", "pareto"));
+        for (Configuration c : configurations) {
+            report.append(c.format()).append(c.paretoOptimal ? "  *" : "").append(String.format("%n"));
+        }
+
+        List<Configuration> optimal = new ArrayList<Configuration>();
+        for (Configuration c : configurations) {
+            if (c.paretoOptimal) {
+                optimal.add(c);
+            }
+        }
+        Collections.sort(optimal, new Comparator<Configuration>() {
+            @Override
+            public int compare(Configuration a, Configuration b) {
+                return Double.compare(a.getCostMillis(), b.getCostMillis());
+            }
+        });
+        report.append(String.format("%nPareto-optimal configurations, cheapest first:%n"));
+        for (Configuration c : optimal) {
+            report.append(c.format()).append(String.format("%n"));
+        }
+        return report.toString();
+    }
+
+    private static int[] parseInts(String values) {
+        String[] parts = values.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+
+    private static double[] parseDoubles(String values) {
+        String[] parts = values.split(",");
+        double[] parsed = new double[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Double.parseDouble(parts[i].trim());
+        }
+        return parsed;
+    }
+
+    private static class LabelledImage {
+        final String person;
+        final byte[] pixels;
+        final int width;
+        final int height;
+
+        LabelledImage(String person, BufferedImage grayImage) {
+            this.person = person;
+            this.pixels = Util.image2Bytes(grayImage);
+            this.width = grayImage.getWidth();
+            this.height = grayImage.getHeight();
+        }
+    }
+
+    static class Configuration {
+        final String algorithm;
+        final int downscaleFactor;
+        final double scaleFactor;
+        final int minNeighbours;
+        double resizeMillis;
+        double detectMillis;
+        double predictMillis;
+        double detectionAccuracy;
+        double identificationAccuracy;
+        boolean paretoOptimal;
+
+        Configuration(String algorithm, int downscaleFactor, double scaleFactor, int minNeighbours) {
+            this.algorithm = algorithm;
+            this.downscaleFactor = downscaleFactor;
+            this.scaleFactor = scaleFactor;
+            this.minNeighbours = minNeighbours;
+        }
+
+        double getCostMillis() {
+            return resizeMillis + detectMillis + predictMillis;
+        }
+
+        boolean dominates(Configuration other) {
+            return getCostMillis() <= other.getCostMillis()
+                    && detectionAccuracy >= other.detectionAccuracy
+                    && identificationAccuracy >= other.identificationAccuracy
+                    && (getCostMillis() < other.getCostMillis()
+                        || detectionAccuracy > other.detectionAccuracy
+                        || identificationAccuracy > other.identificationAccuracy);
+        }
+
+        String format() {
+            return String.format(Locale.ROOT, "%-8s %9d %8.2f %10d %10.2f %10.2f %11.2f %10.2f %9.1f%% %9.1f%%",
+                    algorithm, downscaleFactor, scaleFactor, minNeighbours, resizeMillis, detectMillis, predictMillis,
+                    getCostMillis(), detectionAccuracy * 100, identificationAccuracy * 100);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import opencv.FaceRecogniser;
+import opencv.MatPool;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recognition of a downscaled frame against synthetic galleries of growing size.
+ * The query is an unseen image of an enrolled identity.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PredictBenchmark {
+
+    @Param({"10", "100", "1000"})
+    public int identities;
+
+    @Param({"2"})
+    public int imagesPerIdentity;
+
+    @Param({"LBPH", "JAVA_LBPH", "IVF_LBPH", "QUANTIZED_LBPH_8"})
+    public FaceRecogniser.Algorithm algorithm;
+
+    private final MatPool matPool = new MatPool(4);
+    private MatPool.Lease buffers;
+    private File galleryDir;
+    private FaceRecogniser recogniser;
+    private Mat query;
+
+    @Setup
+    public void setUp() throws IOException {
+        galleryDir = Files.createTempDirectory("gallery").toFile();
+        SyntheticImages.writeGallery(galleryDir, identities, imagesPerIdentity, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+        recogniser = new FaceRecogniser(galleryDir, new File(galleryDir, "storage").getAbsolutePath(),
+                FaceRecogniser.DEFAULT_DOWNSCALE_FACTOR, algorithm);
+
+        BufferedImage image = SyntheticImages.face(identities / 2 + 1, imagesPerIdentity + 1,
+                SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+        buffers = matPool.lease();
+        Mat gray = Util.convertBytesToImage(buffers, Util.image2Bytes(image), image.getType(), image.getWidth(), image.getHeight());
+        query = Util.downscale(buffers, gray, 4);
+    }
+
+    @TearDown
+    public void tearDown() {
+        buffers.close();
+        matPool.clear();
+        SyntheticImages.deleteRecursively(galleryDir);
+    }
+
+    @Benchmark
+    public String predictPerson() {
+        return recogniser.predictPerson(query);
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import opencv.MatPool;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of request bytes into a grayscale Mat, and the downscale applied
+ * before detection and recognition, for a 1080x720 frame.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PreprocessBenchmark {
+
+    @Param({"GRAY", "BGR"})
+    public String imageType;
+
+    private final MatPool matPool = new MatPool(4);
+    private byte[] imageBytes;
+    private int bufferedImageType;
+    private Mat grayFrame;
+    private MatPool.Lease grayFrameLease;
+
+    @Setup
+    public void setUp() {
+        BufferedImage frame = imageType.equals("GRAY")
+                ? SyntheticImages.face(1, 1, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT)
+                : SyntheticImages.bgrFace(1, 1, SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT);
+        imageBytes = Util.image2Bytes(frame);
+        bufferedImageType = frame.getType();
+
+        grayFrameLease = matPool.lease();
+        grayFrame = Util.convertBytesToImage(grayFrameLease, imageBytes, bufferedImageType, frame.getWidth(), frame.getHeight());
+    }
+
+    @TearDown
+    public void tearDown() {
+        grayFrameLease.close();
+        matPool.clear();
+    }
+
+    @Benchmark
+    public int convertBytesToImage() {
+        MatPool.Lease buffers = matPool.lease();
+        try {
+            return Util.convertBytesToImage(buffers, imageBytes, bufferedImageType,
+                    SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT).rows();
+        } finally {
+            buffers.close();
+        }
+    }
+
+    @Benchmark
+    public int readImageFromStream() throws IOException {
+        MatPool.Lease buffers = matPool.lease();
+        try {
+            return Util.readImage(buffers, new ByteArrayInputStream(imageBytes), bufferedImageType,
+                    SyntheticImages.FRAME_WIDTH, SyntheticImages.FRAME_HEIGHT).rows();
+        } finally {
+            buffers.close();
+        }
+    }
+
+    @Benchmark
+    public int resizeByFour() {
+        MatPool.Lease buffers = matPool.lease();
+        try {
+            return Util.downscale(buffers, grayFrame, 4).rows();
+        } finally {
+            buffers.close();
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import com.esotericsoftware.minlog.Log;
+import metrics.LatencyHistogram;
+import opencv.LbphEngine;
+import opencv.QuantizedLbphEngine;
+import opencv.RecognitionEngine;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import java.awt.image.BufferedImage;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the LBPH gallery in floats with the 8 and 16 bit quantised
+ * galleries of {@link QuantizedLbphEngine}: memory, prediction time, accuracy
+ * and how often the quantised gallery predicts what the float one does.
+ * <pre>
+ * gradlew benchmarks:quantization -Pargs="--scales 1000,10000,50000"
+ * </pre>
+ * Images are drawn in memory at the size of a detected face. The quantised
+ * galleries are built a batch at a time, as the service enrols images. The
+ * float gallery is only built while it fits in half the heap; above that its
+ * size is computed, and the 8 bit gallery is compared with the 16 bit one.
+ */
+public class QuantizationReport {
+
+    private static final int BATCH = 1024;
+
+    private int[] scales = {1000, 10000, 50000};
+    private int imagesPerIdentity = 5;
+    private int width = 90;
+    private int height = 135;
+    private int queries = 50;
+
+    public static void main(String[] args) {
+        QuantizationReport report = new QuantizationReport();
+        try {
+            for (int i = 0; i < args.length; i += 2) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for " + args[i]);
+                }
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--scales": report.scales = parseScales(value); break;
+                    case "--images-per-identity": report.imagesPerIdentity = Integer.parseInt(value); break;
+                    case "--width": report.width = Integer.parseInt(value); break;
+                    case "--height": report.height = Integer.parseInt(value); break;
+                    case "--queries": report.queries = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: QuantizationReport [--scales 1000,10000,...] [--images-per-identity n]\n"
+                    + "       [--width px] [--height px] [--queries n]");
+            System.exit(1);
+        }
+
+        Log.set(Log.LEVEL_WARN);
+        List<String> rows = report.run();
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT, "%8s %8s %11s %11s %10s %9s %9s %9s %10s",
+                "images", "bits", "gallery MB", "direct MB", "heap MB", "build s", "p50 ms", "accuracy", "agreement"));
+        for (String row : rows) {
+            System.out.println(row);
+        }
+    }
+
+    List<String> run() {
+        List<String> rows = new ArrayList<String>();
+        for (int images : scales) {
+            int[] queryIdentities = new int[queries];
+            Random random = new Random(images);
+            for (int q = 0; q < queries; q++) {
+                queryIdentities[q] = 1 + random.nextInt(images / imagesPerIdentity);
+            }
+
+            int[] reference = null;
+            long floatBytes = (long) images * LbphEngine.DIMENSIONS * 4;
+            if (floatBytes < Runtime.getRuntime().maxMemory() / 2) {
+                reference = measure(rows, images, 32, new LbphEngine(), images, floatBytes, queryIdentities, null);
+            } else {
+                String row = String.format(Locale.ROOT, "%8d %8d %11.1f %11s %10s %9s %9s %9s %10s",
+                        images, 32, floatBytes / 1e6, "-", "-", "-", "-", "-", "-");
+                System.out.println(row + "   (larger than half the heap, not built)");
+                rows.add(row);
+            }
+            int[] predictions16 = measure(rows, images, 16, new QuantizedLbphEngine(16), BATCH, -1, queryIdentities, reference);
+            measure(rows, images, 8, new QuantizedLbphEngine(8), BATCH, -1, queryIdentities,
+                    reference != null ? reference : predictions16);
+        }
+        return rows;
+    }
+
+    /**
+     * Builds the engine from the given number of images, in batches, predicts
+     * the queries and releases it again.
+     *
+     * @param galleryBytes the size of a float gallery, or -1 to ask a quantised engine.
+     * @param reference predictions to compare with, or null.
+     * @return the predicted labels.
+     */
+    private int[] measure(List<String> rows, int images, int bits, RecognitionEngine engine, int batch, long galleryBytes,
+                          int[] queryIdentities, int[] reference) {
+        collectGarbage();
+        long directBefore = directMemoryUsed();
+        long heapBefore = heapUsed();
+
+        long start = System.nanoTime();
+        for (int first = 0; first < images; first += batch) {
+            int count = Math.min(batch, images - first);
+            MatVector batchImages = new MatVector(count);
+            int[] labels = new int[count];
+            Map<Integer, String> names = new HashMap<Integer, String>();
+            for (int i = 0; i < count; i++) {
+                int image = first + i;
+                int identity = 1 + image / imagesPerIdentity;
+                Mat mat = Util.bufferedImageToMat(SyntheticImages.face(identity, 1 + image % imagesPerIdentity, width, height), null);
+                batchImages.put(i, mat);
+                mat.release();
+                labels[i] = identity;
+                names.put(identity, SyntheticImages.personName(identity));
+            }
+            if (first == 0) {
+                engine.train(batchImages, labels, names);
+            } else {
+                engine.update(batchImages, labels, names);
+            }
+            batchImages.deallocate();
+        }
+        double buildSeconds = (System.nanoTime() - start) / 1e9;
+        collectGarbage();
+        long direct = directMemoryUsed() - directBefore;
+        long heap = heapUsed() - heapBefore;
+        if (galleryBytes < 0) {
+            galleryBytes = ((QuantizedLbphEngine) engine).getGalleryBytes();
+        }
+
+        LatencyHistogram latency = new LatencyHistogram();
+        int[] predictions = new int[queryIdentities.length];
+        int identified = 0;
+        int agreed = 0;
+        Mat query = new Mat();
+        for (int q = 0; q < queryIdentities.length; q++) {
+            // a variant the gallery has not seen
+            BufferedImage image = SyntheticImages.face(queryIdentities[q], imagesPerIdentity + 1 + q, width, height);
+            Util.bufferedImageToMat(image, query);
+            long predictStart = System.nanoTime();
+            predictions[q] = engine.predict(query);
+            latency.recordSince(predictStart);
+            if (predictions[q] == queryIdentities[q]) {
+                identified++;
+            }
+            if (reference != null && predictions[q] == reference[q]) {
+                agreed++;
+            }
+        }
+        query.release();
+        engine.release();
+
+        String row = String.format(Locale.ROOT, "%8d %8d %11.1f %11.1f %10.1f %9.1f %9.2f %8.1f%% %10s",
+                images, bits, galleryBytes / 1e6, direct / 1e6, heap / 1e6, buildSeconds,
+                latency.getPercentile(50, TimeUnit.MICROSECONDS) / 1000, 100.0 * identified / queryIdentities.length,
+                reference == null ? "-" : String.format(Locale.ROOT, "%.1f%%", 100.0 * agreed / reference.length));
+        System.out.println(row);
+        rows.add(row);
+        return predictions;
+    }
+
+    /**
+     * Direct buffers are freed some time after the collection that finds them
+     * unreachable, so collect until their total stops falling.
+     */
+    private static void collectGarbage() {
+        long direct;
+        do {
+            direct = directMemoryUsed();
+            System.gc();
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        } while (directMemoryUsed() < direct);
+    }
+
+    private static long directMemoryUsed() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if (pool.getName().equals("direct")) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+
+    private static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    private static int[] parseScales(String values) {
+        String[] parts = values.split(",");
+        int[] parsed = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            parsed[i] = Integer.parseInt(parts[i].trim());
+        }
+        return parsed;
+    }
+}
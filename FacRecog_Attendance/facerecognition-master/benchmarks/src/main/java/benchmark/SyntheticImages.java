@@ -0,0 +1,255 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package benchmark;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.geom.Arc2D;
+import java.awt.geom.Ellipse2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Deterministic, face-like test images, so the benchmarks run on any machine
+ * without a camera or real photos. Every identity has its own face geometry
+ * and every image of an identity varies in position, lighting and noise.
+ */
+public class SyntheticImages {
+
+    public static final int FRAME_WIDTH = 1080;
+    public static final int FRAME_HEIGHT = 720;
+
+    private static final int BACKGROUND = 100;
+    private static final int TEXTURE_BLOCK = 6;
+    private static final String CASCADE_RESOURCE = "/detection/haar/frontalface_alt.xml";
+    private static final String[] SYLLABLES = {"ka", "lo", "mi", "ra", "su", "te", "no", "vi", "da", "fe",
+            "gu", "ha", "je", "ko", "lu", "ma", "ni", "po", "re", "si"};
+
+    /**
+     * Draws a grayscale face of the given identity.
+     * @param identity selects the face geometry.
+     * @param variant selects the position, lighting and noise of this image.
+     * @return image of type TYPE_BYTE_GRAY
+     */
+    public static BufferedImage face(int identity, int variant, int width, int height) {
+        Random face = new Random(identity * 7919L + 17);
+        double faceWidth = width * (0.30 + 0.08 * face.nextDouble());
+        double faceHeight = faceWidth * (1.25 + 0.2 * face.nextDouble());
+        double eyeSpacing = faceWidth * (0.36 + 0.12 * face.nextDouble());
+        double eyeSize = faceWidth * (0.08 + 0.05 * face.nextDouble());
+        double mouthWidth = faceWidth * (0.3 + 0.2 * face.nextDouble());
+        double noseLength = faceHeight * (0.12 + 0.08 * face.nextDouble());
+        int skin = 130 + face.nextInt(90);
+        int hair = 20 + face.nextInt(80);
+
+        Random image = new Random(identity * 104729L + variant * 31L + 7);
+        double centerX = width / 2.0 + width * 0.01 * (image.nextDouble() - 0.5);
+        double centerY = height / 2.0 + height * 0.01 * (image.nextDouble() - 0.5);
+        int lighting = image.nextInt(30) - 15;
+
+        BufferedImage img = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+        Graphics2D g = img.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setColor(gray(BACKGROUND));
+        g.fillRect(0, 0, width, height);
+
+        double top = centerY - faceHeight / 2;
+        g.setColor(gray(hair));
+        g.fill(new Ellipse2D.Double(centerX - faceWidth * 0.55, top - faceHeight * 0.08, faceWidth * 1.1, faceHeight * 0.6));
+        g.setColor(gray(skin));
+        g.fill(new Ellipse2D.Double(centerX - faceWidth / 2, top, faceWidth, faceHeight));
+
+        double eyeY = top + faceHeight * 0.4;
+        g.setColor(gray(skin / 4));
+        g.fill(new Ellipse2D.Double(centerX - eyeSpacing / 2 - eyeSize / 2, eyeY - eyeSize / 3, eyeSize, eyeSize * 0.66));
+        g.fill(new Ellipse2D.Double(centerX + eyeSpacing / 2 - eyeSize / 2, eyeY - eyeSize / 3, eyeSize, eyeSize * 0.66));
+        g.setStroke(new BasicStroke((float) Math.max(1, faceWidth / 40)));
+        g.drawLine((int) (centerX - eyeSpacing / 2 - eyeSize * 0.7), (int) (eyeY - eyeSize),
+                (int) (centerX - eyeSpacing / 2 + eyeSize * 0.7), (int) (eyeY - eyeSize * 1.1));
+        g.drawLine((int) (centerX + eyeSpacing / 2 - eyeSize * 0.7), (int) (eyeY - eyeSize * 1.1),
+                (int) (centerX + eyeSpacing / 2 + eyeSize * 0.7), (int) (eyeY - eyeSize));
+        g.drawLine((int) centerX, (int) (eyeY + eyeSize), (int) centerX, (int) (eyeY + eyeSize + noseLength));
+        double mouthY = top + faceHeight * 0.72;
+        g.draw(new Arc2D.Double(centerX - mouthWidth / 2, mouthY - mouthWidth / 4, mouthWidth, mouthWidth / 2, 200, 140, Arc2D.OPEN));
+
+        // identity specific marks, such as freckles and scars, give every face its own texture
+        int marks = 10 + face.nextInt(30);
+        for (int i = 0; i < marks; i++) {
+            double markX = centerX + faceWidth * 0.8 * (face.nextDouble() - 0.5);
+            double markY = top + faceHeight * (0.15 + 0.7 * face.nextDouble());
+            double markSize = faceWidth * (0.01 + 0.03 * face.nextDouble());
+            g.setColor(gray(skin + (face.nextBoolean() ? -60 : 40)));
+            g.fill(new Ellipse2D.Double(markX, markY, markSize, markSize * (0.5 + face.nextDouble())));
+        }
+        g.dispose();
+
+        // the same background texture behind every face, a skin texture which moves with the
+        // face, then the lighting and sensor noise of this image
+        Random background = new Random(1);
+        byte[] pixels = ((DataBufferByte) img.getRaster().getDataBuffer()).getData();
+        int originX = (int) Math.round(centerX);
+        int originY = (int) Math.round(centerY);
+        for (int i = 0; i < pixels.length; i++) {
+            int value = pixels[i] & 0xff;
+            if (value == BACKGROUND) {
+                value += background.nextInt(24) - 12;
+            } else if (value == skin) {
+                int blockX = Math.floorDiv(i % width - originX, TEXTURE_BLOCK);
+                int blockY = Math.floorDiv(i / width - originY, TEXTURE_BLOCK);
+                value += textureAt(identity, blockX, blockY);
+            }
+            value += lighting + (int) (image.nextGaussian() * 2);
+            pixels[i] = (byte) Math.max(0, Math.min(255, value));
+        }
+        return img;
+    }
+
+    /**
+     * The same face as {@link #face}, as a colour image of type TYPE_3BYTE_BGR.
+     */
+    public static BufferedImage bgrFace(int identity, int variant, int width, int height) {
+        BufferedImage bgr = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D g = bgr.createGraphics();
+        g.drawImage(face(identity, variant, width, height), 0, 0, null);
+        g.dispose();
+        return bgr;
+    }
+
+    /**
+     * Writes a training gallery in the naming scheme read by FaceRecogniser,
+     * e.g. 2-Kami_3.png for image 3 of identity 2. Identities are numbered from 1.
+     * Images are drawn on all available processors.
+     */
+    public static void writeGallery(File dir, int identities, int imagesPerIdentity, int width, int height) throws IOException {
+        writeGallery(dir, 1, identities, imagesPerIdentity, width, height);
+    }
+
+    /**
+     * Writes images of the identities firstIdentity to lastIdentity, e.g. to grow
+     * an existing gallery.
+     */
+    public static void writeGallery(final File dir, int firstIdentity, int lastIdentity, final int imagesPerIdentity,
+                                    final int width, final int height) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Could not create " + dir);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        List<Future<Void>> written = new ArrayList<Future<Void>>();
+        for (int i = firstIdentity; i <= lastIdentity; i++) {
+            final int identity = i;
+            written.add(executor.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    for (int variant = 1; variant <= imagesPerIdentity; variant++) {
+                        File file = new File(dir, identity + "-" + personName(identity) + "_" + variant + ".png");
+                        ImageIO.write(face(identity, variant, width, height), "png", file);
+                    }
+                    return null;
+                }
+            }));
+        }
+        executor.shutdown();
+        try {
+            for (Future<Void> future : written) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing " + dir, e);
+        } catch (ExecutionException e) {
+            throw new IOException("Could not write " + dir, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * A pronounceable name which is unique per identity and holds none of the
+     * separators of the file naming scheme, e.g. Kami for identity 2.
+     */
+    public static String personName(int identity) {
+        StringBuilder name = new StringBuilder();
+        int rest = identity;
+        do {
+            name.insert(0, SYLLABLES[rest % SYLLABLES.length]);
+            rest /= SYLLABLES.length;
+        } while (rest > 0);
+        if (identity < SYLLABLES.length) {
+            name.insert(0, SYLLABLES[0]);
+        }
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    /**
+     * Copies the Haar cascade bundled with the common module to a temporary file.
+     */
+    public static File cascadeFile() throws IOException {
+        File file = File.createTempFile("frontalface_alt", ".xml");
+        file.deleteOnExit();
+        InputStream in = SyntheticImages.class.getResourceAsStream(CASCADE_RESOURCE);
+        if (in == null) {
+            throw new IOException("Resource not found: " + CASCADE_RESOURCE);
+        }
+        try {
+            Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            in.close();
+        }
+        return file;
+    }
+
+    public static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+
+    /**
+     * A skin texture value in [-12, 12] for a block of pixels, fixed per identity.
+     */
+    private static int textureAt(int identity, int blockX, int blockY) {
+        long hash = identity * 0x9E3779B97F4A7C15L + blockX * 0xC2B2AE3D27D4EB4FL + blockY * 0x165667B19E3779F9L;
+        hash ^= hash >>> 29;
+        hash *= 0xBF58476D1CE4E5B9L;
+        hash ^= hash >>> 32;
+        return (int) ((hash & 0xffff) % 25) - 12;
+    }
+
+    private static Color gray(int value) {
+        int v = Math.max(0, Math.min(255, value));
+        return new Color(v, v, v);
+    }
+}
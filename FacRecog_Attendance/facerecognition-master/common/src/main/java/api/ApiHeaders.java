@@ -0,0 +1,39 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package api;
+
+public class ApiHeaders {
+
+    public static final String IMAGE_TYPE = "imageType";
+    public static final String IMAGE_WIDTH = "imageWidth";
+    public static final String IMAGE_HEIGHT = "imageHeight";
+    public static final String PREDICTED_PERSON = "predictedPerson";
+    public static final String FRAME_ID = "frameId";
+    public static final String CAMERA_ID = "cameraId";
+    public static final String SERVER_TIMING = "Server-Timing";
+    /** The recognition algorithm a request predicts with, or ENSEMBLE for all of them */
+    public static final String ALGORITHM = "algorithm";
+    /** The version of the model a response was predicted with */
+    public static final String MODEL_VERSION = "modelVersion";
+    /** How long the client waits for the response, in milliseconds from when the service receives the request */
+    public static final String DEADLINE_MILLIS = "deadlineMillis";
+    /** Sent with 503 Service Unavailable: how many seconds until the service expects to have room again */
+    public static final String RETRY_AFTER = "Retry-After";
+
+}
@@ -24,5 +24,34 @@ public class ApiUrls {
     public static final String URL_RECOG_DETECT = "/detect";
     public static final String URL_RECOG_DETECT_IDENTIFY = "/detectIdentify";
     public static final String URL_RECOG_UPLOAD_IMAGE = "/uploadImage";
+    /**
+     * Predicts with a face already scaled down for recognition, sent raw, and
+     * answers with the closest match and its distance. Used by the coordinator
+     * of a sharded gallery.
+     */
+    public static final String URL_RECOG_MATCH = "/match";
+    /**
+     * Enrolls the training images in a zip archive sent as the request body,
+     * named like the training images, and answers with a report once done. The
+     * same path with the enrollment's id appended reports its progress.
+     */
+    public static final String URL_RECOG_ENROLL = "/enroll";
+    /**
+     * WebSocket endpoint streaming binary frames to recognise, and their
+     * results back on the same connection, see {@link StreamFrames}.
+     */
+    public static final String URL_RECOG_STREAM = "/stream";
+
+    public static final String URL_RAW_SUFFIX = "/raw";
+    public static final String URL_RECOG_DETECT_RAW = URL_RECOG_DETECT + URL_RAW_SUFFIX;
+    public static final String URL_RECOG_DETECT_IDENTIFY_RAW = URL_RECOG_DETECT_IDENTIFY + URL_RAW_SUFFIX;
+
+    /**
+     * Raw endpoints exchange unencoded image bytes as the request and response
+     * body, with the image description carried in headers.
+     */
+    public static boolean isRawUrl(String url) {
+        return url.endsWith(URL_RAW_SUFFIX);
+    }
 
 }
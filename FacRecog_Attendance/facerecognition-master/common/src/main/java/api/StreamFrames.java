@@ -0,0 +1,213 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package api;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * The binary messages of the recognition stream at {@link ApiUrls#URL_RECOG_STREAM}.
+ * Over one WebSocket connection the client sends frames, each a frame header
+ * followed by the raw pixels of the image, and the service answers every frame
+ * with a result as soon as it is done, in any order: a result header, followed
+ * by the raw pixels of the resulting image if the frame was recognised. The
+ * frame ID ties a result to its frame. All numbers are big-endian.
+ * <pre>
+ * frame:  version(1) kind(1) imageType(2) width(4) height(4) frameId(8) deadlineMillis(4) pixels
+ * result: version(1) status(1) imageType(2) width(4) height(4) frameId(8) modelVersion(8) retryAfterSeconds(4)
+ *         predictedPerson(2 + UTF-8) message(2 + UTF-8) pixels
+ * </pre>
+ * The strings are written as by {@link DataOutput#writeUTF}. The camera ID and
+ * the algorithm are sent once, as headers of the handshake.
+ */
+public class StreamFrames {
+
+    public static final byte VERSION = 1;
+
+    /** Frame kinds: detect faces, as /recog/detect, or detect and identify them, as /recog/detectIdentify */
+    public static final byte DETECT = 0;
+    public static final byte IDENTIFY = 1;
+
+    /** Result statuses. The message of a recognised frame is its server timing, else why it failed */
+    public static final byte RECOGNISED = 0;
+    /** Shed by the service, or more frames sent than it accepts at once; retryAfterSeconds says when to send again */
+    public static final byte OVERLOADED = 1;
+    public static final byte FAILED = 2;
+
+    /** The deadline of frames leaving it to the service */
+    public static final int DEFAULT_DEADLINE = 0;
+    /** The largest message either side accepts */
+    public static final int MAX_MESSAGE_BYTES = 16 * 1024 * 1024;
+
+    public static void writeFrameHeader(DataOutput out, byte kind, int imageType, int width, int height,
+                                        long frameId, int deadlineMillis) throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(kind);
+        out.writeShort(imageType);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeLong(frameId);
+        out.writeInt(deadlineMillis);
+    }
+
+    public static FrameHeader readFrameHeader(DataInput in) throws IOException {
+        checkVersion(in.readByte());
+        byte kind = in.readByte();
+        if (kind != DETECT && kind != IDENTIFY) {
+            throw new IOException("Unknown frame kind " + kind);
+        }
+        return new FrameHeader(kind, in.readShort(), in.readInt(), in.readInt(), in.readLong(), in.readInt());
+    }
+
+    public static void writeResultHeader(DataOutput out, byte status, int imageType, int width, int height, long frameId,
+                                         long modelVersion, int retryAfterSeconds, String predictedPerson, String message)
+            throws IOException {
+        out.writeByte(VERSION);
+        out.writeByte(status);
+        out.writeShort(imageType);
+        out.writeInt(width);
+        out.writeInt(height);
+        out.writeLong(frameId);
+        out.writeLong(modelVersion);
+        out.writeInt(retryAfterSeconds);
+        out.writeUTF(predictedPerson == null ? "" : predictedPerson);
+        out.writeUTF(message == null ? "" : message);
+    }
+
+    public static ResultHeader readResultHeader(DataInput in) throws IOException {
+        checkVersion(in.readByte());
+        return new ResultHeader(in.readByte(), in.readShort(), in.readInt(), in.readInt(), in.readLong(), in.readLong(),
+                in.readInt(), in.readUTF(), in.readUTF());
+    }
+
+    private static void checkVersion(byte version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported stream version " + version + ", expected " + VERSION);
+        }
+    }
+
+    public static class FrameHeader {
+
+        private final byte kind;
+        private final int imageType;
+        private final int width;
+        private final int height;
+        private final long frameId;
+        private final int deadlineMillis;
+
+        FrameHeader(byte kind, int imageType, int width, int height, long frameId, int deadlineMillis) {
+            this.kind = kind;
+            this.imageType = imageType;
+            this.width = width;
+            this.height = height;
+            this.frameId = frameId;
+            this.deadlineMillis = deadlineMillis;
+        }
+
+        public byte getKind() {
+            return kind;
+        }
+
+        public int getImageType() {
+            return imageType;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getFrameId() {
+            return frameId;
+        }
+
+        /**
+         * @return the deadline in milliseconds from when the service receives the frame, or DEFAULT_DEADLINE.
+         */
+        public int getDeadlineMillis() {
+            return deadlineMillis;
+        }
+    }
+
+    public static class ResultHeader {
+
+        private final byte status;
+        private final int imageType;
+        private final int width;
+        private final int height;
+        private final long frameId;
+        private final long modelVersion;
+        private final int retryAfterSeconds;
+        private final String predictedPerson;
+        private final String message;
+
+        ResultHeader(byte status, int imageType, int width, int height, long frameId, long modelVersion,
+                     int retryAfterSeconds, String predictedPerson, String message) {
+            this.status = status;
+            this.imageType = imageType;
+            this.width = width;
+            this.height = height;
+            this.frameId = frameId;
+            this.modelVersion = modelVersion;
+            this.retryAfterSeconds = retryAfterSeconds;
+            this.predictedPerson = predictedPerson;
+            this.message = message;
+        }
+
+        public byte getStatus() {
+            return status;
+        }
+
+        public int getImageType() {
+            return imageType;
+        }
+
+        public int getWidth() {
+            return width;
+        }
+
+        public int getHeight() {
+            return height;
+        }
+
+        public long getFrameId() {
+            return frameId;
+        }
+
+        public long getModelVersion() {
+            return modelVersion;
+        }
+
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+
+        public String getPredictedPerson() {
+            return predictedPerson;
+        }
+
+        public String getMessage() {
+            return message;
+        }
+    }
+}
@@ -0,0 +1,183 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+
+package dto;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Progress and outcome of a bulk enrollment, see {@link api.ApiUrls#URL_RECOG_ENROLL}.
+ */
+public class EnrollmentDTO {
+
+    public static final String RUNNING = "RUNNING";
+    public static final String DONE = "DONE";
+    public static final String FAILED = "FAILED";
+
+    private String id;
+    private String state;
+    private int entries;
+    private int enrolled;
+    private int skipped;
+    private int failed;
+    private int labels;
+    private long modelVersion;
+    private String error;
+    private List<FileError> errors = new ArrayList<FileError>();
+
+    public EnrollmentDTO() {
+
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    /**
+     * @return RUNNING while the archive is read, then DONE once the images are enrolled, or FAILED.
+     */
+    public String getState() {
+        return state;
+    }
+
+    public void setState(String state) {
+        this.state = state;
+    }
+
+    /**
+     * @return the number of files read from the archive so far.
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    public void setEntries(int entries) {
+        this.entries = entries;
+    }
+
+    /**
+     * @return the number of images decoded so far, which are enrolled together at the end.
+     */
+    public int getEnrolled() {
+        return enrolled;
+    }
+
+    public void setEnrolled(int enrolled) {
+        this.enrolled = enrolled;
+    }
+
+    /**
+     * @return the number of files left out without an error, such as the labels of other shards.
+     */
+    public int getSkipped() {
+        return skipped;
+    }
+
+    public void setSkipped(int skipped) {
+        this.skipped = skipped;
+    }
+
+    public int getFailed() {
+        return failed;
+    }
+
+    public void setFailed(int failed) {
+        this.failed = failed;
+    }
+
+    /**
+     * @return the number of distinct labels among the enrolled images.
+     */
+    public int getLabels() {
+        return labels;
+    }
+
+    public void setLabels(int labels) {
+        this.labels = labels;
+    }
+
+    /**
+     * @return the version of the model the images were enrolled in, once DONE.
+     */
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    public void setModelVersion(long modelVersion) {
+        this.modelVersion = modelVersion;
+    }
+
+    /**
+     * @return why the enrollment as a whole FAILED, or null.
+     */
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    /**
+     * @return the files that failed and why, up to a limit; see {@link #getFailed} for all of them.
+     */
+    public List<FileError> getErrors() {
+        return errors;
+    }
+
+    public void setErrors(List<FileError> errors) {
+        this.errors = errors;
+    }
+
+    public static class FileError {
+
+        private String file;
+        private String error;
+
+        public FileError() {
+
+        }
+
+        public FileError(String file, String error) {
+            this.file = file;
+            this.error = error;
+        }
+
+        public String getFile() {
+            return file;
+        }
+
+        public void setFile(String file) {
+            this.file = file;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        public void setError(String error) {
+            this.error = error;
+        }
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package dto;
+
+/**
+ * The closest training image one shard of a gallery found for a face, see
+ * {@link api.ApiUrls#URL_RECOG_MATCH}.
+ */
+public class MatchDTO {
+
+    private String predictedPerson;
+    private int label;
+    private double distance;
+    private long modelVersion;
+
+    public MatchDTO() {
+
+    }
+
+    public MatchDTO(String predictedPerson, int label, double distance, long modelVersion) {
+        this.predictedPerson = predictedPerson;
+        this.label = label;
+        this.distance = distance;
+        this.modelVersion = modelVersion;
+    }
+
+    public String getPredictedPerson() {
+        return predictedPerson;
+    }
+
+    public void setPredictedPerson(String predictedPerson) {
+        this.predictedPerson = predictedPerson;
+    }
+
+    /**
+     * @return the label of the closest training image, or -1 if the shard has none.
+     */
+    public int getLabel() {
+        return label;
+    }
+
+    public void setLabel(int label) {
+        this.label = label;
+    }
+
+    public double getDistance() {
+        return distance;
+    }
+
+    public void setDistance(double distance) {
+        this.distance = distance;
+    }
+
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    public void setModelVersion(long modelVersion) {
+        this.modelVersion = modelVersion;
+    }
+}
@@ -25,6 +25,7 @@ public class RecognitionDTO {
     private byte[] bytes;
     private String predictedPerson;
     private int type;
+    private long modelVersion;
 
     public RecognitionDTO() {
 
@@ -70,6 +71,18 @@ public class RecognitionDTO {
         return type;
     }
 
+    /**
+     * @return the version of the model the person was predicted with, or of the
+     * current model for detection only.
+     */
+    public long getModelVersion() {
+        return modelVersion;
+    }
+
+    public void setModelVersion(long modelVersion) {
+        this.modelVersion = modelVersion;
+    }
+
 }
 
 
@@ -0,0 +1,89 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jfr;
+
+import jdk.jfr.EventType;
+
+/**
+ * Flight Recorder events of the face recognition pipeline, in the
+ * "Face Recognition" category of a recording. Record them with e.g.
+ * <pre>-XX:StartFlightRecording=settings=profile,filename=recording.jfr</pre>
+ * On JVMs without Flight Recorder (before 8u262) no events are created.
+ */
+public final class PipelineEvents {
+
+    public static final String OFFERED = "offered";
+    public static final String REPLACED = "replaced";
+    public static final String TAKEN = "taken";
+
+    private static final boolean AVAILABLE = flightRecorderAvailable();
+
+    private PipelineEvents() {
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * @return whether a running recording records stage events, checked without creating one.
+     */
+    static boolean isStageEnabled() {
+        return AVAILABLE && Types.STAGE.isEnabled();
+    }
+
+    /**
+     * Records a frame handed over through a queue.
+     * @param action one of OFFERED, REPLACED or TAKEN.
+     * @param waitedNanos how long the frame waited in the queue, 0 if not known.
+     */
+    public static void handoff(String queue, String action, long frameId, String cameraId, long waitedNanos) {
+        if (!AVAILABLE || !Types.HANDOFF.isEnabled()) {
+            return;
+        }
+        HandoffEvent event = new HandoffEvent();
+        if (event.shouldCommit()) {
+            event.queue = queue;
+            event.action = action;
+            event.frameId = frameId;
+            event.cameraId = cameraId;
+            event.waited = waitedNanos;
+            event.commit();
+        }
+    }
+
+    /**
+     * The event types, loaded only on JVMs with Flight Recorder. Asking them
+     * is cheaper than creating an event to ask it, on every frame.
+     */
+    private static final class Types {
+
+        static final EventType STAGE = EventType.getEventType(StageEvent.class);
+        static final EventType HANDOFF = EventType.getEventType(HandoffEvent.class);
+    }
+
+    private static boolean flightRecorderAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+}
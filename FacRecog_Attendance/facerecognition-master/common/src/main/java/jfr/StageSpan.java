@@ -0,0 +1,91 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package jfr;
+
+/**
+ * A stage of the pipeline being timed for Flight Recorder. When no recording
+ * is running, or the JVM has no Flight Recorder, beginning and ending a span
+ * does nothing but one check, so spans can stay in place all the time.
+ * <pre>
+ * StageSpan span = StageSpan.begin("detect", frameId, cameraId, width, height);
+ * ...
+ * span.end();
+ * </pre>
+ */
+public final class StageSpan {
+
+    public static final String OK = "ok";
+
+    private static final StageSpan DISABLED = new StageSpan(null);
+
+    private final StageEvent event;
+
+    private StageSpan(StageEvent event) {
+        this.event = event;
+    }
+
+    /**
+     * @param frameId ID of the frame, or -1 if not known.
+     * @param cameraId ID of the camera the frame came from, may be null.
+     */
+    public static StageSpan begin(String stage, long frameId, String cameraId, int width, int height) {
+        if (!PipelineEvents.isStageEnabled()) {
+            return DISABLED;
+        }
+        StageEvent event = new StageEvent();
+        event.stage = stage;
+        event.frameId = frameId;
+        event.cameraId = cameraId;
+        event.width = width;
+        event.height = height;
+        event.begin();
+        return new StageSpan(event);
+    }
+
+    /**
+     * Sets the amount of data the stage handled.
+     */
+    public StageSpan bytes(long bytes) {
+        if (event != null) {
+            event.bytes = bytes;
+        }
+        return this;
+    }
+
+    public void end() {
+        end(OK);
+    }
+
+    /**
+     * @param outcome how the stage ended, e.g. "ok" or the name of the exception that ended it.
+     */
+    public void end(String outcome) {
+        if (event != null) {
+            event.end();
+            if (event.shouldCommit()) {
+                event.outcome = outcome;
+                event.commit();
+            }
+        }
+    }
+
+    public void failed(Throwable cause) {
+        end(cause.getClass().getSimpleName());
+    }
+}
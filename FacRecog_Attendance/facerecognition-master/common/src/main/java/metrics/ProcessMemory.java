@@ -0,0 +1,94 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package metrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+/**
+ * Memory use of the whole process as the operating system sees it, next to
+ * what the JVM knows about, so native memory outside the heap can be told
+ * apart. Resident memory is read from /proc and is only known on Linux.
+ */
+public final class ProcessMemory {
+
+    private static final File STATUS = new File("/proc/self/status");
+
+    private ProcessMemory() {
+    }
+
+    /**
+     * @return the resident set size of the process in bytes, or -1 if not known.
+     */
+    public static long getResidentBytes() {
+        if (!STATUS.canRead()) {
+            return -1;
+        }
+        try {
+            List<String> lines = Files.readAllLines(STATUS.toPath(), StandardCharsets.US_ASCII);
+            for (String line : lines) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring(6).replace("kB", "").trim()) * 1024;
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            // not a format we know
+        }
+        return -1;
+    }
+
+    /**
+     * @return memory committed by the JVM for the heap and its own non-heap areas, such as metaspace and code.
+     */
+    public static long getJvmCommittedBytes() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        return memory.getHeapMemoryUsage().getCommitted() + memory.getNonHeapMemoryUsage().getCommitted();
+    }
+
+    /**
+     * @return bytes used by direct and mapped NIO buffers.
+     */
+    public static long getBufferPoolBytes() {
+        long bytes = 0;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            bytes += Math.max(0, pool.getMemoryUsed());
+        }
+        return bytes;
+    }
+
+    /**
+     * @return an estimate of the native memory allocated outside the JVM's own
+     * accounting, e.g. by OpenCV: resident memory minus what the JVM has committed,
+     * or -1 if resident memory is not known. Thread stacks and the JVM's own
+     * native structures are included.
+     */
+    public static long getUnaccountedNativeBytes() {
+        long resident = getResidentBytes();
+        if (resident < 0) {
+            return -1;
+        }
+        return Math.max(0, resident - getJvmCommittedBytes() - getBufferPoolBytes());
+    }
+}
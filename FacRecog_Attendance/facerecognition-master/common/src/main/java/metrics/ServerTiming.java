@@ -0,0 +1,117 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package metrics;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The time a request spent in each stage on the server, carried back to the
+ * client in the standard Server-Timing response header, e.g.
+ * <pre>decode;dur=1.2, resize;dur=0.4, detect;dur=14.9, total;dur=17.3</pre>
+ * Durations are in milliseconds. Not thread safe: a request is timed by one
+ * thread at a time.
+ */
+public class ServerTiming {
+
+    public static final String TOTAL = "total";
+
+    private final Map<String, Double> durations = new LinkedHashMap<>();
+
+    /**
+     * Adds the duration of a stage. A stage run several times is reported once,
+     * with the durations summed.
+     */
+    public void add(String stage, long nanos) {
+        Double previous = durations.get(stage);
+        double millis = nanos / 1e6;
+        durations.put(stage, previous == null ? millis : previous + millis);
+    }
+
+    /**
+     * @return the duration of the stage in milliseconds, or -1 if it was not reported.
+     */
+    public double getMillis(String stage) {
+        Double millis = durations.get(stage);
+        return millis == null ? -1 : millis;
+    }
+
+    /**
+     * @return the total time in milliseconds, or the sum of all stages if the total
+     * was not reported, as when the header is sent before the request has completed.
+     */
+    public double getTotalMillis() {
+        Double total = durations.get(TOTAL);
+        if (total != null) {
+            return total;
+        }
+        double sum = 0;
+        for (double millis : durations.values()) {
+            sum += millis;
+        }
+        return sum;
+    }
+
+    public Map<String, Double> getDurations() {
+        return Collections.unmodifiableMap(durations);
+    }
+
+    public String toHeaderValue() {
+        StringBuilder header = new StringBuilder();
+        for (Map.Entry<String, Double> duration : durations.entrySet()) {
+            if (header.length() > 0) {
+                header.append(", ");
+            }
+            header.append(duration.getKey()).append(";dur=").append(String.format(Locale.ROOT, "%.2f", duration.getValue()));
+        }
+        return header.toString();
+    }
+
+    /**
+     * Reads a Server-Timing header value. Metrics without a duration are skipped.
+     * @param header the header value, may be null.
+     */
+    public static ServerTiming parse(String header) {
+        ServerTiming timing = new ServerTiming();
+        if (header == null) {
+            return timing;
+        }
+        for (String metric : header.split(",")) {
+            String[] parts = metric.trim().split(";");
+            for (int i = 1; i < parts.length; i++) {
+                String param = parts[i].trim();
+                if (param.startsWith("dur=")) {
+                    try {
+                        timing.durations.put(parts[0].trim(), Double.parseDouble(param.substring(4)));
+                    } catch (NumberFormatException e) {
+                        // not a duration we can use
+                    }
+                }
+            }
+        }
+        return timing;
+    }
+
+    @Override
+    public String toString() {
+        return toHeaderValue();
+    }
+}
@@ -19,45 +19,59 @@
 package opencv;
 
 import com.esotericsoftware.minlog.Log;
+import jfr.PipelineEvents;
+import jfr.StageSpan;
 import org.bytedeco.javacv.*;
 import static org.bytedeco.javacpp.opencv_core.*;
+import static org.bytedeco.javacpp.opencv_imgproc.*;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
 import java.util.Observable;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 
 public class CameraCapture extends Observable {
 
-    private final LinkedBlockingQueue<BufferedImage> capturedImageQueue;
+    private static final int PREVIEW_MAX_FPS = 15;
+    private static final int PREVIEW_DOWNSCALE = 2;
+    private static final int PREVIEW_BUFFERS = 2;
+    private static final int SNAPSHOT_BUFFERS = 2;
+    private static final int CAMERA_DEVICE = 0;
+    private static final String SNAPSHOT_QUEUE = "snapshot";
+
+    private final FrameSlot<Snapshot> snapshotSlot;
+    private final FrameSlot<IplImage> previewSlot = new FrameSlot<IplImage>();
+    private final Queue<IplImage> freePreviewImages = new ConcurrentLinkedQueue<IplImage>();
+    private final Queue<IplImage> freeSnapshotImages = new ConcurrentLinkedQueue<IplImage>();
     private CanvasFrame captureCanvasFrame;
     private FrameGrabber cameraFrameGrabber;
 
-    private double captureIntervalInSeconds = 0.5;
-    private final CvMemStorage storage;
-    private final Java2DFrameConverter frame2bufferedImageConverter;
+    private volatile double captureIntervalInSeconds = 0.5;
+    private volatile boolean capturing;
+    private int allocatedPreviewImages;
+    private long nextFrameId;
+    private final String cameraId;
     private WindowRenderer windowRenderer;
 
-    public CameraCapture(final int prefWidth, final int prefHeight, LinkedBlockingQueue<BufferedImage> capturedImageQueue) {
+    public CameraCapture(final int prefWidth, final int prefHeight, FrameSlot<Snapshot> snapshotSlot) {
 
-        this.capturedImageQueue = capturedImageQueue;
+        this.snapshotSlot = snapshotSlot;
+        this.cameraId = Util.getHostName() + "/" + CAMERA_DEVICE;
 
         try {
-            cameraFrameGrabber = FrameGrabber.createDefault(0);
+            cameraFrameGrabber = FrameGrabber.createDefault(CAMERA_DEVICE);
         } catch (FrameGrabber.Exception e) {
-            cameraFrameGrabber = new OpenCVFrameGrabber(0);
+            cameraFrameGrabber = new OpenCVFrameGrabber(CAMERA_DEVICE);
         }
 
         cameraFrameGrabber.setImageHeight(prefHeight);
         cameraFrameGrabber.setImageWidth(prefWidth);
         cameraFrameGrabber.setImageMode(FrameGrabber.ImageMode.GRAY);
 
-        frame2bufferedImageConverter = new Java2DFrameConverter();
-
-        storage = CvMemStorage.create();
-
         createCaptureDisplay(prefHeight, prefWidth);
     }
 
@@ -74,6 +88,13 @@ public class CameraCapture extends Observable {
         captureCanvasFrame.setDefaultCloseOperation(WindowConstants.HIDE_ON_CLOSE);
     }
 
+    /**
+     * @return the ID sent along with every snapshot: the host name and the camera device number.
+     */
+    public String getCameraId() {
+        return cameraId;
+    }
+
     /**
      * Modify how much time is waited in between taking snapshots of the
      * camera feed.
@@ -113,42 +134,62 @@ public class CameraCapture extends Observable {
 
 
     /**
-     * Start the camera capture and render the camera feed onto
-     * the CanvasFrame. A snapshot is captured from the camera feed
-     * every X-seconds, where X is specified by the user and
-     * defaults to 0.5seconds. The snapshot is sent to a face recognition
-     * service.
+     * Start the camera capture. Every grabbed frame may be handed to the
+     * preview renderer, which draws it onto the CanvasFrame on its own
+     * thread at a capped, downscaled rate. A snapshot is captured from the
+     * camera feed every X-seconds, where X is specified by the user and
+     * defaults to 0.5seconds, and handed over to be sent to a face
+     * recognition service. A slow preview or service never lowers the grab rate.
      * @throws FrameGrabber.Exception
      */
     private void startCameraCapture() throws FrameGrabber.Exception, InterruptedException {
         cameraFrameGrabber.start();
+        capturing = true;
+        Thread previewThread = new Thread(new PreviewRenderer(), "camera-preview");
+        previewThread.setDaemon(true);
+        previewThread.start();
+
         org.bytedeco.javacv.Frame grabbedFrame;
         long timeSinceSnapshot = System.currentTimeMillis();
+        long timeSincePreview = 0;
         long fpsTime = System.currentTimeMillis();
         int nGrabbedFrames = 0;
         long prevTime = System.currentTimeMillis();
 
-        while (captureCanvasFrame.isVisible() && (grabbedFrame = cameraFrameGrabber.grab()) != null) {
-            IplImage iplImage = ((IplImage) grabbedFrame.opaque);
-            cvFlip(iplImage, iplImage, 1);
-
-            BufferedImage bfimg = frame2bufferedImageConverter.convert(grabbedFrame);
-            captureCanvasFrame.showImage(bfimg);
+        try {
+            while (captureCanvasFrame.isVisible() && (grabbedFrame = cameraFrameGrabber.grab()) != null) {
+                IplImage iplImage = ((IplImage) grabbedFrame.opaque);
 
-            cvClearMemStorage(storage);
+                if (System.currentTimeMillis() - timeSincePreview >= 1000 / PREVIEW_MAX_FPS) {
+                    if (handOverPreview(iplImage)) {
+                        timeSincePreview = System.currentTimeMillis();
+                    }
+                }
 
-            nGrabbedFrames++;
-            if (System.currentTimeMillis() - fpsTime > 1000) {
-                Log.info("Capture frame rate: " + nGrabbedFrames);
-                nGrabbedFrames = 0;
-                fpsTime = System.currentTimeMillis();
+                nGrabbedFrames++;
+                if (System.currentTimeMillis() - fpsTime > 1000) {
+                    Log.info("Capture frame rate: " + nGrabbedFrames);
+                    nGrabbedFrames = 0;
+                    fpsTime = System.currentTimeMillis();
+                }
+                if (System.currentTimeMillis() - timeSinceSnapshot > ((long) (captureIntervalInSeconds * 1000))) {
+                    Log.info("Captured image size: <" + grabbedFrame.imageWidth + "x" + grabbedFrame.imageHeight + ">, Depth: " + grabbedFrame.imageDepth + ", Channels: " + grabbedFrame.imageChannels + " prev. capture(ms): " + (System.currentTimeMillis() - prevTime));
+                    handOverSnapshot(iplImage);
+                    timeSinceSnapshot = System.currentTimeMillis();
+                    prevTime = timeSinceSnapshot;
+                }
             }
-            if (System.currentTimeMillis() - timeSinceSnapshot > ((long) (captureIntervalInSeconds * 1000))) {
-                Log.info("Captured image size: <" + grabbedFrame.imageWidth + "x" + grabbedFrame.imageHeight + ">, Depth: " + grabbedFrame.imageDepth + ", Channels: " + grabbedFrame.imageChannels + " prev. capture(ms): " + (System.currentTimeMillis() - prevTime));
-                capturedImageQueue.put(bfimg);
-                timeSinceSnapshot = System.currentTimeMillis();
-                prevTime = timeSinceSnapshot;
+        } finally {
+            capturing = false;
+            joinUninterruptibly(previewThread);
+            releaseAll(freePreviewImages);
+            allocatedPreviewImages = 0;
+            // a snapshot being sent is handed back later, and reused by the next capture
+            Snapshot pending = snapshotSlot.poll();
+            if (pending != null) {
+                pending.release();
             }
+            releaseAll(freeSnapshotImages);
         }
         Log.info("Camera frame grabber stopped");
         cameraFrameGrabber.stop();
@@ -157,8 +198,130 @@ public class CameraCapture extends Observable {
     }
 
     /**
-     * A SwingWorker which captures the camera feed and
-     * renders the result to a CanvasFrame.
+     * Downscales and mirrors the frame into a free preview buffer and hands it
+     * to the preview renderer.
+     * @return false if the renderer still holds every preview buffer.
+     */
+    private boolean handOverPreview(IplImage frame) {
+        StageSpan span = StageSpan.begin("camera.preview", -1, cameraId, frame.width(), frame.height());
+        IplImage preview = freePreviewImages.poll();
+        int width = frame.width() / PREVIEW_DOWNSCALE;
+        int height = frame.height() / PREVIEW_DOWNSCALE;
+        if (preview != null && (preview.width() != width || preview.height() != height || preview.nChannels() != frame.nChannels())) {
+            Util.releaseImage(preview);
+            preview = null;
+            allocatedPreviewImages--;
+        }
+        if (preview == null) {
+            if (allocatedPreviewImages >= PREVIEW_BUFFERS) {
+                span.end("skipped");
+                return false;
+            }
+            preview = NativeAllocations.allocated(IplImage.create(width, height, frame.depth(), frame.nChannels()));
+            allocatedPreviewImages++;
+        }
+        cvResize(frame, preview, CV_INTER_AREA);
+        cvFlip(preview, preview, 1);
+
+        IplImage replaced = previewSlot.offer(preview);
+        if (replaced != null) {
+            freePreviewImages.offer(replaced);
+        }
+        span.end();
+        return true;
+    }
+
+    /**
+     * Copies the frame, as grabbed, into a free snapshot buffer and hands it
+     * over to be sent. A snapshot which has not been taken yet is replaced.
+     */
+    private void handOverSnapshot(IplImage frame) {
+        long captureTime = System.currentTimeMillis();
+        long captureNanos = System.nanoTime();
+        long frameId = nextFrameId++;
+        StageSpan span = StageSpan.begin("camera.snapshot", frameId, cameraId, frame.width(), frame.height()).bytes(frame.imageSize());
+        IplImage copy = freeSnapshotImages.poll();
+        if (copy != null && (copy.width() != frame.width() || copy.height() != frame.height() || copy.nChannels() != frame.nChannels())) {
+            Util.releaseImage(copy);
+            copy = null;
+        }
+        if (copy == null) {
+            copy = NativeAllocations.allocated(IplImage.create(frame.width(), frame.height(), frame.depth(), frame.nChannels()));
+        }
+        cvCopy(frame, copy);
+
+        Snapshot replaced = snapshotSlot.offer(new Snapshot(frameId, cameraId, copy, captureTime, captureNanos, freeSnapshotImages));
+        span.end();
+        PipelineEvents.handoff(SNAPSHOT_QUEUE, PipelineEvents.OFFERED, frameId, cameraId, 0);
+        if (replaced != null) {
+            Log.info("Snapshot dropped, the previous one was not sent yet");
+            PipelineEvents.handoff(SNAPSHOT_QUEUE, PipelineEvents.REPLACED, replaced.getFrameId(), cameraId,
+                    captureNanos - replaced.getCaptureNanos());
+            replaced.release();
+        }
+        while (freeSnapshotImages.size() > SNAPSHOT_BUFFERS) {
+            Util.releaseImage(freeSnapshotImages.poll());
+        }
+    }
+
+    /**
+     * Waits for the preview renderer to hand back its buffers, even when the
+     * capture is being cancelled, so that no buffer is freed while in use.
+     */
+    private void joinUninterruptibly(Thread thread) {
+        boolean interrupted = false;
+        while (thread.isAlive()) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseAll(Queue<IplImage> images) {
+        IplImage image;
+        while ((image = images.poll()) != null) {
+            Util.releaseImage(image);
+        }
+    }
+
+    /**
+     * Draws the latest preview frame onto the CanvasFrame, decoupled from
+     * the capture loop.
+     */
+    private class PreviewRenderer implements Runnable {
+
+        private BufferedImage previewImage;
+
+        @Override
+        public void run() {
+            while (capturing) {
+                try {
+                    IplImage preview = previewSlot.poll(100, TimeUnit.MILLISECONDS);
+                    if (preview != null) {
+                        StageSpan span = StageSpan.begin("camera.render", -1, cameraId, preview.width(), preview.height());
+                        previewImage = Util.iplImageToBufferedImage(preview, previewImage);
+                        freePreviewImages.offer(preview);
+                        captureCanvasFrame.showImage(previewImage);
+                        span.end();
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            IplImage preview = previewSlot.poll();
+            if (preview != null) {
+                freePreviewImages.offer(preview);
+            }
+        }
+    }
+
+    /**
+     * A SwingWorker which runs the camera capture.
      */
     private class WindowRenderer extends SwingWorker<Void, Void> {
 
@@ -31,41 +31,99 @@ import static org.bytedeco.javacpp.opencv_objdetect.*;
 
 public class FaceDetector {
 
+    public static final double DEFAULT_SCALE_FACTOR = 1.1;
+    public static final int DEFAULT_MIN_NEIGHBOURS = 4;
+
     private CvHaarClassifierCascade classifier = null;
-    private CvMemStorage memStorage;
+    private volatile double scaleFactor = DEFAULT_SCALE_FACTOR;
+    private volatile int minNeighbours = DEFAULT_MIN_NEIGHBOURS;
+    private final ThreadLocal<CvMemStorage> memStorage = new ThreadLocal<CvMemStorage>() {
+        @Override
+        protected CvMemStorage initialValue() {
+            CvMemStorage storage = CvMemStorage.create();
+            NativeAllocations.allocated(storage, storage.block_size(), "CvMemStorage");
+            return storage;
+        }
+    };
     CvFont mCvFont = new CvFont();
 
     public FaceDetector(String cascadeResourcePath) throws FileNotFoundException, URISyntaxException {
+        this(new File(Util.getProjectRootDir(FaceDetector.class) + cascadeResourcePath));
+    }
+
+    public FaceDetector(File cascadeFile) throws FileNotFoundException {
         Loader.load(opencv_objdetect.class);
 
-        String rootPath = Util.getProjectRootDir(FaceDetector.class);
-        Log.info("Loading feature-cascade '" + cascadeResourcePath + "' @ " + rootPath);
-        File file = new File(rootPath + cascadeResourcePath);
+        Log.info("Loading feature-cascade @ " + cascadeFile.getAbsolutePath());
 
-        classifier = new CvHaarClassifierCascade(cvLoad(file.getAbsolutePath()));
+        classifier = new CvHaarClassifierCascade(cvLoad(cascadeFile.getAbsolutePath()));
 
         if (classifier.isNull()) {
-            Log.error("Error loading classifier file " + cascadeResourcePath + " @ " + file.getAbsolutePath());
-            throw new FileNotFoundException(cascadeResourcePath);
+            Log.error("Error loading classifier file " + cascadeFile.getAbsolutePath());
+            throw new FileNotFoundException(cascadeFile.getAbsolutePath());
         }
         cvInitFont(mCvFont, CV_FONT_HERSHEY_SIMPLEX, 0.7, 0.7);
-
-        memStorage = CvMemStorage.create();
     }
 
 
-    public void detectFaces(Mat grayImageMat) {
-        CvSeq faces = cvHaarDetectObjects(grayImageMat.asCvMat(), classifier, memStorage,
-                1.1, 4, CV_HAAR_DO_CANNY_PRUNING);
+    public int detectFaces(Mat grayImageMat) {
+        CvMat grayImageHeader = grayImageMat.asCvMat();
+        try {
+            return detectFaces(grayImageHeader);
+        } finally {
+            grayImageHeader.deallocate();
+        }
+    }
+
+    /**
+     * Draws a box around every face detected in the image. Detection results
+     * are kept in a per-thread storage which is cleared after every call.
+     * @param grayImage header of the grayscale image to search.
+     * @return the number of faces found.
+     */
+    public int detectFaces(CvMat grayImage) {
+        CvMemStorage storage = memStorage.get();
+        CvSeq faces = cvHaarDetectObjects(grayImage, classifier, storage,
+                scaleFactor, minNeighbours, CV_HAAR_DO_CANNY_PRUNING);
         int total = faces.total();
 
         for (int i = 0; i < total; i++) {
             CvRect r = new CvRect(cvGetSeqElem(faces, i));
-            int x = r.x(), y = r.y(), w = r.width(), h = r.height();
-            cvRectangle(grayImageMat.asCvMat(), cvPoint(x, y), cvPoint(x + w, y + h), CvScalar.GRAY, 2, 4, 0);
+            cvRectangleR(grayImage, r, CvScalar.GRAY, 2, 4, 0);
+        }
+
+        cvClearMemStorage(storage);
+        return total;
+    }
+
+    /**
+     * @param scaleFactor how much the search window grows between passes, e.g. 1.1.
+     *                    Larger is faster but may miss faces between window sizes.
+     */
+    public void setScaleFactor(double scaleFactor) {
+        if (scaleFactor <= 1) {
+            throw new IllegalArgumentException("Scale factor must be above 1: " + scaleFactor);
         }
+        this.scaleFactor = scaleFactor;
+    }
+
+    public double getScaleFactor() {
+        return scaleFactor;
+    }
+
+    /**
+     * @param minNeighbours how many overlapping detections a face needs. Larger
+     *                      rejects more false faces but also more real ones.
+     */
+    public void setMinNeighbours(int minNeighbours) {
+        if (minNeighbours < 0) {
+            throw new IllegalArgumentException("Min neighbours must not be negative: " + minNeighbours);
+        }
+        this.minNeighbours = minNeighbours;
+    }
 
-        cvClearMemStorage(memStorage);
+    public int getMinNeighbours() {
+        return minNeighbours;
     }
 
     public void drawString(String text, Mat imageMat, CvPoint orig) {
@@ -19,106 +19,730 @@
 package opencv;
 
 import com.esotericsoftware.minlog.Log;
-import org.bytedeco.javacpp.BytePointer;
-import org.bytedeco.javacpp.opencv_contrib.*;
 import org.bytedeco.javacpp.opencv_core.*;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.nio.IntBuffer;
-import java.util.AbstractMap;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import static org.bytedeco.javacpp.opencv_contrib.*;
-import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_highgui.*;
 
 public class FaceRecogniser {
 
-    private FaceRecognizer faceRecognizer;
+    public static final int DEFAULT_DOWNSCALE_FACTOR = 4;
+
+    public enum Algorithm {
+        LBPH, EIGEN, FISHER,
+        /** LBPH computed in Java, with the same results as LBPH */
+        JAVA_LBPH,
+        /** LBPH in Java which only searches the part of the gallery nearest to the query */
+        IVF_LBPH,
+        /** LBPH in Java with the gallery stored off the heap, one byte per histogram value */
+        QUANTIZED_LBPH_8,
+        /** LBPH in Java with the gallery stored off the heap, two bytes per histogram value */
+        QUANTIZED_LBPH_16;
+
+        /**
+         * @return whether images can be added to a trained model, which Eigen and Fisher do not allow.
+         */
+        public boolean isUpdatable() {
+            return this != EIGEN && this != FISHER;
+        }
+
+        RecognitionEngine createEngine(int indexProbes) {
+            switch (this) {
+                case JAVA_LBPH:
+                    return new LbphEngine();
+                case IVF_LBPH:
+                    return new IvfLbphEngine(indexProbes);
+                case QUANTIZED_LBPH_8:
+                    return new QuantizedLbphEngine(8);
+                case QUANTIZED_LBPH_16:
+                    return new QuantizedLbphEngine(16);
+                default:
+                    return new OpenCvEngine(this);
+            }
+        }
+    }
+
+    /**
+     * A predicted person with the distance to the closest training image, and
+     * the version of the model that predicted it.
+     */
+    public static class Prediction {
+        public final int label;
+        public final String person;
+        public final double distance;
+        public final long modelVersion;
+
+        /**
+         * @param distance the distance to the closest training image, or NaN if not known.
+         */
+        public Prediction(int label, String person, double distance, long modelVersion) {
+            this.label = label;
+            this.person = person;
+            this.distance = distance;
+            this.modelVersion = modelVersion;
+        }
+    }
+
+    /**
+     * The trained engines with the names of their labels, replaced as a whole
+     * when trained again or enrolled in, so a prediction uses one model
+     * throughout. Predictions hold the model while they use it, see
+     * {@link #acquireModel}, and the model of the recogniser is held until
+     * replaced; once nothing holds it, its engines can be released.
+     */
+    private static class Model {
+        final Map<Algorithm, RecognitionEngine> engines;
+        final Map<Integer, String> names;
+        final long version;
+        private final AtomicInteger holders = new AtomicInteger(1);
+
+        Model(Map<Algorithm, RecognitionEngine> engines, Map<Integer, String> names, long version) {
+            this.engines = engines;
+            this.names = names;
+            this.version = version;
+        }
+
+        static Model empty(long version) {
+            return new Model(new EnumMap<Algorithm, RecognitionEngine>(Algorithm.class), new HashMap<Integer, String>(), version);
+        }
+
+        /**
+         * @return false if the model was released already, and must not be used.
+         */
+        boolean hold() {
+            while (true) {
+                int count = holders.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (holders.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * @return whether that was the last holder.
+         */
+        boolean unhold() {
+            return holders.decrementAndGet() == 0;
+        }
+
+        RecognitionEngine engineFor(Algorithm algorithm) {
+            RecognitionEngine engine = engines.get(algorithm);
+            if (engine == null) {
+                throw new IllegalArgumentException(algorithm + " is not trained, only " + engines.keySet());
+            }
+            return engine;
+        }
+
+        String nameOf(RecognitionEngine engine, int label) {
+            String name = names.get(label);
+            if (name != null) {
+                return name;
+            }
+            return engine.getLabelInfo(label);
+        }
+    }
+
+    /**
+     * Requests an ensemble prediction in place of an algorithm name, see {@link #predictEnsemble}.
+     */
+    public static final String ENSEMBLE = "ENSEMBLE";
+
+    private volatile Model model = Model.empty(0);
+    // the number of models holding every engine, which is released when none does
+    private final Map<RecognitionEngine, Integer> engineHolders = new IdentityHashMap<RecognitionEngine, Integer>();
+    private volatile Algorithm algorithm;
+    private final Map<Algorithm, DistanceScale> distanceScales = new EnumMap<Algorithm, DistanceScale>(Algorithm.class);
+    private final ExecutorService ensembleWorkers;
+    private volatile int indexProbes = IvfLbphEngine.DEFAULT_PROBES;
+    private final int downscaleFactor;
+    private final int shardIndex;
+    private final int shardCount;
     private String trainResultsStoragePath;
     private File absoluteTrainingSetPath;
 
     public FaceRecogniser(String trainingSetDirRelative, String trainResultsStoragePath) throws FileNotFoundException {
-        this.trainResultsStoragePath = trainResultsStoragePath;
+        this(trainingSetDirRelative, trainResultsStoragePath, Algorithm.LBPH);
+    }
+
+    public FaceRecogniser(String trainingSetDirRelative, String trainResultsStoragePath, Algorithm algorithm) throws FileNotFoundException {
+        this(trainingSetDirRelative, trainResultsStoragePath, algorithm, 0, 1);
+    }
+
+    /**
+     * Trains with one shard of the training labels only, see {@link #isInShard}.
+     */
+    public FaceRecogniser(String trainingSetDirRelative, String trainResultsStoragePath, Algorithm algorithm,
+                          int shardIndex, int shardCount) throws FileNotFoundException {
+        this(trainingSetDirRelative, trainResultsStoragePath, Collections.singletonList(algorithm), shardIndex, shardCount);
+    }
+
+    /**
+     * Trains all the given algorithms, see {@link #train(List)}. The first one predicts
+     * unless another one is asked for.
+     */
+    public FaceRecogniser(String trainingSetDirRelative, String trainResultsStoragePath, List<Algorithm> algorithms,
+                          int shardIndex, int shardCount) throws FileNotFoundException {
+        this(new File(Util.getProjectRootDir(FaceRecogniser.class) + trainingSetDirRelative), trainResultsStoragePath,
+                DEFAULT_DOWNSCALE_FACTOR, algorithms, shardIndex, shardCount);
+    }
+
+    public FaceRecogniser(File trainingSetDir, String trainResultsStoragePath) {
+        this(trainingSetDir, trainResultsStoragePath, DEFAULT_DOWNSCALE_FACTOR);
+    }
+
+    /**
+     * @param downscaleFactor factor the training images are scaled down by, which
+     *                        must match the frames passed to {@link #predictPerson}.
+     */
+    public FaceRecogniser(File trainingSetDir, String trainResultsStoragePath, int downscaleFactor) {
+        this(trainingSetDir, trainResultsStoragePath, downscaleFactor, Algorithm.LBPH);
+    }
+
+    public FaceRecogniser(File trainingSetDir, String trainResultsStoragePath, int downscaleFactor, Algorithm algorithm) {
+        this(trainingSetDir, trainResultsStoragePath, downscaleFactor, algorithm, 0, 1);
+    }
 
-        String rootPath = Util.getProjectRootDir(FaceRecogniser.class);
-        Log.info("Loading training-images '" + trainingSetDirRelative + "' @ " + rootPath + "\n" + rootPath + trainingSetDirRelative);
-        absoluteTrainingSetPath = new File(rootPath + trainingSetDirRelative);
+    public FaceRecogniser(File trainingSetDir, String trainResultsStoragePath, int downscaleFactor, Algorithm algorithm,
+                          int shardIndex, int shardCount) {
+        this(trainingSetDir, trainResultsStoragePath, downscaleFactor, Collections.singletonList(algorithm), shardIndex, shardCount);
+    }
 
-        setLBPHAlgorithm();
+    /**
+     * @param algorithms the algorithms to train. The first one predicts unless another one is asked for.
+     * @param shardIndex the shard of the training labels to train with, from 0 to shardCount - 1.
+     * @param shardCount the number of shards the labels are divided into, 1 to train with all of them.
+     */
+    public FaceRecogniser(File trainingSetDir, String trainResultsStoragePath, int downscaleFactor, List<Algorithm> algorithms,
+                          int shardIndex, int shardCount) {
+        if (algorithms.isEmpty()) {
+            throw new IllegalArgumentException("No algorithm to train");
+        }
+        if (shardCount < 1 || shardIndex < 0 || shardIndex >= shardCount) {
+            throw new IllegalArgumentException("No shard " + shardIndex + " of " + shardCount);
+        }
+        this.trainResultsStoragePath = trainResultsStoragePath;
+        this.downscaleFactor = downscaleFactor;
+        this.shardIndex = shardIndex;
+        this.shardCount = shardCount;
+
+        Log.info("Loading training-images @ " + trainingSetDir.getAbsolutePath()
+                + (shardCount > 1 ? ", shard " + shardIndex + " of " + shardCount : ""));
+        absoluteTrainingSetPath = trainingSetDir;
+        for (Algorithm algorithm : Algorithm.values()) {
+            distanceScales.put(algorithm, new DistanceScale());
+        }
+        final AtomicInteger workers = new AtomicInteger();
+        ensembleWorkers = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ensemble-" + workers.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+
+        train(algorithms);
+        algorithm = algorithms.get(0);
     }
 
     public void setLBPHAlgorithm() {
-        faceRecognizer = createLBPHFaceRecognizer();
-        train(absoluteTrainingSetPath.getAbsolutePath());
+        setAlgorithm(Algorithm.LBPH);
     }
 
     public void setEigenAlgorithm() {
-        faceRecognizer = createEigenFaceRecognizer();
-        train(absoluteTrainingSetPath.getAbsolutePath());
+        setAlgorithm(Algorithm.EIGEN);
     }
 
     public void setFisherAlgorithm() {
-        faceRecognizer = createFisherFaceRecognizer();
-        train(absoluteTrainingSetPath.getAbsolutePath());
+        setAlgorithm(Algorithm.FISHER);
+    }
+
+    public void setJavaLBPHAlgorithm() {
+        setAlgorithm(Algorithm.JAVA_LBPH);
+    }
+
+    /**
+     * Predicts with the given algorithm from now on. It is only trained if it
+     * has not been already, so switching between trained algorithms is immediate.
+     */
+    public synchronized void setAlgorithm(Algorithm algorithm) {
+        if (!model.engines.containsKey(algorithm)) {
+            train(Collections.singletonList(algorithm));
+        }
+        this.algorithm = algorithm;
+    }
+
+    public Algorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the algorithms trained so far, which requests can choose between.
+     */
+    public Set<Algorithm> getTrainedAlgorithms() {
+        return Collections.unmodifiableSet(model.engines.keySet());
+    }
+
+    /**
+     * @return the version of the model, counted up every time it is trained or enrolled in.
+     */
+    public long getModelVersion() {
+        return model.version;
     }
 
+    public File getTrainingSetDir() {
+        return absoluteTrainingSetPath;
+    }
 
-    private void train(String trainingImagesDir) {
-        File[] trainingImages = Util.findImagesInDirectory(trainingImagesDir);
-        MatVector grayscaledTrainingImages = Util.loadImages(trainingImages, CV_LOAD_IMAGE_GRAYSCALE);
-        AbstractMap.SimpleEntry<Mat, IntStringMap> labelNameMap = createTrainingLabels(trainingImages);
+    /**
+     * Trains all trained algorithms again from the training images as they are
+     * now, and swaps the new model in once done. Predictions in progress finish
+     * with the old one, whose engines are released after the last of them.
+     */
+    public synchronized void retrain() {
+        train(new ArrayList<Algorithm>(model.engines.keySet()));
+    }
 
-        Log.info("Training recognizer");
-        faceRecognizer.setLabelsInfo(labelNameMap.getValue());
-        faceRecognizer.train(grayscaledTrainingImages, labelNameMap.getKey());
+    /**
+     * Trains the given algorithms from one loading of the training images, each
+     * on a thread of its own with the priority of the calling thread. They
+     * replace earlier models of the same algorithms once all of them are
+     * trained; predictions in progress are not disturbed.
+     */
+    public synchronized void train(List<Algorithm> algorithms) {
+        File[] trainingImages = inShard(Util.findImagesInDirectory(absoluteTrainingSetPath.getAbsolutePath()));
+        final MatVector grayscaledTrainingImages = Util.loadImages(trainingImages, CV_LOAD_IMAGE_GRAYSCALE, downscaleFactor);
+        final Map<Integer, String> names = new HashMap<Integer, String>();
+        final int[] labels = createLabels(trainingImages, names);
+        Log.info("Training images loaded.");
+
+        Log.info("Training " + algorithms);
+        Map<Algorithm, RecognitionEngine> trained = new EnumMap<Algorithm, RecognitionEngine>(Algorithm.class);
+        List<Callable<Void>> trainings = new ArrayList<Callable<Void>>();
+        for (Algorithm algorithm : algorithms) {
+            final RecognitionEngine engine = algorithm.createEngine(indexProbes);
+            trained.put(algorithm, engine);
+            trainings.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    engine.train(grayscaledTrainingImages, labels, names);
+                    return null;
+                }
+            });
+        }
+        final int priority = Thread.currentThread().getPriority();
+        final AtomicInteger threads = new AtomicInteger();
+        ExecutorService trainers = Executors.newFixedThreadPool(trainings.size(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "trainer-" + threads.incrementAndGet());
+                thread.setPriority(priority);
+                return thread;
+            }
+        });
+        try {
+            LbphEngine.invokeAll(trainers, trainings);
+        } catch (RuntimeException e) {
+            for (RecognitionEngine engine : trained.values()) {
+                engine.release();
+            }
+            throw e;
+        } finally {
+            trainers.shutdown();
+            // the engines keep what they computed from the images, not the images
+            grayscaledTrainingImages.deallocate();
+        }
+
+        Model old = model;
+        Map<Algorithm, RecognitionEngine> allEngines = new EnumMap<Algorithm, RecognitionEngine>(old.engines);
+        allEngines.putAll(trained);
+        // names of people no longer in the training images only stay while an engine trained with them does
+        Map<Integer, String> allNames = new HashMap<Integer, String>();
+        if (!trained.keySet().containsAll(old.engines.keySet())) {
+            allNames.putAll(old.names);
+        }
+        allNames.putAll(names);
+        publish(new Model(allEngines, allNames, old.version + 1));
+        Log.info("Training done, model version " + model.version + ".");
+    }
 
-        Log.info("Training done.");
+    /**
+     * Sets how many clusters of the gallery IVF_LBPH searches, trading recall for speed.
+     */
+    public void setIndexProbes(int probes) {
+        RecognitionEngine engine = model.engines.get(Algorithm.IVF_LBPH);
+        if (engine != null) {
+            ((IvfLbphEngine) engine).setProbes(probes);
+        }
+        indexProbes = probes;
+    }
+
+    /**
+     * Adds images, named like the training images, to all trained models.
+     * @throws UnsupportedOperationException if Eigen or Fisher is trained, which must be trained again instead.
+     */
+    public synchronized void enroll(File[] imageFiles) {
+        checkUpdatable(model);
+        imageFiles = inShard(imageFiles);
+        if (imageFiles.length == 0) {
+            return;
+        }
+        MatVector grayscaledImages = Util.loadImages(imageFiles, CV_LOAD_IMAGE_GRAYSCALE, downscaleFactor);
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        int[] labels = createLabels(imageFiles, names);
+        try {
+            enroll(grayscaledImages, labels, names);
+        } finally {
+            grayscaledImages.deallocate();
+        }
+    }
+
+    /**
+     * Adds images already prepared like the training images, see
+     * {@link Util#decodeTrainingImage}, to all trained models at once. The
+     * caller keeps only the labels of this shard. The images are added to
+     * copies of the engines, which are swapped in together, so predictions in
+     * progress finish with the engines they started with.
+     * @param names the name of every new label.
+     * @throws UnsupportedOperationException if Eigen or Fisher is trained, which must be trained again instead.
+     */
+    public synchronized void enroll(MatVector grayscaledImages, int[] labels, Map<Integer, String> names) {
+        Model old = model;
+        checkUpdatable(old);
+
+        Log.info("Enrolling " + labels.length + " images");
+        Map<Algorithm, RecognitionEngine> grown = new EnumMap<Algorithm, RecognitionEngine>(Algorithm.class);
+        try {
+            for (Map.Entry<Algorithm, RecognitionEngine> engine : old.engines.entrySet()) {
+                grown.put(engine.getKey(), engine.getValue().updated(grayscaledImages, labels, names));
+            }
+        } catch (RuntimeException e) {
+            for (RecognitionEngine engine : grown.values()) {
+                engine.release();
+            }
+            throw e;
+        }
+        Map<Integer, String> allNames = new HashMap<Integer, String>(old.names);
+        allNames.putAll(names);
+        publish(new Model(grown, allNames, old.version + 1));
+    }
+
+    /**
+     * Swaps a new model in, and lets go of the old one. Called with the lock held.
+     */
+    private void publish(Model next) {
+        synchronized (engineHolders) {
+            for (RecognitionEngine engine : next.engines.values()) {
+                Integer count = engineHolders.get(engine);
+                engineHolders.put(engine, count == null ? 1 : count + 1);
+            }
+        }
+        Model old = model;
+        model = next;
+        unhold(old);
+    }
+
+    /**
+     * @return the current model, which the caller must {@link #unhold} once done with it,
+     *         so its engines are not released meanwhile.
+     */
+    private Model acquireModel() {
+        while (true) {
+            Model current = model;
+            if (current.hold()) {
+                return current;
+            }
+            // replaced and released just now, the next one is published already
+        }
+    }
+
+    /**
+     * Releases the engines of a model nothing holds any more, unless a newer
+     * model still holds them too.
+     */
+    private void unhold(Model held) {
+        if (!held.unhold()) {
+            return;
+        }
+        List<RecognitionEngine> unused = new ArrayList<RecognitionEngine>();
+        synchronized (engineHolders) {
+            for (RecognitionEngine engine : held.engines.values()) {
+                int count = engineHolders.get(engine) - 1;
+                if (count == 0) {
+                    engineHolders.remove(engine);
+                    unused.add(engine);
+                } else {
+                    engineHolders.put(engine, count);
+                }
+            }
+        }
+        for (RecognitionEngine engine : unused) {
+            engine.release();
+        }
+        if (!unused.isEmpty()) {
+            Log.debug("Released " + unused.size() + " engines of model version " + held.version + ".");
+        }
+    }
+
+    /**
+     * @throws UnsupportedOperationException if Eigen or Fisher is trained, so images cannot be enrolled.
+     */
+    public void checkUpdatable() {
+        checkUpdatable(model);
+    }
+
+    private static void checkUpdatable(Model model) {
+        for (Algorithm trained : model.engines.keySet()) {
+            if (!trained.isUpdatable()) {
+                throw new UnsupportedOperationException(trained + " must be trained again to add images");
+            }
+        }
+    }
+
+    public int getDownscaleFactor() {
+        return downscaleFactor;
     }
 
     public String predictPerson(Mat imgMat) {
-        int prediction = faceRecognizer.predict(imgMat);
-        BytePointer bp = faceRecognizer.getLabelInfo(prediction);
-        return bp.getString();
+        return predictPerson(imgMat, algorithm);
     }
 
+    public String predictPerson(Mat imgMat, Algorithm algorithm) {
+        Model model = acquireModel();
+        try {
+            RecognitionEngine engine = model.engineFor(algorithm);
+            return model.nameOf(engine, engine.predict(imgMat));
+        } finally {
+            unhold(model);
+        }
+    }
 
-    private AbstractMap.SimpleEntry<Mat, IntStringMap> createTrainingLabels(File[] imageFiles) {
-        Mat labels = new Mat(imageFiles.length, 1, CV_32SC1);
-        IntBuffer labelsBuf = labels.createBuffer();
+    /**
+     * @param algorithm the name of a trained algorithm, {@link #ENSEMBLE}, or null for the current algorithm.
+     */
+    public String predictPerson(Mat imgMat, String algorithm) {
+        return predict(imgMat, algorithm).person;
+    }
 
-        IntStringMap intStringMap = new IntStringMap();
+    public Prediction predict(Mat imgMat) {
+        return predict(imgMat, algorithm);
+    }
 
-        //Example: a file called 2-Gustav_3 is split into -> id = 2[0], name = Gustav[1], entry = 3[2]
-        for (int i = 0; i < imageFiles.length; i++) {
-            String[] imgNameParts = imageFiles[i].getName().split("\\-|_|\\.");
+    public Prediction predict(Mat imgMat, Algorithm algorithm) {
+        Model model = acquireModel();
+        try {
+            return predict(model, imgMat, algorithm);
+        } finally {
+            unhold(model);
+        }
+    }
 
-            String personId = imgNameParts[0];
-            String personName = imgNameParts[1];
+    /**
+     * @param algorithm the name of a trained algorithm, {@link #ENSEMBLE}, or null for the current algorithm.
+     * @return the prediction, without a distance for an ensemble.
+     */
+    public Prediction predict(Mat imgMat, String algorithm) {
+        if (algorithm == null) {
+            return predict(imgMat);
+        }
+        if (algorithm.equalsIgnoreCase(ENSEMBLE)) {
+            return predictEnsemble(imgMat);
+        }
+        return predict(imgMat, parseAlgorithm(algorithm));
+    }
 
-            int label = Integer.parseInt(personId);
+    private static Prediction predict(Model model, Mat imgMat, Algorithm algorithm) {
+        RecognitionEngine engine = model.engineFor(algorithm);
+        int[] label = new int[1];
+        double[] distance = new double[1];
+        engine.predict(imgMat, label, distance);
+        return new Prediction(label[0], model.nameOf(engine, label[0]), distance[0], model.version);
+    }
 
-            BytePointer namePointer = new BytePointer(personName);
+    /**
+     * Predicts with all trained algorithms in parallel. Every algorithm votes
+     * for its prediction with a confidence that falls with its distance,
+     * relative to the distances it usually finds, as the algorithms measure
+     * distance on scales of their own. The person with most confidence wins.
+     * @return the prediction, without a distance.
+     */
+    public Prediction predictEnsemble(Mat imgMat) {
+        Model model = acquireModel();
+        try {
+            return predictEnsemble(model, imgMat);
+        } finally {
+            unhold(model);
+        }
+    }
 
-            intStringMap.put(label, namePointer);
-            labelsBuf.put(i, label);
+    private Prediction predictEnsemble(final Model model, final Mat imgMat) {
+        List<Algorithm> algorithms = new ArrayList<Algorithm>(model.engines.keySet());
+        List<Callable<Prediction>> predictions = new ArrayList<Callable<Prediction>>();
+        for (final Algorithm algorithm : algorithms) {
+            predictions.add(new Callable<Prediction>() {
+                @Override
+                public Prediction call() {
+                    return predict(model, imgMat, algorithm);
+                }
+            });
+        }
 
+        Map<Integer, Double> votes = new HashMap<Integer, Double>();
+        Prediction best = null;
+        double bestVotes = 0;
+        List<Prediction> results = LbphEngine.invokeAll(ensembleWorkers, predictions);
+        for (int i = 0; i < results.size(); i++) {
+            Prediction prediction = results.get(i);
+            if (prediction.label < 0) {
+                continue;
+            }
+            Double earlier = votes.get(prediction.label);
+            double total = (earlier == null ? 0 : earlier) + distanceScales.get(algorithms.get(i)).confidence(prediction.distance);
+            votes.put(prediction.label, total);
+            if (total > bestVotes) {
+                bestVotes = total;
+                best = prediction;
+            }
         }
-        Log.info("Training images loaded.");
+        if (best == null) {
+            return new Prediction(-1, model.nameOf(model.engineFor(algorithm), -1), Double.NaN, model.version);
+        }
+        return new Prediction(best.label, best.person, Double.NaN, model.version);
+    }
 
-        return new AbstractMap.SimpleEntry<Mat, IntStringMap>(labels, intStringMap);
+    /**
+     * @param name an algorithm name such as JAVA_LBPH or java-lbph, in any case.
+     */
+    public static Algorithm parseAlgorithm(String name) {
+        try {
+            return Algorithm.valueOf(name.trim().toUpperCase(Locale.ROOT).replace('-', '_'));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown algorithm " + name);
+        }
     }
 
-    public void save() {
-        FileStorage fileStorage = new FileStorage(trainResultsStoragePath, FileStorage.WRITE);
-        faceRecognizer.save(fileStorage);
+    /**
+     * Labels are divided between shards by their remainder, so every shard
+     * holds all images of the people it holds.
+     */
+    public boolean isInShard(int label) {
+        return Math.floorMod(label, shardCount) == shardIndex;
     }
 
-    public void load() {
-        FileStorage fileStorage = new FileStorage(trainResultsStoragePath, FileStorage.READ);
-        faceRecognizer.load(fileStorage);
+    private File[] inShard(File[] imageFiles) {
+        if (shardCount == 1) {
+            return imageFiles;
+        }
+        List<File> inShard = new ArrayList<File>();
+        for (File imageFile : imageFiles) {
+            if (isInShard(labelOf(imageFile.getName()))) {
+                inShard.add(imageFile);
+            }
+        }
+        return inShard.toArray(new File[inShard.size()]);
     }
 
-}
 
+    private static int[] createLabels(File[] imageFiles, Map<Integer, String> names) {
+        int[] labels = new int[imageFiles.length];
+
+        for (int i = 0; i < imageFiles.length; i++) {
+            String imageName = imageFiles[i].getName();
+            int label = labelOf(imageName);
 
+            names.put(label, personOf(imageName));
+            labels[i] = label;
+
+        }
+        return labels;
+    }
+
+    /**
+     * @param imageName the name of a training image, such as 2-Gustav_3.png for the third image of Gustav with id 2.
+     * @throws NumberFormatException if the name does not start with an id.
+     */
+    public static int labelOf(String imageName) {
+        //Example: a file called 2-Gustav_3 is split into -> id = 2[0], name = Gustav[1], entry = 3[2]
+        return Integer.parseInt(imageName.split("\\-|_|\\.")[0]);
+    }
+
+    /**
+     * @param imageName the name of a training image, see {@link #labelOf}.
+     * @throws IllegalArgumentException if the name holds no person name.
+     */
+    public static String personOf(String imageName) {
+        String[] imgNameParts = imageName.split("\\-|_|\\.");
+        if (imgNameParts.length < 2 || imgNameParts[1].isEmpty()) {
+            throw new IllegalArgumentException("No person name in " + imageName);
+        }
+        return imgNameParts[1];
+    }
+
+    /**
+     * Frees the native models right away instead of when they are garbage collected.
+     * The recogniser cannot be used afterwards.
+     */
+    public synchronized void release() {
+        ensembleWorkers.shutdown();
+        publish(Model.empty(model.version));
+    }
+
+    /**
+     * Saves the model of the current algorithm.
+     */
+    public void save() throws IOException {
+        Model model = acquireModel();
+        try {
+            model.engineFor(algorithm).save(trainResultsStoragePath);
+        } finally {
+            unhold(model);
+        }
+    }
+
+    /**
+     * Loads the model of the current algorithm.
+     */
+    public void load() throws IOException {
+        model.engineFor(algorithm).load(trainResultsStoragePath);
+    }
+
+    /**
+     * The running mean of the distances an algorithm predicts with, which makes
+     * the distances of different algorithms comparable.
+     */
+    private static class DistanceScale {
+
+        private static final double WEIGHT = 0.05;
+
+        private double meanDistance = Double.NaN;
+
+        /**
+         * @return a confidence between 0 and 1 in a prediction at the given distance, 0.5 at the mean.
+         */
+        synchronized double confidence(double distance) {
+            meanDistance = Double.isNaN(meanDistance) ? distance : meanDistance + WEIGHT * (distance - meanDistance);
+            return meanDistance > 0 ? 1 / (1 + distance / meanDistance) : 1;
+        }
+    }
+
+}
@@ -0,0 +1,76 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A single-slot buffer between a producer and a consumer thread. Offering a
+ * new value replaces one the consumer has not taken yet, so the consumer always
+ * gets the latest value and a slow consumer never holds up the producer.
+ */
+public class FrameSlot<T> {
+
+    private T value;
+    private long droppedCount;
+
+    /**
+     * Puts a value in the slot.
+     * @return the value it replaced, which the consumer never saw, or null.
+     */
+    public synchronized T offer(T newValue) {
+        T replaced = value;
+        value = newValue;
+        if (replaced != null) {
+            droppedCount++;
+        }
+        notifyAll();
+        return replaced;
+    }
+
+    /**
+     * Takes the value in the slot, waiting up to the given time for one to be offered.
+     * @return the value, or null if none was offered in time.
+     */
+    public synchronized T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        long remaining;
+        while (value == null && (remaining = deadline - System.nanoTime()) > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return poll();
+    }
+
+    public synchronized T poll() {
+        T taken = value;
+        value = null;
+        return taken;
+    }
+
+    public synchronized boolean isEmpty() {
+        return value == null;
+    }
+
+    /**
+     * @return how many values were replaced before the consumer took them.
+     */
+    public synchronized long getDroppedCount() {
+        return droppedCount;
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import static opencv.LbphEngine.DIMENSIONS;
+import static opencv.LbphEngine.chiSquare;
+
+/**
+ * LBPH with an inverted file index, so a prediction compares the query with a
+ * fraction of the gallery instead of all of it.
+ * <p>
+ * The training histograms are clustered around about sqrt(n) centroids. A
+ * query is compared with every centroid, and then with the training images of
+ * the nearest few clusters only, so a prediction costs about sqrt(n)
+ * comparisons. The number of clusters searched, the probes, trades recall for
+ * speed: with as many probes as clusters the results are those of LBPH.
+ * <p>
+ * Images added by {@link #update} join the cluster of their nearest centroid.
+ * Once the gallery has grown to twice the size it was clustered at, it is
+ * clustered again.
+ */
+public class IvfLbphEngine implements RecognitionEngine {
+
+    public static final int DEFAULT_PROBES = 8;
+
+    private static final int KMEANS_ITERATIONS = 3;
+    private static final int REBUILD_GROWTH = 2;
+    private static final long SEED = 42;
+
+    private final ForkJoinPool pool;
+    private volatile int probes;
+    private volatile Index index = Index.EMPTY;
+
+    public IvfLbphEngine() {
+        this(DEFAULT_PROBES);
+    }
+
+    public IvfLbphEngine(int probes) {
+        this(probes, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param probes number of clusters searched per prediction.
+     * @param pool runs training and clustering.
+     */
+    public IvfLbphEngine(int probes, ForkJoinPool pool) {
+        setProbes(probes);
+        this.pool = pool;
+    }
+
+    /**
+     * @param probes number of clusters searched per prediction: more finds the
+     *               closest training image more often, fewer is faster.
+     */
+    public void setProbes(int probes) {
+        if (probes <= 0) {
+            throw new IllegalArgumentException("Probes must be positive: " + probes);
+        }
+        this.probes = probes;
+    }
+
+    public int getProbes() {
+        return probes;
+    }
+
+    /**
+     * @return the number of clusters the gallery is divided into.
+     */
+    public int getClusterCount() {
+        return index.clusters;
+    }
+
+    public int size() {
+        return index.gallery.labels.length;
+    }
+
+    @Override
+    public synchronized void train(MatVector images, int[] labels, Map<Integer, String> names) {
+        float[] histograms = LbphEngine.histograms(pool, images, labels);
+        index = build(new LbphEngine.Gallery(labels.clone(), histograms, new HashMap<Integer, String>(names)));
+    }
+
+    @Override
+    public synchronized void update(MatVector images, int[] labels, Map<Integer, String> names) {
+        index = grown(index, images, labels, names);
+    }
+
+    @Override
+    public RecognitionEngine updated(MatVector images, int[] labels, Map<Integer, String> names) {
+        IvfLbphEngine copy = new IvfLbphEngine(probes, pool);
+        copy.index = grown(index, images, labels, names);
+        return copy;
+    }
+
+    private Index grown(Index old, MatVector images, int[] labels, Map<Integer, String> names) {
+        float[] added = LbphEngine.histograms(pool, images, labels);
+        LbphEngine.Gallery gallery = old.gallery;
+        int[] allLabels = Arrays.copyOf(gallery.labels, gallery.labels.length + labels.length);
+        System.arraycopy(labels, 0, allLabels, gallery.labels.length, labels.length);
+        float[] allHistograms = Arrays.copyOf(gallery.histograms, gallery.histograms.length + added.length);
+        System.arraycopy(added, 0, allHistograms, gallery.histograms.length, added.length);
+        Map<Integer, String> allNames = new HashMap<Integer, String>(gallery.names);
+        allNames.putAll(names);
+        LbphEngine.Gallery grown = new LbphEngine.Gallery(allLabels, allHistograms, allNames);
+
+        if (old.clusters == 0 || allLabels.length >= old.builtSize * REBUILD_GROWTH) {
+            return build(grown);
+        }
+        int[][] members = old.members.clone();
+        for (int i = gallery.labels.length; i < allLabels.length; i++) {
+            int cluster = nearestCentroid(old.centroids, old.clusters, allHistograms, i * DIMENSIONS);
+            members[cluster] = Arrays.copyOf(members[cluster], members[cluster].length + 1);
+            members[cluster][members[cluster].length - 1] = i;
+        }
+        return new Index(grown, old.centroids, old.clusters, members, old.builtSize);
+    }
+
+    @Override
+    public int predict(Mat image) {
+        int[] label = new int[1];
+        predict(image, label, new double[1]);
+        return label[0];
+    }
+
+    @Override
+    public void predict(Mat image, int[] label, double[] distance) {
+        float[] query = new float[DIMENSIONS];
+        LbphEngine.histogram(image, query, 0);
+        Index index = this.index;
+        if (index.clusters == 0) {
+            label[0] = -1;
+            distance[0] = Double.MAX_VALUE;
+            return;
+        }
+
+        int searched = Math.min(probes, index.clusters);
+        double[] centroidDistances = new double[index.clusters];
+        Integer[] order = new Integer[index.clusters];
+        float[] roots = squareRoots(query, 0);
+        for (int c = 0; c < index.clusters; c++) {
+            centroidDistances[c] = coarseDistance(roots, index.centroids, c * DIMENSIONS);
+            order[c] = c;
+        }
+        if (searched < index.clusters) {
+            sortByDistance(order, centroidDistances);
+        }
+
+        float[] histograms = index.gallery.histograms;
+        int bestIndex = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int p = 0; p < searched; p++) {
+            for (int i : index.members[order[p]]) {
+                double candidate = chiSquare(histograms, i * DIMENSIONS, query, bestDistance);
+                if (candidate == bestDistance && i < bestIndex) {
+                    // the first of equal distances in gallery order wins, as in a full search;
+                    // a sum given up at the limit may only look equal
+                    candidate = chiSquare(histograms, i * DIMENSIONS, query, Double.MAX_VALUE);
+                }
+                if (candidate < bestDistance || (candidate == bestDistance && i < bestIndex)) {
+                    bestDistance = candidate;
+                    bestIndex = i;
+                }
+            }
+        }
+        label[0] = bestIndex < 0 ? -1 : index.gallery.labels[bestIndex];
+        distance[0] = bestDistance;
+    }
+
+    @Override
+    public String getLabelInfo(int label) {
+        String name = index.gallery.names.get(label);
+        return name == null ? "" : name;
+    }
+
+    @Override
+    public void save(String path) throws IOException {
+        LbphEngine.writeModel(path, index.gallery);
+    }
+
+    /**
+     * Loads a model saved by this engine or by {@link LbphEngine}, and clusters it.
+     */
+    @Override
+    public synchronized void load(String path) throws IOException {
+        index = build(LbphEngine.readModel(path));
+    }
+
+    @Override
+    public synchronized void release() {
+        index = Index.EMPTY;
+    }
+
+    /**
+     * Clusters the square roots of the gallery's histograms with a few rounds
+     * of k-means, starting from training images picked at random.
+     */
+    private Index build(LbphEngine.Gallery gallery) {
+        final int size = gallery.labels.length;
+        if (size == 0) {
+            return new Index(gallery, new float[0], 0, new int[0][], 0);
+        }
+        final int clusters = Math.max(1, (int) Math.round(Math.sqrt(size)));
+        final float[] histograms = gallery.histograms;
+
+        List<Integer> picks = new ArrayList<Integer>(size);
+        for (int i = 0; i < size; i++) {
+            picks.add(i);
+        }
+        Collections.shuffle(picks, new Random(SEED));
+        float[] centroids = new float[clusters * DIMENSIONS];
+        for (int c = 0; c < clusters; c++) {
+            int offset = picks.get(c) * DIMENSIONS;
+            for (int j = 0; j < DIMENSIONS; j++) {
+                centroids[c * DIMENSIONS + j] = (float) Math.sqrt(histograms[offset + j]);
+            }
+        }
+
+        int[] assignment = null;
+        for (int iteration = 0; iteration < KMEANS_ITERATIONS; iteration++) {
+            assignment = assign(centroids, clusters, histograms, size);
+            if (iteration < KMEANS_ITERATIONS - 1) {
+                centroids = means(centroids, clusters, histograms, assignment);
+            }
+        }
+
+        int[] counts = new int[clusters];
+        for (int cluster : assignment) {
+            counts[cluster]++;
+        }
+        int[][] members = new int[clusters][];
+        for (int c = 0; c < clusters; c++) {
+            members[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        for (int i = 0; i < size; i++) {
+            members[assignment[i]][counts[assignment[i]]++] = i;
+        }
+        return new Index(gallery, centroids, clusters, members, size);
+    }
+
+    private int[] assign(final float[] centroids, final int clusters, final float[] histograms, int size) {
+        final int[] assignment = new int[size];
+        int tasks = Math.max(1, Math.min(pool.getParallelism(), size));
+        List<Callable<Void>> slices = new ArrayList<Callable<Void>>();
+        for (int t = 0; t < tasks; t++) {
+            final int from = (int) ((long) size * t / tasks);
+            final int to = (int) ((long) size * (t + 1) / tasks);
+            slices.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    for (int i = from; i < to; i++) {
+                        assignment[i] = nearestCentroid(centroids, clusters, histograms, i * DIMENSIONS);
+                    }
+                    return null;
+                }
+            });
+        }
+        LbphEngine.invokeAll(pool, slices);
+        return assignment;
+    }
+
+    /**
+     * @return the mean square root histogram of every cluster; an empty cluster keeps its centroid.
+     */
+    private static float[] means(float[] centroids, int clusters, float[] histograms, int[] assignment) {
+        double[] sums = new double[clusters * DIMENSIONS];
+        int[] counts = new int[clusters];
+        for (int i = 0; i < assignment.length; i++) {
+            int cluster = assignment[i];
+            counts[cluster]++;
+            int sumOffset = cluster * DIMENSIONS;
+            int offset = i * DIMENSIONS;
+            for (int j = 0; j < DIMENSIONS; j++) {
+                sums[sumOffset + j] += Math.sqrt(histograms[offset + j]);
+            }
+        }
+        float[] means = centroids.clone();
+        for (int c = 0; c < clusters; c++) {
+            if (counts[c] > 0) {
+                for (int j = 0; j < DIMENSIONS; j++) {
+                    means[c * DIMENSIONS + j] = (float) (sums[c * DIMENSIONS + j] / counts[c]);
+                }
+            }
+        }
+        return means;
+    }
+
+    private static int nearestCentroid(float[] centroids, int clusters, float[] histograms, int offset) {
+        float[] roots = squareRoots(histograms, offset);
+        int nearest = 0;
+        double nearestDistance = Double.MAX_VALUE;
+        for (int c = 0; c < clusters; c++) {
+            double distance = coarseDistance(roots, centroids, c * DIMENSIONS);
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    private static float[] squareRoots(float[] histograms, int offset) {
+        float[] roots = new float[DIMENSIONS];
+        for (int j = 0; j < DIMENSIONS; j++) {
+            roots[j] = (float) Math.sqrt(histograms[offset + j]);
+        }
+        return roots;
+    }
+
+    /**
+     * Squared euclidean distance between the square roots of a histogram and a
+     * centroid of square roots. This Hellinger distance ranks histograms much
+     * like chi-square, and unlike chi-square it is minimised by the mean, so
+     * k-means keeps its clusters balanced.
+     */
+    static double coarseDistance(float[] roots, float[] centroids, int centroidOffset) {
+        float result = 0;
+        for (int j = 0; j < DIMENSIONS; j++) {
+            float a = roots[j] - centroids[centroidOffset + j];
+            result += a * a;
+        }
+        return result;
+    }
+
+    private static void sortByDistance(Integer[] clusters, final double[] distances) {
+        Arrays.sort(clusters, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Double.compare(distances[a], distances[b]);
+            }
+        });
+    }
+
+    /**
+     * The gallery with its clusters, never changed once created.
+     */
+    private static class Index {
+        static final Index EMPTY = new Index(new LbphEngine.Gallery(new int[0], new float[0], Collections.<Integer, String>emptyMap()),
+                new float[0], 0, new int[0][], 0);
+
+        final LbphEngine.Gallery gallery;
+        final float[] centroids;
+        final int clusters;
+        final int[][] members;
+        final int builtSize;
+
+        Index(LbphEngine.Gallery gallery, float[] centroids, int clusters, int[][] members, int builtSize) {
+            this.gallery = gallery;
+            this.centroids = centroids;
+            this.clusters = clusters;
+            this.members = members;
+            this.builtSize = builtSize;
+        }
+    }
+}
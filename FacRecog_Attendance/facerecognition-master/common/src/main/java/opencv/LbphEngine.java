@@ -0,0 +1,436 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import static org.bytedeco.javacpp.opencv_core.CV_8UC1;
+
+/**
+ * Local binary pattern histograms in plain Java, giving the same predictions
+ * as OpenCV's LBPH recogniser with its default parameters: radius 1, 8
+ * neighbours, an 8x8 grid and no distance threshold.
+ * <p>
+ * The histograms of the gallery are kept in one flat float array, and a query
+ * is matched against slices of it in parallel. Ties go to the first training
+ * image, as in OpenCV.
+ */
+public class LbphEngine implements RecognitionEngine {
+
+    static final int RADIUS = 1;
+    static final int NEIGHBOURS = 8;
+    static final int GRID_X = 8;
+    static final int GRID_Y = 8;
+    static final int PATTERNS = 1 << NEIGHBOURS;
+    /** Values in a histogram: one per pattern in every cell of the grid */
+    public static final int DIMENSIONS = GRID_X * GRID_Y * PATTERNS;
+
+    private static final int MIN_HISTOGRAMS_PER_TASK = 64;
+    private static final double DBL_EPSILON = Math.ulp(1.0);
+    // scales every histogram value above DBL_EPSILON to at least 1
+    private static final double COUNTED_SCALE = 1 / DBL_EPSILON;
+    private static final int FILE_MAGIC = 0x4c425048;
+
+    private static final int[] OFFSET_X = new int[NEIGHBOURS * 2];
+    private static final int[] OFFSET_Y = new int[NEIGHBOURS * 2];
+    private static final float[] WEIGHTS = new float[NEIGHBOURS * 4];
+
+    static {
+        // sample points on the circle, interpolated from their four surrounding pixels
+        for (int n = 0; n < NEIGHBOURS; n++) {
+            float x = (float) (RADIUS * Math.cos(2.0 * Math.PI * n / (float) NEIGHBOURS));
+            float y = (float) (-RADIUS * Math.sin(2.0 * Math.PI * n / (float) NEIGHBOURS));
+            int fx = (int) Math.floor(x);
+            int fy = (int) Math.floor(y);
+            OFFSET_X[2 * n] = fx;
+            OFFSET_X[2 * n + 1] = (int) Math.ceil(x);
+            OFFSET_Y[2 * n] = fy;
+            OFFSET_Y[2 * n + 1] = (int) Math.ceil(y);
+            float ty = y - fy;
+            float tx = x - fx;
+            WEIGHTS[4 * n] = (1 - tx) * (1 - ty);
+            WEIGHTS[4 * n + 1] = tx * (1 - ty);
+            WEIGHTS[4 * n + 2] = (1 - tx) * ty;
+            WEIGHTS[4 * n + 3] = tx * ty;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private volatile Gallery gallery = new Gallery(new int[0], new float[0], Collections.<Integer, String>emptyMap());
+
+    public LbphEngine() {
+        this(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool runs training and the parallel slices of every prediction.
+     */
+    public LbphEngine(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    @Override
+    public synchronized void train(MatVector images, int[] labels, Map<Integer, String> names) {
+        float[] histograms = histograms(pool, images, labels);
+        gallery = new Gallery(labels.clone(), histograms, new HashMap<Integer, String>(names));
+    }
+
+    /**
+     * Adds images to the gallery. Predictions in progress keep using the gallery they started with.
+     */
+    @Override
+    public synchronized void update(MatVector images, int[] labels, Map<Integer, String> names) {
+        gallery = grown(gallery, images, labels, names);
+    }
+
+    @Override
+    public RecognitionEngine updated(MatVector images, int[] labels, Map<Integer, String> names) {
+        LbphEngine copy = new LbphEngine(pool);
+        copy.gallery = grown(gallery, images, labels, names);
+        return copy;
+    }
+
+    private Gallery grown(Gallery old, MatVector images, int[] labels, Map<Integer, String> names) {
+        float[] added = histograms(pool, images, labels);
+        int[] allLabels = Arrays.copyOf(old.labels, old.labels.length + labels.length);
+        System.arraycopy(labels, 0, allLabels, old.labels.length, labels.length);
+        float[] allHistograms = Arrays.copyOf(old.histograms, old.histograms.length + added.length);
+        System.arraycopy(added, 0, allHistograms, old.histograms.length, added.length);
+        Map<Integer, String> allNames = new HashMap<Integer, String>(old.names);
+        allNames.putAll(names);
+        return new Gallery(allLabels, allHistograms, allNames);
+    }
+
+    @Override
+    public int predict(Mat image) {
+        int[] label = new int[1];
+        predict(image, label, new double[1]);
+        return label[0];
+    }
+
+    @Override
+    public void predict(Mat image, int[] label, double[] distance) {
+        final float[] query = new float[DIMENSIONS];
+        histogram(image, query, 0);
+
+        final Gallery gallery = this.gallery;
+        int size = gallery.labels.length;
+        int tasks = Math.min(pool.getParallelism(), size / MIN_HISTOGRAMS_PER_TASK);
+        if (tasks <= 1) {
+            int best = closest(gallery.histograms, query, 0, size);
+            label[0] = best < 0 ? -1 : gallery.labels[best];
+            distance[0] = best < 0 ? Double.MAX_VALUE : chiSquare(gallery.histograms, best * DIMENSIONS, query, Double.MAX_VALUE);
+            return;
+        }
+
+        List<Callable<Integer>> slices = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < tasks; t++) {
+            final int from = (int) ((long) size * t / tasks);
+            final int to = (int) ((long) size * (t + 1) / tasks);
+            slices.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return closest(gallery.histograms, query, from, to);
+                }
+            });
+        }
+        int bestIndex = -1;
+        double bestDistance = Double.MAX_VALUE;
+        // slices are in gallery order, so keeping the first of equal distances matches a sequential search
+        for (int index : invokeAll(pool, slices)) {
+            if (index >= 0) {
+                double indexDistance = chiSquare(gallery.histograms, index * DIMENSIONS, query, Double.MAX_VALUE);
+                if (indexDistance < bestDistance) {
+                    bestDistance = indexDistance;
+                    bestIndex = index;
+                }
+            }
+        }
+        label[0] = bestIndex < 0 ? -1 : gallery.labels[bestIndex];
+        distance[0] = bestDistance;
+    }
+
+    @Override
+    public String getLabelInfo(int label) {
+        String name = gallery.names.get(label);
+        return name == null ? "" : name;
+    }
+
+    /**
+     * @return the number of training images.
+     */
+    public int size() {
+        return gallery.labels.length;
+    }
+
+    @Override
+    public void save(String path) throws IOException {
+        writeModel(path, gallery);
+    }
+
+    @Override
+    public synchronized void load(String path) throws IOException {
+        gallery = readModel(path);
+    }
+
+    @Override
+    public synchronized void release() {
+        gallery = new Gallery(new int[0], new float[0], Collections.<Integer, String>emptyMap());
+    }
+
+    /**
+     * @return index of the histogram in [from, to) closest to the query, or -1
+     * if none is closer than Double.MAX_VALUE.
+     */
+    static int closest(float[] histograms, float[] query, int from, int to) {
+        int bestIndex = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            double distance = chiSquare(histograms, i * DIMENSIONS, query, bestDistance);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * The chi-square distance of OpenCV's compareHist, with the training
+     * histogram first, in its arithmetic and order of summation. Terms are
+     * never negative, so the sum is given up once a cell of the grid takes it
+     * to the limit: such a histogram can no longer be the closest.
+     * <p>
+     * OpenCV leaves out the bins of the training histogram not above
+     * DBL_EPSILON. Histogram values are 0 or at least 1 / cell area, so the
+     * inner loop does so without a branch: the term of an empty bin is
+     * multiplied by 0 and divided by 1, the others by 1 and by their value
+     * plus 0, which leaves them unchanged.
+     * @return the distance, or a value of at least limit.
+     */
+    static double chiSquare(float[] histograms, int offset, float[] query, double limit) {
+        double result = 0;
+        for (int cell = 0; cell < DIMENSIONS; cell += PATTERNS) {
+            for (int j = cell; j < cell + PATTERNS; j++) {
+                float h1 = histograms[offset + j];
+                double a = h1 - query[j];
+                double b = h1;
+                double counted = Math.min(b * COUNTED_SCALE, 1.0);
+                result += a * a * counted / (b + (1.0 - counted));
+            }
+            if (result >= limit) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes the normalised spatial histogram of the image's local binary
+     * patterns, DIMENSIONS values, to out at the given offset.
+     */
+    static void histogram(Mat image, float[] out, int offset) {
+        if (image.type() != CV_8UC1) {
+            throw new IllegalArgumentException("Expected a grayscale image, got type " + image.type());
+        }
+        int cols = image.cols();
+        int rows = image.rows();
+        byte[] pixels = new byte[cols * rows];
+        for (int r = 0; r < rows; r++) {
+            image.ptr(r).get(pixels, r * cols, cols);
+        }
+        histogram(pixels, cols, rows, out, offset);
+    }
+
+    static void histogram(byte[] pixels, int cols, int rows, float[] out, int offset) {
+        int lbpCols = cols - 2 * RADIUS;
+        int lbpRows = rows - 2 * RADIUS;
+        int cellWidth = lbpCols / GRID_X;
+        int cellHeight = lbpRows / GRID_Y;
+        if (cellWidth <= 0 || cellHeight <= 0) {
+            throw new IllegalArgumentException("Image of " + cols + "x" + rows + " is too small for a " + GRID_X + "x" + GRID_Y + " grid");
+        }
+
+        int[] lbp = new int[lbpCols * lbpRows];
+        for (int i = RADIUS; i < rows - RADIUS; i++) {
+            for (int j = RADIUS; j < cols - RADIUS; j++) {
+                int center = pixels[i * cols + j] & 0xff;
+                int code = 0;
+                for (int n = 0; n < NEIGHBOURS; n++) {
+                    int top = (i + OFFSET_Y[2 * n]) * cols;
+                    int bottom = (i + OFFSET_Y[2 * n + 1]) * cols;
+                    int left = j + OFFSET_X[2 * n];
+                    int right = j + OFFSET_X[2 * n + 1];
+                    // the same float arithmetic as OpenCV, so rounding decides alike
+                    float t = WEIGHTS[4 * n] * (pixels[top + left] & 0xff)
+                            + WEIGHTS[4 * n + 1] * (pixels[top + right] & 0xff)
+                            + WEIGHTS[4 * n + 2] * (pixels[bottom + left] & 0xff)
+                            + WEIGHTS[4 * n + 3] * (pixels[bottom + right] & 0xff);
+                    if (t > center || Math.abs(t - center) < Math.ulp(1.0f)) {
+                        code |= 1 << n;
+                    }
+                }
+                lbp[(i - RADIUS) * lbpCols + j - RADIUS] = code;
+            }
+        }
+
+        int[] counts = new int[PATTERNS];
+        // OpenCV normalises with Mat::convertTo, which narrows the scale 1.0 / total to
+        // float and multiplies and adds the shift of 0 in float for a CV_32F histogram
+        float scale = (float) (1.0 / (cellWidth * cellHeight));
+        for (int gy = 0; gy < GRID_Y; gy++) {
+            for (int gx = 0; gx < GRID_X; gx++) {
+                Arrays.fill(counts, 0);
+                for (int y = gy * cellHeight; y < (gy + 1) * cellHeight; y++) {
+                    int row = y * lbpCols;
+                    for (int x = gx * cellWidth; x < (gx + 1) * cellWidth; x++) {
+                        counts[lbp[row + x]]++;
+                    }
+                }
+                int cellOffset = offset + (gy * GRID_X + gx) * PATTERNS;
+                for (int p = 0; p < PATTERNS; p++) {
+                    out[cellOffset + p] = counts[p] * scale + 0f;
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes the histograms of the images in parallel, into one flat array.
+     */
+    static float[] histograms(ForkJoinPool pool, MatVector images, int[] labels) {
+        if (images.size() != labels.length) {
+            throw new IllegalArgumentException(images.size() + " images but " + labels.length + " labels");
+        }
+        final float[] histograms = new float[labels.length * DIMENSIONS];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < labels.length; i++) {
+            final int index = i;
+            final Mat image = images.get(i);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    histogram(image, histograms, index * DIMENSIONS);
+                    return null;
+                }
+            });
+        }
+        invokeAll(pool, tasks);
+        return histograms;
+    }
+
+    static void writeModel(String path, Gallery gallery) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(DIMENSIONS);
+            out.writeInt(gallery.names.size());
+            for (Map.Entry<Integer, String> name : gallery.names.entrySet()) {
+                out.writeInt(name.getKey());
+                out.writeUTF(name.getValue());
+            }
+            out.writeInt(gallery.labels.length);
+            for (int label : gallery.labels) {
+                out.writeInt(label);
+            }
+            for (float value : gallery.histograms) {
+                out.writeFloat(value);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    static Gallery readModel(String path) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)));
+        try {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != DIMENSIONS) {
+                throw new IOException("Not an LBPH model: " + path);
+            }
+            Map<Integer, String> names = new HashMap<Integer, String>();
+            for (int i = in.readInt(); i > 0; i--) {
+                names.put(in.readInt(), in.readUTF());
+            }
+            int[] labels = new int[in.readInt()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readInt();
+            }
+            float[] histograms = new float[labels.length * DIMENSIONS];
+            for (int i = 0; i < histograms.length; i++) {
+                histograms[i] = in.readFloat();
+            }
+            return new Gallery(labels, histograms, names);
+        } finally {
+            in.close();
+        }
+    }
+
+    static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> tasks) {
+        List<T> results = new ArrayList<T>(tasks.size());
+        try {
+            for (Future<T> future : pool.invokeAll(tasks)) {
+                results.add(future.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        return results;
+    }
+
+    /**
+     * Labelled histograms, never changed once created.
+     */
+    static class Gallery {
+        final int[] labels;
+        final float[] histograms;
+        final Map<Integer, String> names;
+
+        Gallery(int[] labels, float[] histograms, Map<Integer, String> names) {
+            this.labels = labels;
+            this.histograms = histograms;
+            this.names = names;
+        }
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * A pool of native Mat buffers keyed by frame size and type. Buffers are
+ * handed out through a {@link Lease}, which returns every buffer it acquired
+ * when it is closed, so that steady-state requests reuse the same native
+ * memory instead of leaving it to the garbage collector and finalizers.
+ */
+public class MatPool {
+
+    private final int maxIdlePerShape;
+    private final ConcurrentMap<Long, ConcurrentLinkedDeque<Mat>> idleMats = new ConcurrentHashMap<Long, ConcurrentLinkedDeque<Mat>>();
+    private final ConcurrentMap<Mat, CvMat> headers = new ConcurrentHashMap<Mat, CvMat>();
+    private final AtomicInteger allocatedMats = new AtomicInteger();
+
+    /**
+     * @param maxIdlePerShape the number of idle buffers kept per frame size and
+     *                        type, buffers released beyond this are freed.
+     */
+    public MatPool(int maxIdlePerShape) {
+        this.maxIdlePerShape = maxIdlePerShape;
+    }
+
+    /**
+     * Take a buffer of the given shape from the pool, allocating a new one
+     * only when no idle buffer is available.
+     */
+    public Mat acquire(int rows, int cols, int type) {
+        Mat mat = idleQueue(rows, cols, type).pollFirst();
+        if (mat == null) {
+            mat = NativeAllocations.allocated(new Mat(rows, cols, type));
+            headers.put(mat, mat.asCvMat());
+            allocatedMats.incrementAndGet();
+        }
+        return mat;
+    }
+
+    /**
+     * Return a buffer to the pool. Buffers exceeding the idle limit are
+     * deallocated immediately.
+     */
+    public void release(Mat mat) {
+        ConcurrentLinkedDeque<Mat> idle = idleQueue(mat.rows(), mat.cols(), mat.type());
+        if (idle.size() < maxIdlePerShape) {
+            idle.offerFirst(mat);
+        } else {
+            free(mat);
+        }
+    }
+
+    /**
+     * The C-API header of a pooled buffer, created once when the buffer was
+     * allocated.
+     */
+    public CvMat header(Mat mat) {
+        return headers.get(mat);
+    }
+
+    public int getAllocatedCount() {
+        return allocatedMats.get();
+    }
+
+    /**
+     * Deallocate every idle buffer.
+     */
+    public void clear() {
+        for (ConcurrentLinkedDeque<Mat> idle : idleMats.values()) {
+            Mat mat;
+            while ((mat = idle.pollFirst()) != null) {
+                free(mat);
+            }
+        }
+    }
+
+    public Lease lease() {
+        return new Lease();
+    }
+
+    private void free(Mat mat) {
+        CvMat header = headers.remove(mat);
+        if (header != null) {
+            header.deallocate();
+        }
+        NativeAllocations.freed(mat);
+        mat.release();
+        mat.deallocate();
+        allocatedMats.decrementAndGet();
+    }
+
+    private ConcurrentLinkedDeque<Mat> idleQueue(int rows, int cols, int type) {
+        Long key = ((long) rows << 32) | ((long) cols << 12) | type;
+        ConcurrentLinkedDeque<Mat> idle = idleMats.get(key);
+        if (idle == null) {
+            ConcurrentLinkedDeque<Mat> created = new ConcurrentLinkedDeque<Mat>();
+            idle = idleMats.putIfAbsent(key, created);
+            if (idle == null) {
+                idle = created;
+            }
+        }
+        return idle;
+    }
+
+    /**
+     * The native buffers used while handling a single request. Closing the
+     * lease returns pooled buffers and deallocates any temporary headers.
+     */
+    public class Lease {
+
+        private final List<Mat> leased = new ArrayList<Mat>(4);
+        private final List<CvMat> temporaryHeaders = new ArrayList<CvMat>(2);
+        private long leasedBytes;
+
+        public Mat acquire(int rows, int cols, int type) {
+            Mat mat = MatPool.this.acquire(rows, cols, type);
+            leased.add(mat);
+            leasedBytes += mat.total() * mat.elemSize();
+            return mat;
+        }
+
+        /**
+         * @return the size of all buffers acquired through this lease so far.
+         */
+        public long getLeasedBytes() {
+            return leasedBytes;
+        }
+
+        /**
+         * The C-API header of a Mat. Pooled buffers reuse their cached header,
+         * other Mats get a temporary header which is freed on close.
+         */
+        public CvMat header(Mat mat) {
+            CvMat header = MatPool.this.header(mat);
+            if (header == null) {
+                header = mat.asCvMat();
+                temporaryHeaders.add(header);
+            }
+            return header;
+        }
+
+        public void close() {
+            for (Mat mat : leased) {
+                release(mat);
+            }
+            leased.clear();
+            for (CvMat header : temporaryHeaders) {
+                header.deallocate();
+            }
+            temporaryHeaders.clear();
+        }
+    }
+}
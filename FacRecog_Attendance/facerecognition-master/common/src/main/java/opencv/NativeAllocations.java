@@ -0,0 +1,176 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import org.bytedeco.javacpp.Pointer;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * Accounts for the native memory allocated by this code base through
+ * JavaCPP, such as Mat and IplImage buffers and detection storage, which
+ * never shows up in heap metrics. Buffers are registered when allocated and
+ * unregistered when freed, so the registry holds what is currently alive.
+ * <p>
+ * With allocation site tracking enabled, each buffer also remembers the
+ * call stack which allocated it. This costs a stack trace per allocation, so
+ * it is meant for hunting leaks rather than for production.
+ */
+public final class NativeAllocations {
+
+    private static final int SITE_DEPTH = 4;
+
+    private static final ConcurrentMap<Long, Allocation> live = new ConcurrentHashMap<Long, Allocation>();
+    private static volatile boolean trackingSites;
+
+    private NativeAllocations() {
+    }
+
+    /**
+     * Enables or disables recording where buffers were allocated. Only buffers
+     * allocated while enabled have a known site.
+     */
+    public static void setTrackingSites(boolean tracking) {
+        trackingSites = tracking;
+    }
+
+    public static boolean isTrackingSites() {
+        return trackingSites;
+    }
+
+    /**
+     * Registers a buffer allocated natively.
+     * @param kind what the buffer is, e.g. "Mat".
+     */
+    public static void allocated(Pointer pointer, long bytes, String kind) {
+        live.put(pointer.address(), new Allocation(kind, bytes, trackingSites ? callSite() : null));
+    }
+
+    /**
+     * Unregisters a buffer before it is freed.
+     */
+    public static void freed(Pointer pointer) {
+        live.remove(pointer.address());
+    }
+
+    /**
+     * Registers a Mat, counting the size of its data.
+     */
+    public static Mat allocated(Mat mat) {
+        allocated(mat, mat.total() * mat.elemSize(), "Mat");
+        return mat;
+    }
+
+    /**
+     * Registers an IplImage, counting the size of its data.
+     */
+    public static IplImage allocated(IplImage image) {
+        allocated(image, image.imageSize(), "IplImage");
+        return image;
+    }
+
+    /**
+     * @return the bytes and buffers currently alive, per kind and per allocation site.
+     */
+    public static Snapshot snapshot() {
+        Snapshot snapshot = new Snapshot();
+        for (Allocation allocation : live.values()) {
+            snapshot.add(snapshot.kinds, allocation.kind, allocation.bytes);
+            if (allocation.site != null) {
+                snapshot.add(snapshot.sites, allocation.kind + " @ " + allocation.site, allocation.bytes);
+            }
+        }
+        return snapshot;
+    }
+
+    private static String callSite() {
+        StringBuilder site = new StringBuilder();
+        int frames = 0;
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (className.equals(NativeAllocations.class.getName()) || className.startsWith(MatPool.class.getName())) {
+                continue;
+            }
+            if (frames > 0) {
+                site.append(" < ");
+            }
+            site.append(element.getClassName().substring(className.lastIndexOf('.') + 1))
+                    .append('.').append(element.getMethodName()).append(':').append(element.getLineNumber());
+            if (++frames == SITE_DEPTH) {
+                break;
+            }
+        }
+        return site.toString();
+    }
+
+    private static class Allocation {
+        final String kind;
+        final long bytes;
+        final String site;
+
+        Allocation(String kind, long bytes, String site) {
+            this.kind = kind;
+            this.bytes = bytes;
+            this.site = site;
+        }
+    }
+
+    /**
+     * Live native memory at one point in time. Totals are {bytes, buffers}.
+     */
+    public static class Snapshot {
+
+        private final Map<String, long[]> kinds = new HashMap<String, long[]>();
+        private final Map<String, long[]> sites = new HashMap<String, long[]>();
+
+        public Map<String, long[]> getKinds() {
+            return kinds;
+        }
+
+        /**
+         * @return totals per kind and allocation site, for buffers allocated while site tracking was enabled.
+         */
+        public Map<String, long[]> getSites() {
+            return sites;
+        }
+
+        public long getBytes() {
+            long bytes = 0;
+            for (long[] total : kinds.values()) {
+                bytes += total[0];
+            }
+            return bytes;
+        }
+
+        private void add(Map<String, long[]> totals, String key, long bytes) {
+            long[] total = totals.get(key);
+            if (total == null) {
+                total = new long[2];
+                totals.put(key, total);
+            }
+            total[0] += bytes;
+            total[1]++;
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import org.bytedeco.javacpp.BytePointer;
+import org.bytedeco.javacpp.opencv_contrib.FaceRecognizer;
+import org.bytedeco.javacpp.opencv_contrib.IntStringMap;
+import org.bytedeco.javacpp.opencv_core.FileStorage;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import java.nio.IntBuffer;
+import java.util.Map;
+
+import static org.bytedeco.javacpp.opencv_contrib.createEigenFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_contrib.createFisherFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_contrib.createLBPHFaceRecognizer;
+import static org.bytedeco.javacpp.opencv_core.CV_32SC1;
+
+/**
+ * One of OpenCV's face recognisers: LBPH, Eigenfaces or Fisherfaces.
+ * <p>
+ * The native recogniser is not safe to change while other threads predict
+ * with it, so images are added to a copy, see {@link #updated}.
+ */
+public class OpenCvEngine implements RecognitionEngine {
+
+    private final FaceRecogniser.Algorithm algorithm;
+    private final FaceRecognizer faceRecognizer;
+
+    /**
+     * @param algorithm LBPH, EIGEN or FISHER.
+     */
+    public OpenCvEngine(FaceRecogniser.Algorithm algorithm) {
+        this.algorithm = algorithm;
+        switch (algorithm) {
+            case LBPH:
+                faceRecognizer = createLBPHFaceRecognizer();
+                break;
+            case EIGEN:
+                faceRecognizer = createEigenFaceRecognizer();
+                break;
+            case FISHER:
+                faceRecognizer = createFisherFaceRecognizer();
+                break;
+            default:
+                throw new IllegalArgumentException(algorithm + " is not one of OpenCV's recognisers");
+        }
+    }
+
+    @Override
+    public void train(MatVector images, int[] labels, Map<Integer, String> names) {
+        faceRecognizer.setLabelsInfo(labelsInfo(names));
+        faceRecognizer.train(images, labelsMat(labels));
+    }
+
+    /**
+     * Only LBPH can add images to a trained model. No other thread may predict meanwhile.
+     */
+    @Override
+    public void update(MatVector images, int[] labels, Map<Integer, String> names) {
+        if (!algorithm.isUpdatable()) {
+            throw new UnsupportedOperationException("Eigenfaces and Fisherfaces must be trained again to add images");
+        }
+        faceRecognizer.setLabelsInfo(labelsInfo(names));
+        faceRecognizer.update(images, labelsMat(labels));
+    }
+
+    /**
+     * Copies the native model into a new recogniser through an in-memory
+     * file, and adds the images to the copy.
+     */
+    @Override
+    public RecognitionEngine updated(MatVector images, int[] labels, Map<Integer, String> names) {
+        if (!algorithm.isUpdatable()) {
+            throw new UnsupportedOperationException("Eigenfaces and Fisherfaces must be trained again to add images");
+        }
+        OpenCvEngine copy = new OpenCvEngine(algorithm);
+        try {
+            FileStorage out = new FileStorage(".yml", FileStorage.WRITE | FileStorage.MEMORY);
+            faceRecognizer.save(out);
+            BytePointer model = out.releaseAndGetString();
+            out.deallocate();
+            FileStorage in = new FileStorage(model, FileStorage.READ | FileStorage.MEMORY);
+            copy.faceRecognizer.load(in);
+            in.release();
+            in.deallocate();
+            model.deallocate();
+            copy.update(images, labels, names);
+        } catch (RuntimeException e) {
+            copy.release();
+            throw e;
+        }
+        return copy;
+    }
+
+    @Override
+    public int predict(Mat image) {
+        return faceRecognizer.predict(image);
+    }
+
+    @Override
+    public void predict(Mat image, int[] label, double[] distance) {
+        faceRecognizer.predict(image, label, distance);
+    }
+
+    @Override
+    public String getLabelInfo(int label) {
+        BytePointer bp = faceRecognizer.getLabelInfo(label);
+        try {
+            return bp.getString();
+        } finally {
+            bp.deallocate();
+        }
+    }
+
+    @Override
+    public void save(String path) {
+        FileStorage fileStorage = new FileStorage(path, FileStorage.WRITE);
+        faceRecognizer.save(fileStorage);
+    }
+
+    @Override
+    public void load(String path) {
+        FileStorage fileStorage = new FileStorage(path, FileStorage.READ);
+        faceRecognizer.load(fileStorage);
+    }
+
+    @Override
+    public void release() {
+        faceRecognizer.deallocate();
+    }
+
+    private static Mat labelsMat(int[] labels) {
+        Mat labelsMat = new Mat(labels.length, 1, CV_32SC1);
+        IntBuffer labelsBuf = labelsMat.createBuffer();
+        labelsBuf.put(labels);
+        return labelsMat;
+    }
+
+    private static IntStringMap labelsInfo(Map<Integer, String> names) {
+        IntStringMap labelsInfo = new IntStringMap();
+        for (Map.Entry<Integer, String> name : names.entrySet()) {
+            labelsInfo.put(name.getKey(), new BytePointer(name.getValue()));
+        }
+        return labelsInfo;
+    }
+}
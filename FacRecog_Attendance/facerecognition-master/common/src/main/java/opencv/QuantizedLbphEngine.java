@@ -0,0 +1,399 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+import static opencv.LbphEngine.DIMENSIONS;
+import static opencv.LbphEngine.PATTERNS;
+
+/**
+ * LBPH with the gallery histograms quantised to 8 or 16 bits and stored off
+ * the heap, in direct buffers of {@value #IMAGES_PER_SEGMENT} histograms each.
+ * Queries stay in full precision and are matched against the quantised values
+ * directly, with the chi-square distance of {@link LbphEngine}.
+ * <p>
+ * 16 bits store a histogram value v as round(v * 65535), which rounds it by at
+ * most 1/131070, so predictions rarely change. 8 bits store round(sqrt(v) * 255):
+ * the square root keeps the small values that most bins hold apart, at a
+ * quarter of the memory of floats.
+ * <p>
+ * Direct buffers count against -XX:MaxDirectMemorySize, which defaults to the
+ * maximum heap size.
+ */
+public class QuantizedLbphEngine implements RecognitionEngine {
+
+    static final int IMAGES_PER_SEGMENT = 1024;
+
+    private static final int MIN_HISTOGRAMS_PER_TASK = 64;
+    private static final int FILE_MAGIC = 0x4c425051;
+    // the value of every 8 and 16 bit code and its reciprocal, so matching multiplies instead of dividing
+    private static final float[] VALUES_8 = new float[1 << 8];
+    private static final float[] RECIPROCALS_8 = new float[1 << 8];
+    private static final float[] VALUES_16 = new float[1 << 16];
+    private static final float[] RECIPROCALS_16 = new float[1 << 16];
+
+    static {
+        for (int q = 1; q < VALUES_8.length; q++) {
+            float root = q / 255f;
+            VALUES_8[q] = root * root;
+            RECIPROCALS_8[q] = 1 / VALUES_8[q];
+        }
+        for (int q = 1; q < VALUES_16.length; q++) {
+            VALUES_16[q] = q / 65535f;
+            RECIPROCALS_16[q] = 1 / VALUES_16[q];
+        }
+    }
+
+    private final int bits;
+    private final int bytesPerHistogram;
+    private final ForkJoinPool pool;
+    private volatile Store store = Store.EMPTY;
+
+    /**
+     * @param bits 8 or 16
+     */
+    public QuantizedLbphEngine(int bits) {
+        this(bits, ForkJoinPool.commonPool());
+    }
+
+    public QuantizedLbphEngine(int bits, ForkJoinPool pool) {
+        if (bits != 8 && bits != 16) {
+            throw new IllegalArgumentException("Histograms can be quantised to 8 or 16 bits, not " + bits);
+        }
+        this.bits = bits;
+        this.bytesPerHistogram = DIMENSIONS * bits / 8;
+        this.pool = pool;
+    }
+
+    public int getBits() {
+        return bits;
+    }
+
+    public int size() {
+        return store.labels.length;
+    }
+
+    /**
+     * @return the off-heap memory held for histograms, including unused room in the last segment.
+     */
+    public long getGalleryBytes() {
+        return (long) store.segments.size() * IMAGES_PER_SEGMENT * bytesPerHistogram;
+    }
+
+    @Override
+    public synchronized void train(MatVector images, int[] labels, Map<Integer, String> names) {
+        store = append(Store.EMPTY, images, labels, names);
+    }
+
+    /**
+     * Adds images to the gallery. They are written after the histograms that
+     * predictions in progress can see, so those are not disturbed.
+     */
+    @Override
+    public synchronized void update(MatVector images, int[] labels, Map<Integer, String> names) {
+        store = append(store, images, labels, names);
+    }
+
+    /**
+     * The copy shares the full segments, which neither engine writes to again,
+     * and gets its own copy of the last one, which both may append to.
+     */
+    @Override
+    public RecognitionEngine updated(MatVector images, int[] labels, Map<Integer, String> names) {
+        Store base = store;
+        List<ByteBuffer> segments = new ArrayList<ByteBuffer>(base.segments);
+        if (base.labels.length % IMAGES_PER_SEGMENT != 0) {
+            int last = segments.size() - 1;
+            ByteBuffer copied = ByteBuffer.allocateDirect(IMAGES_PER_SEGMENT * bytesPerHistogram).order(ByteOrder.nativeOrder());
+            copied.put(segments.get(last).duplicate());
+            copied.clear();
+            segments.set(last, copied);
+        }
+        QuantizedLbphEngine copy = new QuantizedLbphEngine(bits, pool);
+        copy.store = append(new Store(Collections.unmodifiableList(segments), base.labels, base.names), images, labels, names);
+        return copy;
+    }
+
+    private Store append(Store base, MatVector images, int[] labels, Map<Integer, String> names) {
+        if (images.size() != labels.length) {
+            throw new IllegalArgumentException(images.size() + " images but " + labels.length + " labels");
+        }
+        int first = base.labels.length;
+        int size = first + labels.length;
+        final List<ByteBuffer> segments = new ArrayList<ByteBuffer>(base.segments);
+        while (segments.size() * IMAGES_PER_SEGMENT < size) {
+            segments.add(ByteBuffer.allocateDirect(IMAGES_PER_SEGMENT * bytesPerHistogram).order(ByteOrder.nativeOrder()));
+        }
+
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (int i = 0; i < labels.length; i++) {
+            final Mat image = images.get(i);
+            final int slot = first + i;
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    float[] histogram = new float[DIMENSIONS];
+                    LbphEngine.histogram(image, histogram, 0);
+                    quantise(histogram, segments.get(slot / IMAGES_PER_SEGMENT), (slot % IMAGES_PER_SEGMENT) * bytesPerHistogram);
+                    return null;
+                }
+            });
+        }
+        LbphEngine.invokeAll(pool, tasks);
+
+        int[] allLabels = Arrays.copyOf(base.labels, size);
+        System.arraycopy(labels, 0, allLabels, first, labels.length);
+        Map<Integer, String> allNames = new HashMap<Integer, String>(base.names);
+        allNames.putAll(names);
+        return new Store(Collections.unmodifiableList(segments), allLabels, allNames);
+    }
+
+    private void quantise(float[] histogram, ByteBuffer segment, int offset) {
+        if (bits == 8) {
+            for (int j = 0; j < DIMENSIONS; j++) {
+                segment.put(offset + j, (byte) Math.min(255, Math.round(Math.sqrt(histogram[j]) * 255)));
+            }
+        } else {
+            for (int j = 0; j < DIMENSIONS; j++) {
+                segment.putShort(offset + 2 * j, (short) Math.min(65535, Math.round(histogram[j] * 65535.0)));
+            }
+        }
+    }
+
+    @Override
+    public int predict(Mat image) {
+        int[] label = new int[1];
+        predict(image, label, new double[1]);
+        return label[0];
+    }
+
+    @Override
+    public void predict(Mat image, int[] label, double[] distance) {
+        final float[] query = new float[DIMENSIONS];
+        LbphEngine.histogram(image, query, 0);
+
+        final Store store = this.store;
+        int size = store.labels.length;
+        int tasks = Math.min(pool.getParallelism(), size / MIN_HISTOGRAMS_PER_TASK);
+        if (tasks <= 1) {
+            int best = closest(store, query, 0, size);
+            label[0] = best < 0 ? -1 : store.labels[best];
+            distance[0] = best < 0 ? Double.MAX_VALUE : chiSquare(store, best, query, Double.MAX_VALUE);
+            return;
+        }
+
+        List<Callable<Integer>> slices = new ArrayList<Callable<Integer>>();
+        for (int t = 0; t < tasks; t++) {
+            final int from = (int) ((long) size * t / tasks);
+            final int to = (int) ((long) size * (t + 1) / tasks);
+            slices.add(new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                    return closest(store, query, from, to);
+                }
+            });
+        }
+        int bestIndex = -1;
+        double bestDistance = Double.MAX_VALUE;
+        // slices are in gallery order, so keeping the first of equal distances matches a sequential search
+        for (int index : LbphEngine.invokeAll(pool, slices)) {
+            if (index >= 0) {
+                double indexDistance = chiSquare(store, index, query, Double.MAX_VALUE);
+                if (indexDistance < bestDistance) {
+                    bestDistance = indexDistance;
+                    bestIndex = index;
+                }
+            }
+        }
+        label[0] = bestIndex < 0 ? -1 : store.labels[bestIndex];
+        distance[0] = bestDistance;
+    }
+
+    private int closest(Store store, float[] query, int from, int to) {
+        int bestIndex = -1;
+        double bestDistance = Double.MAX_VALUE;
+        for (int i = from; i < to; i++) {
+            double distance = chiSquare(store, i, query, bestDistance);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                bestIndex = i;
+            }
+        }
+        return bestIndex;
+    }
+
+    /**
+     * The chi-square distance of {@link LbphEngine#chiSquare}, with the
+     * training histogram read from its quantised values.
+     */
+    private double chiSquare(Store store, int index, float[] query, double limit) {
+        ByteBuffer segment = store.segments.get(index / IMAGES_PER_SEGMENT);
+        int offset = (index % IMAGES_PER_SEGMENT) * bytesPerHistogram;
+        double result = 0;
+        for (int cell = 0; cell < DIMENSIONS; cell += PATTERNS) {
+            if (bits == 8) {
+                for (int j = cell; j < cell + PATTERNS; j++) {
+                    int q = segment.get(offset + j) & 0xff;
+                    if (q > 0) {
+                        double a = VALUES_8[q] - query[j];
+                        result += a * a * RECIPROCALS_8[q];
+                    }
+                }
+            } else {
+                for (int j = cell; j < cell + PATTERNS; j++) {
+                    int q = segment.getShort(offset + 2 * j) & 0xffff;
+                    if (q > 0) {
+                        double a = VALUES_16[q] - query[j];
+                        result += a * a * RECIPROCALS_16[q];
+                    }
+                }
+            }
+            if (result >= limit) {
+                return result;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String getLabelInfo(int label) {
+        String name = store.names.get(label);
+        return name == null ? "" : name;
+    }
+
+    /**
+     * Saves the quantised histograms as they are, so a model loads back unchanged.
+     */
+    @Override
+    public void save(String path) throws IOException {
+        Store store = this.store;
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            file.setLength(0);
+            FileChannel channel = file.getChannel();
+            DataOutputStream out = new DataOutputStream(Channels.newOutputStream(channel));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(bits);
+            out.writeInt(DIMENSIONS);
+            out.writeInt(store.names.size());
+            for (Map.Entry<Integer, String> name : store.names.entrySet()) {
+                out.writeInt(name.getKey());
+                out.writeUTF(name.getValue());
+            }
+            out.writeInt(store.labels.length);
+            for (int label : store.labels) {
+                out.writeInt(label);
+            }
+            out.flush();
+            int remaining = store.labels.length;
+            for (ByteBuffer segment : store.segments) {
+                ByteBuffer used = segment.duplicate();
+                used.position(0).limit(Math.min(remaining, IMAGES_PER_SEGMENT) * bytesPerHistogram);
+                while (used.hasRemaining()) {
+                    channel.write(used);
+                }
+                remaining -= IMAGES_PER_SEGMENT;
+            }
+        } finally {
+            file.close();
+        }
+    }
+
+    @Override
+    public synchronized void load(String path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            FileChannel channel = file.getChannel();
+            DataInputStream in = new DataInputStream(Channels.newInputStream(channel));
+            if (in.readInt() != FILE_MAGIC || in.readInt() != bits || in.readInt() != DIMENSIONS) {
+                throw new IOException("Not a " + bits + " bit LBPH model: " + path);
+            }
+            Map<Integer, String> names = new HashMap<Integer, String>();
+            for (int i = in.readInt(); i > 0; i--) {
+                names.put(in.readInt(), in.readUTF());
+            }
+            int[] labels = new int[in.readInt()];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = in.readInt();
+            }
+            List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+            for (int remaining = labels.length; remaining > 0; remaining -= IMAGES_PER_SEGMENT) {
+                ByteBuffer segment = ByteBuffer.allocateDirect(IMAGES_PER_SEGMENT * bytesPerHistogram).order(ByteOrder.nativeOrder());
+                segment.limit(Math.min(remaining, IMAGES_PER_SEGMENT) * bytesPerHistogram);
+                while (segment.hasRemaining()) {
+                    if (channel.read(segment) < 0) {
+                        throw new EOFException("Model ends early: " + path);
+                    }
+                }
+                segment.clear();
+                segments.add(segment);
+            }
+            store = new Store(Collections.unmodifiableList(segments), labels, names);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Drops the gallery; its direct buffers are freed when garbage collected.
+     */
+    @Override
+    public synchronized void release() {
+        store = Store.EMPTY;
+    }
+
+    /**
+     * Segments of quantised histograms with their labels. Histograms are only
+     * ever written past the size of a published store, so a store never changes
+     * for its readers.
+     */
+    private static class Store {
+        static final Store EMPTY = new Store(Collections.<ByteBuffer>emptyList(), new int[0], Collections.<Integer, String>emptyMap());
+
+        final List<ByteBuffer> segments;
+        final int[] labels;
+        final Map<Integer, String> names;
+
+        Store(List<ByteBuffer> segments, int[] labels, Map<Integer, String> names) {
+            this.segments = segments;
+            this.labels = labels;
+            this.names = names;
+        }
+    }
+}
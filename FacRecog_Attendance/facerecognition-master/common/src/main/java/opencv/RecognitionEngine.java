@@ -0,0 +1,84 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+
+import java.io.IOException;
+import java.util.Map;
+
+/**
+ * A face recognition algorithm: trained with labelled grayscale images, it
+ * predicts the label of the training image closest to a query image.
+ * Implementations may be trained once and then used from many threads.
+ */
+public interface RecognitionEngine {
+
+    /**
+     * Replaces the gallery with the given images.
+     * @param images grayscale images of equal size.
+     * @param labels label of every image.
+     * @param names name of every label, kept with the model.
+     */
+    void train(MatVector images, int[] labels, Map<Integer, String> names);
+
+    /**
+     * Adds images to the gallery without training again from scratch.
+     * @throws UnsupportedOperationException if the algorithm needs to be trained again.
+     */
+    void update(MatVector images, int[] labels, Map<Integer, String> names);
+
+    /**
+     * Adds images to a copy of the gallery, leaving this engine as it is, so
+     * predictions running on it meanwhile are not disturbed.
+     * @return a new engine with the gallery of this one and the images.
+     * @throws UnsupportedOperationException if the algorithm needs to be trained again.
+     */
+    RecognitionEngine updated(MatVector images, int[] labels, Map<Integer, String> names);
+
+    /**
+     * @param image grayscale image of the size trained with.
+     * @return label of the closest training image, or -1 if none is close enough.
+     */
+    int predict(Mat image);
+
+    /**
+     * Predicts with the distance to the closest training image, which can be
+     * compared between engines of the same algorithm, such as the shards of a gallery.
+     * @param label receives the label of the closest training image, or -1.
+     * @param distance receives the distance to it, smaller for closer images.
+     */
+    void predict(Mat image, int[] label, double[] distance);
+
+    /**
+     * @return the name kept with the model for the label, or "" if not known.
+     */
+    String getLabelInfo(int label);
+
+    void save(String path) throws IOException;
+
+    void load(String path) throws IOException;
+
+    /**
+     * Frees native memory right away instead of when garbage collected.
+     * The engine cannot be used afterwards.
+     */
+    void release();
+}
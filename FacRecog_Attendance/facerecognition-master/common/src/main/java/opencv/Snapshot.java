@@ -0,0 +1,98 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package opencv;
+
+import java.awt.image.BufferedImage;
+import java.util.Queue;
+
+import static org.bytedeco.javacpp.opencv_core.*;
+
+/**
+ * A camera frame captured to be sent for recognition. The frame is kept as
+ * grabbed, and only flipped and converted once it is actually sent.
+ */
+public class Snapshot {
+
+    private final long frameId;
+    private final String cameraId;
+    private final IplImage image;
+    private final long captureTime;
+    private final long captureNanos;
+    private final Queue<IplImage> recycler;
+
+    Snapshot(long frameId, String cameraId, IplImage image, long captureTime, long captureNanos, Queue<IplImage> recycler) {
+        this.frameId = frameId;
+        this.cameraId = cameraId;
+        this.image = image;
+        this.captureTime = captureTime;
+        this.captureNanos = captureNanos;
+        this.recycler = recycler;
+    }
+
+    /**
+     * @return the number of the frame, counted from the start of the capture,
+     * which identifies it from capture to the recognition result.
+     */
+    public long getFrameId() {
+        return frameId;
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    /**
+     * @return the time the frame was grabbed, in milliseconds.
+     */
+    public long getCaptureTime() {
+        return captureTime;
+    }
+
+    /**
+     * @return the System.nanoTime() at which the frame was grabbed.
+     */
+    public long getCaptureNanos() {
+        return captureNanos;
+    }
+
+    public int getWidth() {
+        return image.width();
+    }
+
+    public int getHeight() {
+        return image.height();
+    }
+
+    /**
+     * Mirrors the frame, like the camera preview, and converts it into an image
+     * which can be sent to the recognition service.
+     */
+    public BufferedImage toBufferedImage() {
+        cvFlip(image, image, 1);
+        return Util.iplImageToBufferedImage(image, null);
+    }
+
+    /**
+     * Hands the native frame buffer back to the camera capture for reuse. The
+     * snapshot must not be used afterwards.
+     */
+    public void release() {
+        recycler.offer(image);
+    }
+}
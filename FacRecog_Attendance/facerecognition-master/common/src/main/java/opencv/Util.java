@@ -24,11 +24,27 @@ import org.bytedeco.javacpp.BytePointer;
 
 import javax.swing.*;
 import java.awt.*;
+import java.awt.color.ColorSpace;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.CodeSource;
 
 import static org.bytedeco.javacpp.opencv_core.*;
@@ -53,18 +69,25 @@ public class Util {
         return imageFiles;
     }
 
+    /**
+     * @return a new gray image, to be freed with {@link #releaseImage(IplImage)}.
+     */
     public static IplImage cvArrToGray(CvArr matColored) {
-        IplImage grayIplImage = IplImage.create(matColored.arrayWidth(), matColored.arrayHeight(), IPL_DEPTH_8U, 1);
+        IplImage grayIplImage = NativeAllocations.allocated(IplImage.create(matColored.arrayWidth(), matColored.arrayHeight(), IPL_DEPTH_8U, 1));
         cvCvtColor(matColored, grayIplImage, CV_RGB2GRAY);
         return grayIplImage;
     }
 
+    /**
+     * @return the image itself if it is gray already, otherwise a new gray image
+     * to be freed with {@link #releaseImage(IplImage)}.
+     */
     public static IplImage iplImage2gray(IplImage image) {
         if (image.nChannels() == 1) {
             System.err.println("n channels 1 rturn original");
             return image;
         }
-        IplImage grayIplImage = IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1);
+        IplImage grayIplImage = NativeAllocations.allocated(IplImage.create(image.width(), image.height(), IPL_DEPTH_8U, 1));
         if (image.nChannels() == 3) {
             cvCvtColor(image, grayIplImage, CV_RGB2GRAY);
         } else if (image.nChannels() == 4) {
@@ -73,6 +96,15 @@ public class Util {
         return grayIplImage;
     }
 
+    /**
+     * Frees an image allocated by this code base, and removes it from the
+     * native memory accounting.
+     */
+    public static void releaseImage(IplImage image) {
+        NativeAllocations.freed(image);
+        cvReleaseImage(image);
+    }
+
     /**
      * Resize a BufferedImage to specified width and height.
      * @param image the image to resize.
@@ -90,18 +122,56 @@ public class Util {
     }
 
     public static MatVector loadImages(File[] imageFiles, int CV_LOAD_MODE) {
+        return loadImages(imageFiles, CV_LOAD_MODE, FaceRecogniser.DEFAULT_DOWNSCALE_FACTOR);
+    }
+
+    /**
+     * Loads mirrored training images, scaled down by the same factor as the
+     * frames they will be compared with. The vector holds the only reference
+     * to every image, so {@link MatVector#deallocate()} frees them all.
+     */
+    public static MatVector loadImages(File[] imageFiles, int CV_LOAD_MODE, int downscaleFactor) {
         MatVector imgMatVector = new MatVector(imageFiles.length);
         for (int i = 0; i < imageFiles.length; i++) {
             Mat img = imread(imageFiles[i].getAbsolutePath(), CV_LOAD_MODE);
-            cvFlip(img.asCvMat(), img.asCvMat(), 1);
-            Mat matGraySmall = new Mat(img.rows() / 4, img.cols() / 4, CV_8UC1);
-            cvResize(img.asCvMat(), matGraySmall.asCvMat(), CV_INTER_AREA);
-            imgMatVector.put(i, matGraySmall);
+            Mat prepared = prepareTrainingImage(img, downscaleFactor);
+            img.release();
+            imgMatVector.put(i, prepared);
+            prepared.release();
             //imgMatVector.put(i, img);
         }
         return imgMatVector;
     }
 
+    /**
+     * Decodes an encoded image file, such as a PNG, into a grayscale training
+     * image prepared the same way as by {@link #loadImages}.
+     * @throws IllegalArgumentException if the bytes cannot be decoded.
+     */
+    public static Mat decodeTrainingImage(byte[] encodedImage, int downscaleFactor) {
+        Mat encoded = new Mat(1, encodedImage.length, CV_8UC1);
+        encoded.ptr().put(encodedImage);
+        Mat img = imdecode(encoded, CV_LOAD_IMAGE_GRAYSCALE);
+        encoded.release();
+        if (img == null || img.empty()) {
+            throw new IllegalArgumentException("Not a readable image");
+        }
+        Mat prepared = prepareTrainingImage(img, downscaleFactor);
+        img.release();
+        return prepared;
+    }
+
+    /**
+     * Mirrors a training image in place and returns a copy scaled down by the
+     * same factor as the frames it will be compared with.
+     */
+    private static Mat prepareTrainingImage(Mat img, int downscaleFactor) {
+        cvFlip(img.asCvMat(), img.asCvMat(), 1);
+        Mat matGraySmall = new Mat(img.rows() / downscaleFactor, img.cols() / downscaleFactor, CV_8UC1);
+        cvResize(img.asCvMat(), matGraySmall.asCvMat(), CV_INTER_AREA);
+        return matGraySmall;
+    }
+
     public static Mat loadImage(File imageFile, int CV_LOAD_MODE) {
         return imread(imageFile.getAbsolutePath(), CV_LOAD_MODE);
     }
@@ -120,45 +190,226 @@ public class Util {
         return data;
     }
 
+    /**
+     * The Mat type holding the pixels of a BufferedImage type sent by a client.
+     * @param bufferedImageType TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
+     * @return CV_8UC3 or CV_8UC1
+     */
+    public static int matTypeOf(int bufferedImageType) {
+        switch (bufferedImageType) {
+            case BufferedImage.TYPE_3BYTE_BGR:
+                return CV_8UC3;
+            case BufferedImage.TYPE_BYTE_GRAY:
+                return CV_8UC1;
+            default:
+                throw new IllegalArgumentException("Unrecognized type");
+        }
+    }
+
+    /**
+     * Fills a continuous Mat with image data read straight from a stream into
+     * its native memory, without an intermediate heap copy of the image.
+     * @param in stream holding at least as many bytes as the Mat.
+     * @param mat the Mat to fill.
+     * @throws EOFException if the stream ends before the Mat is filled.
+     */
+    public static void readFully(InputStream in, Mat mat) throws IOException {
+        ByteBuffer buffer = nativeBuffer(mat);
+        ReadableByteChannel channel = Channels.newChannel(in);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new EOFException("Image data ended after " + buffer.position() + " of " + buffer.capacity() + " bytes");
+            }
+        }
+    }
+
+    /**
+     * Writes the pixels of a continuous Mat from its native memory to a stream.
+     */
+    public static void write(Mat mat, OutputStream out) throws IOException {
+        ByteBuffer buffer = nativeBuffer(mat);
+        WritableByteChannel channel = Channels.newChannel(out);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Copies image bytes sent by a client into a pooled Mat, converted to grayscale.
+     * @param buffers lease the Mats are taken from.
+     * @param byteImage the pixels of a BufferedImage of the given type.
+     * @param type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
+     * @return a grayscale Mat owned by the lease.
+     */
+    public static Mat convertBytesToImage(MatPool.Lease buffers, byte[] byteImage, int type, int width, int height) {
+        Mat imageMat = buffers.acquire(height, width, matTypeOf(type));
+        if (byteImage.length != byteCount(imageMat)) {
+            throw new IllegalArgumentException("Image size does not match " + width + "x" + height);
+        }
+        imageMat.ptr().put(byteImage);
+
+        return toGray(buffers, imageMat);
+    }
+
+    /**
+     * Reads image bytes sent by a client straight into a pooled Mat, converted to grayscale.
+     * @param buffers lease the Mats are taken from.
+     * @param imageStream stream holding the pixels of a BufferedImage of the given type.
+     * @param type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
+     * @return a grayscale Mat owned by the lease.
+     */
+    public static Mat readImage(MatPool.Lease buffers, InputStream imageStream, int type, int width, int height) throws IOException {
+        Mat imageMat = buffers.acquire(height, width, matTypeOf(type));
+        readFully(imageStream, imageMat);
+
+        return toGray(buffers, imageMat);
+    }
+
+    /**
+     * @return the Mat itself if already grayscale, otherwise a grayscale copy owned by the lease.
+     */
+    public static Mat toGray(MatPool.Lease buffers, Mat imageMat) {
+        if (imageMat.type() != CV_8UC1) {
+            Mat matGray = buffers.acquire(imageMat.rows(), imageMat.cols(), CV_8UC1);
+            cvtColor(imageMat, matGray, CV_RGB2GRAY);
+            imageMat = matGray;
+        }
+        return imageMat;
+    }
+
+    /**
+     * Scale an image down by the given factor, into a Mat owned by the lease.
+     */
+    public static Mat downscale(MatPool.Lease buffers, Mat imageMat, int factor) {
+        Mat imageMatResized = buffers.acquire(imageMat.rows() / factor, imageMat.cols() / factor, imageMat.type());
+        cvResize(buffers.header(imageMat), buffers.header(imageMatResized), CV_INTER_AREA);
+        return imageMatResized;
+    }
+
+    public static int byteCount(Mat mat) {
+        return (int) (mat.total() * mat.elemSize());
+    }
+
+    private static ByteBuffer nativeBuffer(Mat mat) {
+        if (!mat.isContinuous()) {
+            throw new IllegalArgumentException("Mat rows are not stored contiguously");
+        }
+        BytePointer data = mat.ptr();
+        data.capacity(byteCount(mat));
+        return data.asByteBuffer();
+    }
+
     /**
      * Converts/writes a Mat into a BufferedImage.
      *
      * @param mat Mat of type CV_8UC3 or CV_8UC1
-     * @return BufferedImage of type TYPE_INT_RGB or TYPE_BYTE_GRAY
+     * @return BufferedImage of type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY
      */
     public static BufferedImage matToBufferedImage(Mat mat) {
+        return matToBufferedImage(mat, null);
+    }
+
+    /**
+     * Writes a Mat into a BufferedImage with the same pixel layout. OpenCV stores
+     * colour pixels as BGR, which is exactly the byte layout of TYPE_3BYTE_BGR, so
+     * the pixels are copied once from native memory straight into the array backing
+     * the raster, without an intermediate array or a colour-order swap.
+     *
+     * @param mat Mat of type CV_8UC3 or CV_8UC1
+     * @param reuse image to write into if its size and type match, may be null.
+     * @return reuse, or a new image if it did not match. Null for unsupported Mats.
+     */
+    public static BufferedImage matToBufferedImage(Mat mat, BufferedImage reuse) {
+        int type = bufferedImageTypeOf(mat.channels());
+        if (type < 0) {
+            return null;
+        }
         int cols = mat.cols();
         int rows = mat.rows();
-        int elemSize = (int) mat.elemSize();
-        byte[] data = new byte[cols * rows * elemSize];
-        BytePointer dataPtr = mat.ptr();
-        dataPtr.get(data);
-        int type;
+        BufferedImage image = compatibleImage(reuse, cols, rows, type);
+        byte[] data = image2Bytes(image);
+        int rowBytes = cols * (int) mat.elemSize();
 
-        switch (mat.channels()) {
-            case 1:
-                type = BufferedImage.TYPE_BYTE_GRAY;
-                break;
-            case 3:
-                type = BufferedImage.TYPE_3BYTE_BGR;
-                // bgr to rgb
-                byte b;
-                for (int i = 0; i < data.length; i = i + 3) {
-                    b = data[i];
-                    data[i] = data[i + 2];
-                    data[i + 2] = b;
-                }
-                break;
+        if (mat.isContinuous()) {
+            mat.ptr().get(data, 0, rowBytes * rows);
+        } else {
+            for (int row = 0; row < rows; row++) {
+                mat.ptr(row).get(data, row * rowBytes, rowBytes);
+            }
+        }
+        return image;
+    }
 
-            default:
-                return null;
+    /**
+     * Writes a grabbed camera frame into a BufferedImage with the same pixel layout,
+     * copying each row once from native memory into the array backing the raster.
+     *
+     * @param iplImage 8-bit image with 1 or 3 channels.
+     * @param reuse image to write into if its size and type match, may be null.
+     * @return reuse, or a new image if it did not match. Null for unsupported images.
+     */
+    public static BufferedImage iplImageToBufferedImage(IplImage iplImage, BufferedImage reuse) {
+        int type = bufferedImageTypeOf(iplImage.nChannels());
+        if (type < 0 || iplImage.depth() != IPL_DEPTH_8U) {
+            return null;
         }
+        int width = iplImage.width();
+        int height = iplImage.height();
+        BufferedImage image = compatibleImage(reuse, width, height, type);
+        byte[] data = image2Bytes(image);
+        int rowBytes = width * iplImage.nChannels();
+        int widthStep = iplImage.widthStep();
+        BytePointer imageData = iplImage.imageData();
 
+        if (widthStep == rowBytes) {
+            imageData.get(data, 0, rowBytes * height);
+        } else {
+            for (int row = 0; row < height; row++) {
+                imageData.position(row * widthStep).get(data, row * rowBytes, rowBytes);
+            }
+        }
+        return image;
+    }
 
-        BufferedImage image = new BufferedImage(cols, rows, type);
-        image.getRaster().setDataElements(0, 0, cols, rows, data);
+    /**
+     * Writes a BufferedImage into a Mat with the same pixel layout, in one copy from
+     * the array backing the raster into native memory.
+     *
+     * @param image image of type TYPE_3BYTE_BGR or TYPE_BYTE_GRAY.
+     * @param reuse Mat to write into, reallocated only if its size or type differ. May be null.
+     * @return reuse, or a new Mat if reuse was null.
+     */
+    public static Mat bufferedImageToMat(BufferedImage image, Mat reuse) {
+        int matType = matTypeOf(image.getType());
+        Mat mat = reuse != null ? reuse : new Mat();
+        mat.create(image.getHeight(), image.getWidth(), matType);
+        mat.ptr().put(image2Bytes(image));
+        return mat;
+    }
 
-        return image;
+    /**
+     * Swaps between RGB and BGR channel order natively. src and dst may be the same Mat.
+     */
+    public static void swapRedBlue(Mat src, Mat dst) {
+        cvtColor(src, dst, CV_RGB2BGR);
+    }
+
+    private static int bufferedImageTypeOf(int channels) {
+        switch (channels) {
+            case 1:
+                return BufferedImage.TYPE_BYTE_GRAY;
+            case 3:
+                return BufferedImage.TYPE_3BYTE_BGR;
+            default:
+                return -1;
+        }
+    }
+
+    private static BufferedImage compatibleImage(BufferedImage image, int width, int height, int type) {
+        if (image != null && image.getWidth() == width && image.getHeight() == height && image.getType() == type) {
+            return image;
+        }
+        return new BufferedImage(width, height, type);
     }
 
     public static void displayImage(Image image) {
@@ -173,6 +424,17 @@ public class Util {
         frame.setDefaultCloseOperation(WindowConstants.EXIT_ON_CLOSE);
     }
 
+    /**
+     * @return the name of this machine, or "localhost" if it cannot be resolved.
+     */
+    public static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        } catch (UnknownHostException e) {
+            return "localhost";
+        }
+    }
+
     public static String getProjectRootDir(Class c) throws FileNotFoundException {
         CodeSource codeSource = c.getProtectionDomain().getCodeSource();
         File file = new File(codeSource.getLocation().getPath());
@@ -209,20 +471,36 @@ public class Util {
         return matBytesToBufferedImage(entityDTO.getBytes(), entityDTO.getCols(), entityDTO.getRows(), entityDTO.getType());
     }
 
+    /**
+     * Wraps Mat bytes in a BufferedImage without copying them. Gray and BGR
+     * Mats share their layout with TYPE_BYTE_GRAY and TYPE_3BYTE_BGR rasters, so
+     * the image is backed by the given array.
+     * @param data Mat pixel data, owned by the returned image afterwards.
+     * @param type the OpenCV type of the Mat.
+     */
     public static BufferedImage matBytesToBufferedImage(byte[] data, int cols, int rows, int type) {
-        int bufferedType = 10;
+        ColorSpace colorSpace;
+        int[] bandOffsets;
 
         switch (type) {
-            case 0:
-                bufferedType = BufferedImage.TYPE_BYTE_GRAY;
+            case 0: // CV_8UC1
+                colorSpace = ColorSpace.getInstance(ColorSpace.CS_GRAY);
+                bandOffsets = new int[]{0};
                 break;
-            case 16:
-                bufferedType = BufferedImage.TYPE_3BYTE_BGR;
+            case 16: // CV_8UC3
+                colorSpace = ColorSpace.getInstance(ColorSpace.CS_sRGB);
+                bandOffsets = new int[]{2, 1, 0};
                 break;
+            default:
+                BufferedImage image = new BufferedImage(cols, rows, BufferedImage.TYPE_BYTE_GRAY);
+                image.getRaster().setDataElements(0, 0, cols, rows, data);
+                return image;
         }
 
-        BufferedImage image = new BufferedImage(cols, rows, bufferedType);
-        image.getRaster().setDataElements(0, 0, cols, rows, data);
-        return image;
+        int channels = bandOffsets.length;
+        WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(data, data.length),
+                cols, rows, cols * channels, channels, bandOffsets, null);
+        ColorModel colorModel = new ComponentColorModel(colorSpace, false, false, Transparency.OPAQUE, DataBuffer.TYPE_BYTE);
+        return new BufferedImage(colorModel, raster, false, null);
     }
 }
@@ -18,7 +18,13 @@
 
 package com.facerecog.rest;
 
+import com.facerecog.rest.metrics.NativeMemoryMetrics;
+import com.facerecog.rest.metrics.RecognitionMetrics;
+import com.facerecog.rest.service.RecognitionPipeline;
 import com.facerecog.rest.service.RecognitionService;
+import com.facerecog.rest.service.ShardCoordinator;
+import opencv.FaceRecogniser;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.SpringApplicationContextLoader;
@@ -28,7 +34,11 @@ import org.springframework.http.converter.json.SpringHandlerInstantiator;
 import org.springframework.scheduling.annotation.EnableAsync;
 
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 @SpringBootApplication
 @EnableAsync
@@ -40,8 +50,72 @@ public class Application {
     }
 
     @Bean
-    public RecognitionService recognitionService() throws FileNotFoundException, URISyntaxException {
-        return new RecognitionService();
+    public RecognitionMetrics recognitionMetrics() {
+        return new RecognitionMetrics();
+    }
+
+    @Bean
+    public NativeMemoryMetrics nativeMemoryMetrics(@Value("${recognition.native-memory.track-allocation-sites:false}") boolean trackAllocationSites,
+                                                   @Value("${recognition.native-memory.report-every-requests:1000}") int reportEveryRequests) {
+        return new NativeMemoryMetrics(trackAllocationSites, reportEveryRequests);
+    }
+
+    /**
+     * @param recogniseThreads the number of requests recognised at once, 0 for one per processor.
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RecognitionPipeline recognitionPipeline(@Value("${recognition.pipeline.decode.threads:2}") int decodeThreads,
+                                                   @Value("${recognition.pipeline.recognise.threads:0}") int recogniseThreads,
+                                                   @Value("${recognition.pipeline.encode.threads:2}") int encodeThreads,
+                                                   @Value("${recognition.pipeline.queue-capacity:16}") int queueCapacity,
+                                                   @Value("${recognition.pipeline.decode.queue-capacity:16}") int decodeQueueCapacity,
+                                                   @Value("${recognition.pipeline.default-deadline-ms:1000}") long defaultDeadlineMillis,
+                                                   @Value("${recognition.pipeline.max-deadline-ms:5000}") long maxDeadlineMillis,
+                                                   @Value("${recognition.pipeline.weight.detect:4}") double detectWeight,
+                                                   @Value("${recognition.pipeline.weight.identify:1}") double identifyWeight,
+                                                   @Value("${recognition.pipeline.weight.match:2}") double matchWeight) {
+        RecognitionPipeline pipeline = new RecognitionPipeline(decodeThreads,
+                recogniseThreads > 0 ? recogniseThreads : Runtime.getRuntime().availableProcessors(),
+                encodeThreads, queueCapacity, decodeQueueCapacity, defaultDeadlineMillis, maxDeadlineMillis, recognitionMetrics());
+        pipeline.setWeight(RecognitionPipeline.RequestClass.DETECT, detectWeight);
+        pipeline.setWeight(RecognitionPipeline.RequestClass.IDENTIFY, identifyWeight);
+        pipeline.setWeight(RecognitionPipeline.RequestClass.MATCH, matchWeight);
+        return pipeline;
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public RecognitionService recognitionService(NativeMemoryMetrics nativeMemoryMetrics,
+                                                 @Value("${recognition.algorithm:LBPH}") FaceRecogniser.Algorithm algorithm,
+                                                 @Value("${recognition.algorithms.also-trained:}") String alsoTrained,
+                                                 @Value("${recognition.algorithms.ensemble:false}") boolean ensemble,
+                                                 @Value("${recognition.index-probes:8}") int indexProbes,
+                                                 @Value("${recognition.shard.index:0}") int shardIndex,
+                                                 @Value("${recognition.shard.count:1}") int shardCount,
+                                                 @Value("${recognition.shards.urls:}") String shardUrls,
+                                                 @Value("${recognition.shards.deadline-ms:250}") long shardDeadlineMillis,
+                                                 @Value("${recognition.training.watch:true}") boolean watchTrainingSet,
+                                                 @Value("${recognition.training.debounce-ms:5000}") long debounceMillis,
+                                                 @Value("${recognition.enrollment.decoders:0}") int enrollmentDecoders,
+                                                 @Value("${recognition.enrollment.save-images:true}") boolean saveEnrolledImages)
+            throws IOException, URISyntaxException {
+        ShardCoordinator shards = null;
+        if (!shardUrls.trim().isEmpty()) {
+            shards = new ShardCoordinator(Arrays.asList(shardUrls.trim().split("\\s*,\\s*")), shardDeadlineMillis, recognitionMetrics());
+        }
+        List<FaceRecogniser.Algorithm> algorithms = new ArrayList<>();
+        algorithms.add(algorithm);
+        for (String name : alsoTrained.split(",")) {
+            if (!name.trim().isEmpty() && !algorithms.contains(FaceRecogniser.parseAlgorithm(name))) {
+                algorithms.add(FaceRecogniser.parseAlgorithm(name));
+            }
+        }
+        RecognitionService recognitionService = new RecognitionService(recognitionMetrics(), nativeMemoryMetrics, algorithms, ensemble,
+                indexProbes, shardIndex, shardCount, shards);
+        if (watchTrainingSet && shards == null) {
+            recognitionService.watchTrainingSet(debounceMillis);
+        }
+        recognitionService.configureEnrollment(enrollmentDecoders, saveEnrolledImages);
+        return recognitionService;
     }
 
 }
\ No newline at end of file
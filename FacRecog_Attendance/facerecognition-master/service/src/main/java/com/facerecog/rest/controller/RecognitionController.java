@@ -18,20 +18,39 @@
 
 package com.facerecog.rest.controller;
 
+import api.ApiHeaders;
 import api.ApiUrls;
+import com.facerecog.rest.metrics.RequestTrace;
+import com.facerecog.rest.service.RecognitionJob;
+import com.facerecog.rest.service.RecognitionPipeline;
+import com.facerecog.rest.service.RecognitionPipeline.RequestClass;
+import com.facerecog.rest.service.RecognitionResultWriter;
+import com.facerecog.rest.service.ServiceOverloadedException;
+import dto.EnrollmentDTO;
+import dto.MatchDTO;
 import dto.RecognitionDTO;
+import metrics.ServerTiming;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.util.concurrent.ListenableFuture;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.multipart.MultipartFile;
 import com.facerecog.rest.service.RecognitionService;
 
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
 
 @RestController
 @RequestMapping(value = ApiUrls.ROOT_URL_RECOG)
@@ -40,26 +59,38 @@ public class RecognitionController {
     @Autowired
     RecognitionService recognitionService;
 
+    @Autowired
+    RecognitionPipeline recognitionPipeline;
+
     private org.slf4j.Logger logger = LoggerFactory.getLogger(RecognitionController.class);
 
 
     /**
      * Handle requests to /recog/detectIdentify - uses face recognition algorithm to
-     * identify the person in an uploaded image file.
+     * identify the person in an uploaded image file. An algorithm header chooses one of
+     * the trained algorithms, or ENSEMBLE for all of them.
      *
      * @return DTO containing predicted name of person and down-scaled image with rect around face
      */
     @RequestMapping(value = ApiUrls.URL_RECOG_DETECT_IDENTIFY, method = RequestMethod.POST)
     public
-    Callable<RecognitionDTO>
+    ListenableFuture<RecognitionDTO>
     identifyAndDetectAsync(final HttpEntity<byte[]> requestEntity,
-                        @RequestHeader(value = "imageType") int imageType,
-                        @RequestHeader(value = "imageWidth") int imageWidth,
-                        @RequestHeader(value = "imageHeight") int imageHeight)
-            throws ExecutionException, InterruptedException {
-        logger.info("Detection & identification (async). Image type: " + imageType + ", width: " + imageWidth+ ", height: " + imageHeight);
+                        final HttpServletRequest request,
+                        final HttpServletResponse response,
+                        @RequestHeader(value = "imageType") final int imageType,
+                        @RequestHeader(value = "imageWidth") final int imageWidth,
+                        @RequestHeader(value = "imageHeight") final int imageHeight,
+                        @RequestHeader(value = ApiHeaders.FRAME_ID, required = false) Long frameId,
+                        @RequestHeader(value = ApiHeaders.CAMERA_ID, required = false) String cameraId,
+                        @RequestHeader(value = ApiHeaders.ALGORITHM, required = false) final String algorithm,
+                        @RequestHeader(value = ApiHeaders.DEADLINE_MILLIS, required = false) Long deadlineMillis) {
+        logger.info("Detection & identification (async). Frame: " + frameId + ", camera: " + cameraId + ", image type: " + imageType + ", width: " + imageWidth+ ", height: " + imageHeight);
 
-        return recognitionService.detectedAndIdentifyAsync(requestEntity.getBody(), imageType, imageWidth, imageHeight);
+        RequestTrace trace = startTrace(response, frameId, cameraId, imageWidth, imageHeight);
+        return recognitionPipeline.submit(new ServerTimingJob<>(recognitionService.detectAndIdentify(requestEntity.getBody(),
+                imageType, imageWidth, imageHeight, algorithm, trace), response, trace),
+                RequestClass.IDENTIFY, tenantOf(request, cameraId), deadlineMillis, trace);
     }
 
     /**
@@ -69,17 +100,149 @@ public class RecognitionController {
      */
     @RequestMapping(value = ApiUrls.URL_RECOG_DETECT, method = RequestMethod.POST)
     public
-    RecognitionDTO
+    ListenableFuture<RecognitionDTO>
     detect(final HttpEntity<byte[]> requestEntity,
+                       final HttpServletRequest request,
+                       final HttpServletResponse response,
                        @RequestHeader(value = "imageType") int imageType,
                        @RequestHeader(value = "imageWidth") int imageWidth,
-                       @RequestHeader(value = "imageHeight") int imageHeight)
-            throws ExecutionException, InterruptedException {
-        logger.info("Detection only. Image type: " + imageType + ", width: " + imageWidth+ ", height: " + imageHeight);
+                       @RequestHeader(value = "imageHeight") int imageHeight,
+                       @RequestHeader(value = ApiHeaders.FRAME_ID, required = false) Long frameId,
+                       @RequestHeader(value = ApiHeaders.CAMERA_ID, required = false) String cameraId,
+                       @RequestHeader(value = ApiHeaders.DEADLINE_MILLIS, required = false) Long deadlineMillis) {
+        logger.info("Detection only. Frame: " + frameId + ", camera: " + cameraId + ", image type: " + imageType + ", width: " + imageWidth+ ", height: " + imageHeight);
+
+        RequestTrace trace = startTrace(response, frameId, cameraId, imageWidth, imageHeight);
+        return recognitionPipeline.submit(new ServerTimingJob<>(recognitionService.detect(requestEntity.getBody(),
+                imageType, imageWidth, imageHeight, trace), response, trace),
+                RequestClass.DETECT, tenantOf(request, cameraId), deadlineMillis, trace);
+    }
+
+    /**
+     * Handle requests to /recog/detectIdentify/raw - same as /recog/detectIdentify, but the
+     * request body is read straight into native image memory and the resulting image is
+     * written back as raw bytes, described by the response headers.
+     */
+    @RequestMapping(value = ApiUrls.URL_RECOG_DETECT_IDENTIFY_RAW, method = RequestMethod.POST)
+    public
+    ListenableFuture<Void>
+    identifyAndDetectRawAsync(final HttpServletRequest request,
+                              final HttpServletResponse response,
+                              @RequestHeader(value = ApiHeaders.IMAGE_TYPE) int imageType,
+                              @RequestHeader(value = ApiHeaders.IMAGE_WIDTH) int imageWidth,
+                              @RequestHeader(value = ApiHeaders.IMAGE_HEIGHT) int imageHeight,
+                              @RequestHeader(value = ApiHeaders.FRAME_ID, required = false) Long frameId,
+                              @RequestHeader(value = ApiHeaders.CAMERA_ID, required = false) String cameraId,
+                              @RequestHeader(value = ApiHeaders.ALGORITHM, required = false) String algorithm,
+                              @RequestHeader(value = ApiHeaders.DEADLINE_MILLIS, required = false) Long deadlineMillis)
+            throws IOException {
+        logger.info("Detection & identification (async, raw). Frame: " + frameId + ", camera: " + cameraId + ", image type: " + imageType + ", width: " + imageWidth+ ", height: " + imageHeight);
+
+        RequestTrace trace = startTrace(response, frameId, cameraId, imageWidth, imageHeight);
+        return recognitionPipeline.submit(recognitionService.detectAndIdentify(request.getInputStream(), imageType, imageWidth, imageHeight, algorithm,
+                new RawResponseWriter(response, trace.getServerTiming()), trace),
+                RequestClass.IDENTIFY, tenantOf(request, cameraId), deadlineMillis, trace);
+    }
+
+    /**
+     * Handle requests to /recog/detect/raw - same as /recog/detect, but the request body is
+     * read straight into native image memory and the resulting image is written back as raw
+     * bytes, described by the response headers.
+     */
+    @RequestMapping(value = ApiUrls.URL_RECOG_DETECT_RAW, method = RequestMethod.POST)
+    public
+    ListenableFuture<Void>
+    detectRaw(final HttpServletRequest request,
+              final HttpServletResponse response,
+              @RequestHeader(value = ApiHeaders.IMAGE_TYPE) int imageType,
+              @RequestHeader(value = ApiHeaders.IMAGE_WIDTH) int imageWidth,
+              @RequestHeader(value = ApiHeaders.IMAGE_HEIGHT) int imageHeight,
+              @RequestHeader(value = ApiHeaders.FRAME_ID, required = false) Long frameId,
+              @RequestHeader(value = ApiHeaders.CAMERA_ID, required = false) String cameraId,
+              @RequestHeader(value = ApiHeaders.DEADLINE_MILLIS, required = false) Long deadlineMillis)
+            throws IOException {
+        logger.info("Detection only (raw). Frame: " + frameId + ", camera: " + cameraId + ", image type: " + imageType + ", width: " + imageWidth+ ", height: " + imageHeight);
+
+        RequestTrace trace = startTrace(response, frameId, cameraId, imageWidth, imageHeight);
+        return recognitionPipeline.submit(recognitionService.detect(request.getInputStream(), imageType, imageWidth, imageHeight,
+                new RawResponseWriter(response, trace.getServerTiming()), trace),
+                RequestClass.DETECT, tenantOf(request, cameraId), deadlineMillis, trace);
+    }
+
+    /**
+     * Handle requests to /recog/match - predicts the person in a face that is already
+     * scaled down for recognition, sent as raw bytes. The coordinator of a sharded
+     * gallery sends every face to the match endpoint of all its shards.
+     * @return DTO containing the closest person in this instance's gallery and its distance
+     */
+    @RequestMapping(value = ApiUrls.URL_RECOG_MATCH, method = RequestMethod.POST)
+    public
+    ListenableFuture<MatchDTO>
+    match(final HttpServletRequest request,
+          final HttpServletResponse response,
+          @RequestHeader(value = ApiHeaders.IMAGE_TYPE) int imageType,
+          @RequestHeader(value = ApiHeaders.IMAGE_WIDTH) int imageWidth,
+          @RequestHeader(value = ApiHeaders.IMAGE_HEIGHT) int imageHeight,
+          @RequestHeader(value = ApiHeaders.FRAME_ID, required = false) Long frameId,
+          @RequestHeader(value = ApiHeaders.CAMERA_ID, required = false) String cameraId,
+          @RequestHeader(value = ApiHeaders.ALGORITHM, required = false) String algorithm,
+          @RequestHeader(value = ApiHeaders.DEADLINE_MILLIS, required = false) Long deadlineMillis)
+            throws IOException {
+        logger.info("Match. Frame: " + frameId + ", camera: " + cameraId + ", width: " + imageWidth + ", height: " + imageHeight);
 
-        return recognitionService.detect(requestEntity.getBody(), imageType, imageWidth, imageHeight);
+        RequestTrace trace = startTrace(response, frameId, cameraId, imageWidth, imageHeight);
+        return recognitionPipeline.submit(new ServerTimingJob<>(recognitionService.match(request.getInputStream(),
+                imageType, imageWidth, imageHeight, algorithm, trace), response, trace),
+                RequestClass.MATCH, tenantOf(request, cameraId), deadlineMillis, trace);
     }
 
+    /**
+     * Handle requests to /recog/enroll - enrolls the training images in a zip archive sent
+     * as the request body, named like the training images. The archive is read as it
+     * arrives rather than buffered, so it may be of any size.
+     * @param id names the enrollment, to ask for its progress at /recog/enroll/{id} meanwhile.
+     * @return DTO reporting the images enrolled and the files that failed
+     */
+    @RequestMapping(value = ApiUrls.URL_RECOG_ENROLL, method = RequestMethod.POST)
+    public
+    Callable<EnrollmentDTO>
+    enroll(final HttpServletRequest request,
+           @RequestParam(value = "id", required = false) final String id)
+            throws IOException {
+        logger.info("Bulk enrollment " + (id == null ? "" : id + " ") + "of " + request.getContentLength() + " bytes");
+
+        final InputStream archive = request.getInputStream();
+        return new Callable<EnrollmentDTO>() {
+            @Override
+            public EnrollmentDTO call() {
+                return recognitionService.enroll(archive, id);
+            }
+        };
+    }
+
+    /**
+     * Handle requests to /recog/enroll/{id} - reports the progress of a recent enrollment.
+     */
+    @RequestMapping(value = ApiUrls.URL_RECOG_ENROLL + "/{id:.+}", method = RequestMethod.GET)
+    public
+    ResponseEntity<EnrollmentDTO>
+    enrollment(@PathVariable("id") String id) {
+        EnrollmentDTO enrollment = recognitionService.getEnrollment(id);
+        if (enrollment == null) {
+            return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+        }
+        return new ResponseEntity<>(enrollment, HttpStatus.OK);
+    }
+
+    /**
+     * Handle requests to /recog/enroll - reports the progress of the recent enrollments.
+     */
+    @RequestMapping(value = ApiUrls.URL_RECOG_ENROLL, method = RequestMethod.GET)
+    public
+    List<EnrollmentDTO>
+    enrollments() {
+        return recognitionService.getEnrollments();
+    }
 
     @RequestMapping(value = ApiUrls.URL_RECOG_UPLOAD_IMAGE, method = RequestMethod.POST)
     public
@@ -103,6 +266,113 @@ public class RecognitionController {
         }
     }
 
+    /**
+     * Answers requests the service is too busy for with 503 Service Unavailable,
+     * and when to try again.
+     */
+    @ExceptionHandler(ServiceOverloadedException.class)
+    public void overloaded(ServiceOverloadedException e, HttpServletResponse response) throws IOException {
+        logger.info("Request shed: " + e.getMessage());
+        response.setHeader(ApiHeaders.RETRY_AFTER, String.valueOf(e.getRetryAfterSeconds()));
+        response.sendError(HttpStatus.SERVICE_UNAVAILABLE.value(), e.getMessage());
+    }
+
+    /**
+     * Answers requests with arguments the service cannot handle, such as an unknown
+     * or untrained algorithm, with 400 Bad Request and the reason.
+     */
+    @ExceptionHandler(IllegalArgumentException.class)
+    public void badRequest(IllegalArgumentException e, HttpServletResponse response) throws IOException {
+        logger.info("Bad request: " + e.getMessage());
+        response.sendError(HttpStatus.BAD_REQUEST.value(), e.getMessage());
+    }
+
+    /**
+     * Starts the trace of a request, and returns the frame ID sent by the client
+     * so responses can be matched with the frames they belong to.
+     */
+    private static RequestTrace startTrace(HttpServletResponse response, Long frameId, String cameraId, int imageWidth, int imageHeight) {
+        if (frameId == null) {
+            return new RequestTrace(RequestTrace.NO_FRAME_ID, cameraId, imageWidth, imageHeight);
+        }
+        response.setHeader(ApiHeaders.FRAME_ID, String.valueOf(frameId));
+        return new RequestTrace(frameId, cameraId, imageWidth, imageHeight);
+    }
+
+    /**
+     * The tenant a request is scheduled fairly with: the camera the frame came
+     * from, or else the client sending it.
+     */
+    private static String tenantOf(HttpServletRequest request, String cameraId) {
+        return cameraId != null ? cameraId : request.getRemoteAddr();
+    }
+
+    /**
+     * Sets the server timing header once the response is encoded, before it is written.
+     */
+    private static class ServerTimingJob<T> implements RecognitionJob<T> {
+
+        private final RecognitionJob<T> job;
+        private final HttpServletResponse response;
+        private final RequestTrace trace;
+
+        ServerTimingJob(RecognitionJob<T> job, HttpServletResponse response, RequestTrace trace) {
+            this.job = job;
+            this.response = response;
+            this.trace = trace;
+        }
+
+        @Override
+        public void decode() throws Exception {
+            job.decode();
+        }
+
+        @Override
+        public void recognise() throws Exception {
+            job.recognise();
+        }
+
+        @Override
+        public T encode() throws Exception {
+            T encoded = job.encode();
+            response.setHeader(ApiHeaders.SERVER_TIMING, trace.getServerTiming().toHeaderValue());
+            return encoded;
+        }
+
+        @Override
+        public void finish(Exception failure) {
+            job.finish(failure);
+        }
+    }
+
+    /**
+     * Writes a recognition result as raw image bytes, taken straight from the
+     * native image memory. The server timing header only covers the stages
+     * before the response is written, as headers are sent ahead of the body.
+     */
+    private static class RawResponseWriter implements RecognitionResultWriter {
+
+        private final HttpServletResponse response;
+        private final ServerTiming timing;
 
+        RawResponseWriter(HttpServletResponse response, ServerTiming timing) {
+            this.response = response;
+            this.timing = timing;
+        }
+
+        @Override
+        public void write(String predictedPerson, long modelVersion, Mat image) throws IOException {
+            response.setContentType("application/octet-stream");
+            response.setHeader(ApiHeaders.PREDICTED_PERSON, predictedPerson);
+            response.setHeader(ApiHeaders.MODEL_VERSION, String.valueOf(modelVersion));
+            response.setIntHeader(ApiHeaders.IMAGE_TYPE, image.type());
+            response.setIntHeader(ApiHeaders.IMAGE_WIDTH, image.cols());
+            response.setIntHeader(ApiHeaders.IMAGE_HEIGHT, image.rows());
+            response.setHeader(ApiHeaders.SERVER_TIMING, timing.toHeaderValue());
+            response.setContentLength(Util.byteCount(image));
+            Util.write(image, response.getOutputStream());
+            response.flushBuffer();
+        }
+    }
 
-}
\ No newline at end of file
+}
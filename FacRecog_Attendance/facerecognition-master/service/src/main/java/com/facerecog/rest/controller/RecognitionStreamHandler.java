@@ -0,0 +1,238 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.controller;
+
+import api.ApiHeaders;
+import api.StreamFrames;
+import com.facerecog.rest.metrics.RequestTrace;
+import com.facerecog.rest.service.RecognitionJob;
+import com.facerecog.rest.service.RecognitionPipeline;
+import com.facerecog.rest.service.RecognitionPipeline.RequestClass;
+import com.facerecog.rest.service.RecognitionResultWriter;
+import com.facerecog.rest.service.RecognitionService;
+import com.facerecog.rest.service.ServiceOverloadedException;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.socket.BinaryMessage;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.BinaryWebSocketHandler;
+import org.springframework.web.socket.handler.ConcurrentWebSocketSessionDecorator;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Handles connections to /recog/stream - recognises the frames a client streams
+ * over a WebSocket connection, as /recog/detect/raw and /recog/detectIdentify/raw
+ * do, and sends every result back on the same connection once it is done, see
+ * {@link StreamFrames}. Frames run through the same pipeline as requests, with
+ * the camera named in the handshake, or else the client, as their tenant.
+ * <p>
+ * A connection has at most max-in-flight frames in the pipeline at once, and
+ * frames beyond that are answered as overloaded straight away, so a client
+ * sending faster than it is answered is told to slow down instead of queueing
+ * frames nobody waits for. Results are sent from the pipeline's threads without
+ * waiting for a slow connection, up to a send buffer limit, beyond which the
+ * connection is closed.
+ */
+@Component
+public class RecognitionStreamHandler extends BinaryWebSocketHandler {
+
+    private static final String STREAM = "stream";
+
+    @Autowired
+    RecognitionService recognitionService;
+
+    @Autowired
+    RecognitionPipeline recognitionPipeline;
+
+    @Value("${recognition.stream.max-in-flight:4}")
+    int maxInFlight;
+
+    @Value("${recognition.stream.send-time-limit-ms:5000}")
+    int sendTimeLimitMillis;
+
+    @Value("${recognition.stream.send-buffer-bytes:33554432}")
+    int sendBufferBytes;
+
+    private org.slf4j.Logger logger = LoggerFactory.getLogger(RecognitionStreamHandler.class);
+
+    @Override
+    public void afterConnectionEstablished(WebSocketSession session) {
+        String cameraId = session.getHandshakeHeaders().getFirst(ApiHeaders.CAMERA_ID);
+        String algorithm = session.getHandshakeHeaders().getFirst(ApiHeaders.ALGORITHM);
+        String tenant = cameraId != null ? cameraId : session.getRemoteAddress().getAddress().getHostAddress();
+        logger.info("Stream opened. Camera: " + cameraId + ", client: " + session.getRemoteAddress());
+        session.getAttributes().put(STREAM, new Stream(
+                new ConcurrentWebSocketSessionDecorator(session, sendTimeLimitMillis, sendBufferBytes), cameraId, tenant, algorithm));
+    }
+
+    @Override
+    protected void handleBinaryMessage(WebSocketSession session, BinaryMessage message) throws IOException {
+        Stream stream = (Stream) session.getAttributes().get(STREAM);
+        // the payload is a copy of the message of its own, so the pipeline may decode it later
+        ByteBuffer payload = message.getPayload();
+        ByteArrayInputStream in;
+        if (payload.hasArray()) {
+            in = new ByteArrayInputStream(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            in = new ByteArrayInputStream(bytes);
+        }
+        StreamFrames.FrameHeader frame = StreamFrames.readFrameHeader(new DataInputStream(in));
+        stream.receive(frame, in);
+    }
+
+    @Override
+    public void afterConnectionClosed(WebSocketSession session, CloseStatus status) {
+        logger.info("Stream closed: " + status + ", client: " + session.getRemoteAddress());
+    }
+
+    /**
+     * The frames of one connection in the pipeline.
+     */
+    private class Stream {
+
+        private final WebSocketSession session;
+        private final String cameraId;
+        private final String tenant;
+        private final String algorithm;
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        Stream(WebSocketSession session, String cameraId, String tenant, String algorithm) {
+            this.session = session;
+            this.cameraId = cameraId;
+            this.tenant = tenant;
+            this.algorithm = algorithm;
+        }
+
+        void receive(final StreamFrames.FrameHeader frame, ByteArrayInputStream pixels) throws IOException {
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                sendFailure(frame.getFrameId(), StreamFrames.OVERLOADED, 1,
+                        "More than " + maxInFlight + " frames in flight");
+                return;
+            }
+
+            RequestTrace trace = new RequestTrace(frame.getFrameId(), cameraId, frame.getWidth(), frame.getHeight());
+            ResultWriter writer = new ResultWriter(this, trace);
+            RecognitionJob<Void> job;
+            RequestClass requestClass;
+            if (frame.getKind() == StreamFrames.DETECT) {
+                job = recognitionService.detect(pixels, frame.getImageType(), frame.getWidth(), frame.getHeight(), writer, trace);
+                requestClass = RequestClass.DETECT;
+            } else {
+                try {
+                    job = recognitionService.detectAndIdentify(pixels, frame.getImageType(), frame.getWidth(), frame.getHeight(),
+                            algorithm, writer, trace);
+                } catch (IllegalArgumentException e) {
+                    inFlight.decrementAndGet();
+                    sendFailure(frame.getFrameId(), StreamFrames.FAILED, 0, e.getMessage());
+                    return;
+                }
+                requestClass = RequestClass.IDENTIFY;
+            }
+            Long deadlineMillis = frame.getDeadlineMillis() == StreamFrames.DEFAULT_DEADLINE ? null : (long) frame.getDeadlineMillis();
+            try {
+                recognitionPipeline.submit(job, requestClass, tenant, deadlineMillis, trace).addCallback(new ListenableFutureCallback<Void>() {
+                    @Override
+                    public void onSuccess(Void result) {
+                        inFlight.decrementAndGet();
+                    }
+
+                    @Override
+                    public void onFailure(Throwable failure) {
+                        inFlight.decrementAndGet();
+                        failed(frame.getFrameId(), failure);
+                    }
+                });
+            } catch (ServiceOverloadedException e) {
+                inFlight.decrementAndGet();
+                failed(frame.getFrameId(), e);
+            }
+        }
+
+        private void failed(long frameId, Throwable failure) {
+            try {
+                if (failure instanceof ServiceOverloadedException) {
+                    logger.info("Frame " + frameId + " shed: " + failure.getMessage());
+                    sendFailure(frameId, StreamFrames.OVERLOADED, (int) ((ServiceOverloadedException) failure).getRetryAfterSeconds(),
+                            failure.getMessage());
+                } else {
+                    logger.warn("Frame " + frameId + " failed", failure);
+                    sendFailure(frameId, StreamFrames.FAILED, 0, String.valueOf(failure.getMessage()));
+                }
+            } catch (Exception e) {
+                // runs on a pipeline thread, which must go on with the next request
+                logger.info("Could not report the failure of frame " + frameId + ": " + e.getMessage());
+            }
+        }
+
+        private void sendFailure(long frameId, byte status, int retryAfterSeconds, String message) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            StreamFrames.writeResultHeader(new DataOutputStream(bytes), status, 0, 0, 0, frameId, 0, retryAfterSeconds, "", message);
+            send(bytes.toByteArray());
+        }
+
+        /**
+         * Sends a result, unless the connection is closed already.
+         */
+        void send(byte[] message) throws IOException {
+            if (session.isOpen()) {
+                session.sendMessage(new BinaryMessage(message));
+            }
+        }
+    }
+
+    /**
+     * Writes a recognition result as a result message, with the raw image bytes
+     * taken straight from the native image memory.
+     */
+    private static class ResultWriter implements RecognitionResultWriter {
+
+        private final Stream stream;
+        private final RequestTrace trace;
+
+        ResultWriter(Stream stream, RequestTrace trace) {
+            this.stream = stream;
+            this.trace = trace;
+        }
+
+        @Override
+        public void write(String predictedPerson, long modelVersion, Mat image) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(Util.byteCount(image) + 128);
+            StreamFrames.writeResultHeader(new DataOutputStream(bytes), StreamFrames.RECOGNISED, image.type(), image.cols(), image.rows(),
+                    trace.getFrameId(), modelVersion, 0, predictedPerson, trace.getServerTiming().toHeaderValue());
+            Util.write(image, bytes);
+            stream.send(bytes.toByteArray());
+        }
+    }
+}
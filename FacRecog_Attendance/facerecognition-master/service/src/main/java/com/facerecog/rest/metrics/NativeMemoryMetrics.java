@@ -0,0 +1,177 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.metrics;
+
+import metrics.ProcessMemory;
+import opencv.NativeAllocations;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Native memory of the service, published on the actuator /metrics endpoint:
+ * resident memory of the process, the part of it the JVM does not account
+ * for, the native buffers allocated by the service per kind, and the native
+ * buffers used per request type. Values are in bytes.
+ * <p>
+ * Every N requests the growth since the previous report is logged, per
+ * allocation site when site tracking is enabled, to find what keeps native
+ * memory alive.
+ */
+public class NativeMemoryMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "native.";
+
+    private final Logger logger = LoggerFactory.getLogger(NativeMemoryMetrics.class);
+    private final int reportEveryRequests;
+    private final AtomicLong requests = new AtomicLong();
+    private final ConcurrentMap<String, RequestMemory> requestTypes = new ConcurrentHashMap<>();
+    private NativeAllocations.Snapshot lastReport = NativeAllocations.snapshot();
+    private long lastResidentBytes = ProcessMemory.getResidentBytes();
+
+    /**
+     * @param trackAllocationSites record where every native buffer is allocated, to find leaks.
+     * @param reportEveryRequests log the growth of native memory every this many requests, 0 to never report.
+     */
+    public NativeMemoryMetrics(boolean trackAllocationSites, int reportEveryRequests) {
+        this.reportEveryRequests = reportEveryRequests;
+        NativeAllocations.setTrackingSites(trackAllocationSites);
+        if (trackAllocationSites) {
+            logger.info("Tracking native allocation sites, reporting every " + reportEveryRequests + " requests");
+        }
+    }
+
+    /**
+     * Records the native buffers a request used.
+     * @param requestType e.g. "detect" or "detectIdentify.raw".
+     */
+    public void requestCompleted(String requestType, long nativeBytes) {
+        RequestMemory memory = requestTypes.get(requestType);
+        if (memory == null) {
+            RequestMemory created = new RequestMemory();
+            memory = requestTypes.putIfAbsent(requestType, created);
+            if (memory == null) {
+                memory = created;
+            }
+        }
+        memory.record(nativeBytes);
+
+        long completed = requests.incrementAndGet();
+        if (reportEveryRequests > 0 && completed % reportEveryRequests == 0) {
+            report(completed);
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        metrics.add(new Metric<>(PREFIX + "process.resident", ProcessMemory.getResidentBytes()));
+        metrics.add(new Metric<>(PREFIX + "process.unaccounted", ProcessMemory.getUnaccountedNativeBytes()));
+        metrics.add(new Metric<>(PREFIX + "buffers.direct", ProcessMemory.getBufferPoolBytes()));
+
+        NativeAllocations.Snapshot allocations = NativeAllocations.snapshot();
+        metrics.add(new Metric<>(PREFIX + "tracked", allocations.getBytes()));
+        for (Map.Entry<String, long[]> kind : allocations.getKinds().entrySet()) {
+            metrics.add(new Metric<>(PREFIX + "tracked." + kind.getKey(), kind.getValue()[0]));
+            metrics.add(new Metric<>(PREFIX + "tracked." + kind.getKey() + ".count", kind.getValue()[1]));
+        }
+        for (Map.Entry<String, RequestMemory> requestType : requestTypes.entrySet()) {
+            RequestMemory memory = requestType.getValue();
+            String name = PREFIX + "request." + requestType.getKey();
+            metrics.add(new Metric<>(name + ".count", memory.count.get()));
+            metrics.add(new Metric<>(name + ".mean", memory.getMean()));
+            metrics.add(new Metric<>(name + ".max", memory.max.get()));
+        }
+        return metrics;
+    }
+
+    /**
+     * Logs how native memory changed since the previous report, as a warning
+     * if the buffers allocated by the service grew.
+     */
+    private synchronized void report(long completedRequests) {
+        NativeAllocations.Snapshot current = NativeAllocations.snapshot();
+        long resident = ProcessMemory.getResidentBytes();
+        long trackedGrowth = current.getBytes() - lastReport.getBytes();
+
+        StringBuilder report = new StringBuilder("Native memory after " + completedRequests + " requests: resident "
+                + megabytes(resident) + " (" + signedMegabytes(resident - lastResidentBytes) + "), allocated by service "
+                + megabytes(current.getBytes()) + " (" + signedMegabytes(trackedGrowth) + ")");
+        appendGrowth(report, current.getKinds(), lastReport.getKinds());
+        appendGrowth(report, current.getSites(), lastReport.getSites());
+
+        if (trackedGrowth > 0) {
+            logger.warn(report.toString());
+        } else {
+            logger.info(report.toString());
+        }
+        lastReport = current;
+        lastResidentBytes = resident;
+    }
+
+    private static void appendGrowth(StringBuilder report, Map<String, long[]> current, Map<String, long[]> previous) {
+        for (Map.Entry<String, long[]> entry : current.entrySet()) {
+            long[] before = previous.get(entry.getKey());
+            long bytesBefore = before == null ? 0 : before[0];
+            long countBefore = before == null ? 0 : before[1];
+            if (entry.getValue()[0] > bytesBefore) {
+                report.append("\n  ").append(entry.getKey()).append(": ")
+                        .append(signedMegabytes(entry.getValue()[0] - bytesBefore)).append(" in ")
+                        .append(entry.getValue()[1] - countBefore).append(" more buffers");
+            }
+        }
+    }
+
+    private static String megabytes(long bytes) {
+        return bytes < 0 ? "unknown" : String.format(Locale.ROOT, "%.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static String signedMegabytes(long bytes) {
+        return String.format(Locale.ROOT, "%+.1f MB", bytes / (1024.0 * 1024));
+    }
+
+    private static class RequestMemory {
+        final AtomicLong count = new AtomicLong();
+        final AtomicLong total = new AtomicLong();
+        final AtomicLong max = new AtomicLong();
+
+        void record(long bytes) {
+            count.incrementAndGet();
+            total.addAndGet(bytes);
+            long currentMax;
+            while (bytes > (currentMax = max.get()) && !max.compareAndSet(currentMax, bytes)) {
+                // another request raised the max, try again against the new value
+            }
+        }
+
+        double getMean() {
+            long n = count.get();
+            return n == 0 ? 0 : total.get() / (double) n;
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.metrics;
+
+import jfr.StageSpan;
+import metrics.LatencyHistogram;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency per stage of the recognition pipeline and counts of its results,
+ * published on the actuator /metrics endpoint. Durations are reported in
+ * milliseconds, e.g. recognition.detect.p95 or recognition.total.p99.
+ */
+public class RecognitionMetrics implements PublicMetrics {
+
+    private static final String PREFIX = "recognition.";
+    private static final String UNKNOWN_PERSON = "unknown";
+
+    public enum Stage {
+        QUEUE, DECODE, RESIZE, DETECT, PREDICT, ENCODE, TOTAL;
+
+        private final String timingName = name().toLowerCase();
+        private final String metricName = PREFIX + timingName;
+        private final String spanName = "service." + timingName;
+    }
+
+    private final Map<Stage, LatencyHistogram> latencies = new EnumMap<>(Stage.class);
+    private final AtomicLong facesFound = new AtomicLong();
+    private final AtomicLong framesWithoutFaces = new AtomicLong();
+    private final ConcurrentMap<String, AtomicLong> predictions = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+    private final AtomicLong shardsAnswered = new AtomicLong();
+    private final AtomicLong shardsLate = new AtomicLong();
+    private final AtomicLong shardsFailed = new AtomicLong();
+
+    public RecognitionMetrics() {
+        for (Stage stage : Stage.values()) {
+            latencies.put(stage, new LatencyHistogram());
+        }
+    }
+
+    /**
+     * Starts timing a stage of a request. The time is recorded in the overall
+     * latency of the stage, in the server timing of the request and, while a
+     * Flight Recorder recording is running, as a pipeline stage event.
+     */
+    public StageTimer start(Stage stage, RequestTrace trace) {
+        return new StageTimer(stage, trace);
+    }
+
+    public LatencyHistogram getLatency(Stage stage) {
+        return latencies.get(stage);
+    }
+
+    public void facesDetected(int faces) {
+        facesFound.addAndGet(faces);
+        if (faces == 0) {
+            framesWithoutFaces.incrementAndGet();
+        }
+    }
+
+    public void personPredicted(String predictedPerson) {
+        String label = predictedPerson == null || predictedPerson.isEmpty() ? UNKNOWN_PERSON : predictedPerson;
+        increment(predictions, label);
+    }
+
+    public void requestFailed(Throwable cause) {
+        increment(errors, cause.getClass().getSimpleName());
+    }
+
+    /**
+     * A shard of the gallery answered a coordinated prediction in time.
+     */
+    public void shardAnswered() {
+        shardsAnswered.incrementAndGet();
+    }
+
+    /**
+     * A shard of the gallery was left out of a prediction for missing its deadline.
+     */
+    public void shardLate() {
+        shardsLate.incrementAndGet();
+    }
+
+    /**
+     * A shard of the gallery was left out of a prediction as its request failed.
+     */
+    public void shardFailed() {
+        shardsFailed.incrementAndGet();
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram latency = latencies.get(stage);
+            metrics.add(new Metric<>(stage.metricName + ".count", latency.getCount()));
+            metrics.add(new Metric<>(stage.metricName + ".mean", latency.getMean(TimeUnit.MILLISECONDS)));
+            metrics.add(new Metric<>(stage.metricName + ".p50", latency.getPercentile(50, TimeUnit.MILLISECONDS)));
+            metrics.add(new Metric<>(stage.metricName + ".p95", latency.getPercentile(95, TimeUnit.MILLISECONDS)));
+            metrics.add(new Metric<>(stage.metricName + ".p99", latency.getPercentile(99, TimeUnit.MILLISECONDS)));
+            metrics.add(new Metric<>(stage.metricName + ".max", latency.getMax(TimeUnit.MILLISECONDS)));
+        }
+        metrics.add(new Metric<>(PREFIX + "faces.found", facesFound.get()));
+        metrics.add(new Metric<>(PREFIX + "faces.none", framesWithoutFaces.get()));
+        metrics.add(new Metric<>(PREFIX + "shards.answered", shardsAnswered.get()));
+        metrics.add(new Metric<>(PREFIX + "shards.late", shardsLate.get()));
+        metrics.add(new Metric<>(PREFIX + "shards.failed", shardsFailed.get()));
+
+        long errorTotal = 0;
+        for (Map.Entry<String, AtomicLong> error : errors.entrySet()) {
+            errorTotal += error.getValue().get();
+            metrics.add(new Metric<>(PREFIX + "errors." + error.getKey(), error.getValue().get()));
+        }
+        metrics.add(new Metric<>(PREFIX + "errors", errorTotal));
+
+        for (Map.Entry<String, AtomicLong> prediction : predictions.entrySet()) {
+            metrics.add(new Metric<>(PREFIX + "predictions." + prediction.getKey(), prediction.getValue().get()));
+        }
+        return metrics;
+    }
+
+    public class StageTimer {
+
+        private final Stage stage;
+        private final RequestTrace trace;
+        private final StageSpan span;
+        private final long startNanos;
+
+        private StageTimer(Stage stage, RequestTrace trace) {
+            this.stage = stage;
+            this.trace = trace;
+            this.span = StageSpan.begin(stage.spanName, trace.getFrameId(), trace.getCameraId(), trace.getWidth(), trace.getHeight());
+            this.startNanos = System.nanoTime();
+        }
+
+        /**
+         * @return the time the stage took, in nanoseconds.
+         */
+        public long stop() {
+            long elapsed = System.nanoTime() - startNanos;
+            latencies.get(stage).record(elapsed);
+            trace.getServerTiming().add(stage.timingName, elapsed);
+            span.end();
+            return elapsed;
+        }
+
+        /**
+         * Ends the stage without recording its time, which would skew the latency.
+         */
+        public void failed(Throwable cause) {
+            span.failed(cause);
+        }
+    }
+
+    private static void increment(ConcurrentMap<String, AtomicLong> counters, String key) {
+        AtomicLong counter = counters.get(key);
+        if (counter == null) {
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null) {
+                counter = created;
+            }
+        }
+        counter.incrementAndGet();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.metrics;
+
+import metrics.ServerTiming;
+
+/**
+ * What is known about one recognition request: the frame it carries and the
+ * time spent on it so far. Used by one thread at a time.
+ */
+public class RequestTrace {
+
+    public static final long NO_FRAME_ID = -1;
+
+    private final long frameId;
+    private final String cameraId;
+    private final int width;
+    private final int height;
+    private final ServerTiming serverTiming = new ServerTiming();
+
+    /**
+     * @param frameId ID of the frame sent by the client, or NO_FRAME_ID.
+     * @param cameraId ID of the camera the frame came from, may be null.
+     */
+    public RequestTrace(long frameId, String cameraId, int width, int height) {
+        this.frameId = frameId;
+        this.cameraId = cameraId;
+        this.width = width;
+        this.height = height;
+    }
+
+    public long getFrameId() {
+        return frameId;
+    }
+
+    public String getCameraId() {
+        return cameraId;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public ServerTiming getServerTiming() {
+        return serverTiming;
+    }
+}
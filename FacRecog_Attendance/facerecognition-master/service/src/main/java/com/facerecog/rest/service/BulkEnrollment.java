@@ -0,0 +1,356 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+
+package com.facerecog.rest.service;
+
+import dto.EnrollmentDTO;
+import opencv.FaceRecogniser;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.bytedeco.javacpp.opencv_core.MatVector;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Enrolls the training images in a zip archive while it is uploaded. Entries
+ * are read one at a time as they arrive and decoded in parallel, with a bound
+ * on the entries waiting to be decoded so a slow decoder holds back the upload
+ * rather than buffering it. The decoded images are enrolled in one batch once
+ * the archive ends, so the model changes once. Images to be saved with the
+ * training images wait in hidden files until the batch is enrolled, and are
+ * left out of the training images if it is not.
+ */
+public class BulkEnrollment {
+
+    private static final int MAX_REPORTED_ERRORS = 1000;
+    private static final int MAX_IMAGE_BYTES = 16 * 1024 * 1024;
+
+    private final String id;
+    private final AtomicInteger entries = new AtomicInteger();
+    private final AtomicInteger enrolled = new AtomicInteger();
+    private final AtomicInteger skipped = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+    private final List<EnrollmentDTO.FileError> errors = new ArrayList<EnrollmentDTO.FileError>();
+    private volatile String state = EnrollmentDTO.RUNNING;
+    private volatile String error;
+    private volatile int labels;
+    private volatile long modelVersion;
+    private Logger logger = LoggerFactory.getLogger(BulkEnrollment.class);
+
+    public BulkEnrollment(String id) {
+        this.id = id;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public boolean isRunning() {
+        return EnrollmentDTO.RUNNING.equals(state);
+    }
+
+    /**
+     * Reads the archive to its end and enrolls the images in it. Files that cannot
+     * be enrolled are reported and left out; the others are still enrolled.
+     * @param decoders runs the decoding of images.
+     * @param maxPending the most entries read but not yet decoded.
+     * @param saveImages whether to also save the enrolled images with the training images,
+     *                   so they are kept when the recogniser is trained again.
+     * @param watcher told about the saved images so they do not retrain, or null if none watches.
+     * @return the report, also available from {@link #toDTO} while running.
+     */
+    public EnrollmentDTO run(InputStream archive, FaceRecogniser recogniser, ExecutorService decoders, int maxPending,
+                             boolean saveImages, TrainingSetWatcher watcher) {
+        File saveDir = saveImages ? recogniser.getTrainingSetDir() : null;
+        List<Future<Image>> decoded = new ArrayList<Future<Image>>();
+        try {
+            // before the upload is read: Eigen and Fisher must be trained again instead
+            recogniser.checkUpdatable();
+            readArchive(archive, recogniser, decoders, maxPending, saveDir, decoded);
+            List<Image> images = collect(decoded);
+            enroll(recogniser, images);
+            if (saveDir != null) {
+                save(images, saveDir, watcher);
+            }
+            state = EnrollmentDTO.DONE;
+        } catch (IOException | RuntimeException e) {
+            error = e.getMessage() == null ? e.toString() : e.getMessage();
+            state = EnrollmentDTO.FAILED;
+            logger.warn("Enrollment " + id + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            error = "Interrupted";
+            state = EnrollmentDTO.FAILED;
+        } finally {
+            discard(decoded);
+        }
+        logger.info(String.format(Locale.ROOT, "Enrollment %s %s: %d files, %d enrolled with %d labels, %d skipped, %d failed",
+                id, state, entries.get(), enrolled.get(), labels, skipped.get(), failed.get()));
+        return toDTO();
+    }
+
+    /**
+     * @param saveDir where to keep the encoded images until they are enrolled, or null not to save them.
+     * @param images receives the images being decoded, also if reading fails.
+     */
+    private void readArchive(InputStream archive, FaceRecogniser recogniser, ExecutorService decoders,
+                             int maxPending, final File saveDir, List<Future<Image>> images) throws IOException, InterruptedException {
+        final int downscaleFactor = recogniser.getDownscaleFactor();
+        final Semaphore pending = new Semaphore(maxPending);
+        InputStream in = new BufferedInputStream(archive);
+        ZipInputStream zip = new ZipInputStream(in);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null) {
+            if (entry.isDirectory()) {
+                continue;
+            }
+            entries.incrementAndGet();
+            final String fileName = new File(entry.getName()).getName();
+            if (fileName.startsWith(".")) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            String lowerCase = fileName.toLowerCase(Locale.ROOT);
+            if (!lowerCase.endsWith(".jpg") && !lowerCase.endsWith(".pgm") && !lowerCase.endsWith(".png")) {
+                fail(entry.getName(), "Not a .jpg, .pgm or .png image");
+                continue;
+            }
+            final int label;
+            final String person;
+            try {
+                label = FaceRecogniser.labelOf(fileName);
+                person = FaceRecogniser.personOf(fileName);
+            } catch (IllegalArgumentException e) {
+                fail(entry.getName(), "Not named like 2-Gustav_3.png, an id, a name and a number");
+                continue;
+            }
+            if (!recogniser.isInShard(label)) {
+                skipped.incrementAndGet();
+                continue;
+            }
+            final byte[] encodedImage = readEntry(zip);
+            if (encodedImage == null) {
+                fail(entry.getName(), "Larger than " + MAX_IMAGE_BYTES + " bytes");
+                continue;
+            }
+
+            final String entryName = entry.getName();
+            pending.acquire();
+            images.add(decoders.submit(new Callable<Image>() {
+                @Override
+                public Image call() {
+                    try {
+                        Mat image = Util.decodeTrainingImage(encodedImage, downscaleFactor);
+                        File saved = saveDir == null ? null : write(encodedImage, saveDir);
+                        enrolled.incrementAndGet();
+                        return new Image(label, person, fileName, image, saved);
+                    } catch (IllegalArgumentException | IOException e) {
+                        fail(entryName, e.getMessage());
+                        return null;
+                    } finally {
+                        pending.release();
+                    }
+                }
+            }));
+        }
+        // The central directory at the end repeats what the entries said; read past it, so the client can finish sending
+        while (in.skip(Long.MAX_VALUE) > 0 || in.read() >= 0) {
+        }
+    }
+
+    private static List<Image> collect(List<Future<Image>> decoded) throws InterruptedException {
+        List<Image> images = new ArrayList<Image>(decoded.size());
+        for (Future<Image> image : decoded) {
+            try {
+                if (image.get() != null) {
+                    images.add(image.get());
+                }
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Decoding failed", e.getCause());
+            }
+        }
+        return images;
+    }
+
+    private void enroll(FaceRecogniser recogniser, List<Image> images) {
+        if (images.isEmpty()) {
+            modelVersion = recogniser.getModelVersion();
+            return;
+        }
+
+        MatVector grayscaledImages = new MatVector(images.size());
+        int[] imageLabels = new int[images.size()];
+        Map<Integer, String> names = new HashMap<Integer, String>();
+        for (int i = 0; i < images.size(); i++) {
+            Image image = images.get(i);
+            grayscaledImages.put(i, image.mat);
+            imageLabels[i] = image.label;
+            names.put(image.label, image.person);
+        }
+        labels = names.size();
+        try {
+            recogniser.enroll(grayscaledImages, imageLabels, names);
+        } finally {
+            grayscaledImages.deallocate();
+        }
+        modelVersion = recogniser.getModelVersion();
+    }
+
+    /**
+     * @return the entry's bytes, or null if larger than an image could be.
+     */
+    private static byte[] readEntry(ZipInputStream zip) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(64 * 1024);
+        byte[] buffer = new byte[64 * 1024];
+        int read;
+        while ((read = zip.read(buffer)) >= 0) {
+            out.write(buffer, 0, read);
+            if (out.size() > MAX_IMAGE_BYTES) {
+                return null;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @return a hidden file in the directory holding the image, which neither training nor the watcher see.
+     */
+    private static File write(byte[] encodedImage, File dir) throws IOException {
+        File file = File.createTempFile(".enrolling-", ".part", dir);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(encodedImage);
+        } catch (IOException e) {
+            out.close();
+            file.delete();
+            throw e;
+        }
+        out.close();
+        return file;
+    }
+
+    /**
+     * Moves the images of an enrollment that succeeded to their names in the
+     * training directory. The model holds them already, so the watcher is told
+     * not to train again for them.
+     */
+    private void save(List<Image> images, File saveDir, TrainingSetWatcher watcher) {
+        for (Image image : images) {
+            if (watcher != null) {
+                watcher.expect(image.fileName);
+            }
+            try {
+                Files.move(image.saved.toPath(), new File(saveDir, image.fileName).toPath(),
+                        StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                fail(image.fileName, "Enrolled, but not saved: " + e);
+            }
+        }
+    }
+
+    /**
+     * Frees the decoded images and deletes the hidden files of images that were
+     * not moved to the training images, waiting for decoders still at work.
+     */
+    private void discard(List<Future<Image>> decoded) {
+        for (Future<Image> future : decoded) {
+            try {
+                Image image = future.get();
+                if (image == null) {
+                    continue;
+                }
+                image.mat.release();
+                if (image.saved != null && image.saved.exists() && !image.saved.delete()) {
+                    logger.warn("Could not delete " + image.saved);
+                }
+            } catch (ExecutionException e) {
+                // failed before writing
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    private void fail(String file, String reason) {
+        failed.incrementAndGet();
+        synchronized (errors) {
+            if (errors.size() < MAX_REPORTED_ERRORS) {
+                errors.add(new EnrollmentDTO.FileError(file, reason));
+            }
+        }
+    }
+
+    public EnrollmentDTO toDTO() {
+        EnrollmentDTO dto = new EnrollmentDTO();
+        dto.setId(id);
+        dto.setState(state);
+        dto.setEntries(entries.get());
+        dto.setEnrolled(enrolled.get());
+        dto.setSkipped(skipped.get());
+        dto.setFailed(failed.get());
+        dto.setLabels(labels);
+        dto.setModelVersion(modelVersion);
+        dto.setError(error);
+        synchronized (errors) {
+            dto.setErrors(new ArrayList<EnrollmentDTO.FileError>(errors));
+        }
+        return dto;
+    }
+
+    private static class Image {
+
+        final int label;
+        final String person;
+        final String fileName;
+        final Mat mat;
+        final File saved;
+
+        Image(int label, String person, String fileName, Mat mat, File saved) {
+            this.label = label;
+            this.person = person;
+            this.fileName = fileName;
+            this.mat = mat;
+            this.saved = saved;
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+
+package com.facerecog.rest.service;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded queue keeping a queue for each flow of elements, taking from the
+ * flows by weighted fair queuing: while several flows have elements waiting,
+ * each gets its turn in proportion to its weight, however many elements it
+ * queues. Within a flow, elements are taken in the order they were queued.
+ * <p>
+ * Every element is tagged with the virtual time it would be done if each flow
+ * was served at once at the rate of its weight: one past the tag of the element
+ * before it in the flow, or past the virtual time if the flow was idle, in steps
+ * of 1 / weight. The element with the lowest tag is taken first, and its tag
+ * becomes the virtual time (self-clocked fair queuing).
+ * <p>
+ * When the queue is full, a flow with fewer elements than the longest one may
+ * push out the newest element of the longest, so the flows keep their share of
+ * the queue however many elements a single flow sends.
+ * @param <E> the elements queued.
+ */
+class FairQueue<E> {
+
+    private final int capacity;
+    private final int flowCapacity;
+    private final Map<Object, Flow> flows = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private double virtualTime;
+    private double activeWeight;
+    private int count;
+
+    /**
+     * @param capacity the most elements queued in all flows together.
+     * @param flowCapacity the most elements queued in one flow.
+     */
+    FairQueue(int capacity, int flowCapacity) {
+        this.capacity = capacity;
+        this.flowCapacity = flowCapacity;
+    }
+
+    /**
+     * Queues an element unless the queue or its flow is full.
+     * @param flow the key of the flow, equal for all elements of the flow.
+     * @param weight the share of the flow, greater than 0.
+     * @return false if full.
+     */
+    boolean offer(E element, Object flow, double weight) {
+        lock.lock();
+        try {
+            if (isFull(flow)) {
+                return false;
+            }
+            enqueue(element, flow, weight);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues an element, waiting up to the timeout for room in the queue and its flow.
+     * @return false if still full after the timeout.
+     */
+    boolean offer(E element, Object flow, double weight, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (isFull(flow)) {
+                if (nanos <= 0) {
+                    return false;
+                }
+                nanos = notFull.awaitNanos(nanos);
+            }
+            enqueue(element, flow, weight);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the element with the lowest tag, waiting for one if the queue is empty.
+     */
+    E take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                notEmpty.await();
+            }
+            Flow next = null;
+            for (Flow flow : flows.values()) {
+                if (!flow.entries.isEmpty() && (next == null || flow.entries.peek().tag < next.entries.peek().tag)) {
+                    next = flow;
+                }
+            }
+            Entry<E> entry = next.entries.poll();
+            virtualTime = entry.tag;
+            count--;
+            if (next.entries.isEmpty()) {
+                activeWeight = count == 0 ? 0 : activeWeight - next.weight;
+            }
+            forgetIdleFlows();
+            // waiters may wait for room in different flows
+            notFull.signalAll();
+            return entry.element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues an element unless its flow is full. When the queue is full, makes
+     * room by removing the newest element of the longest flow, if that flow has
+     * more elements than the given one would have with the new element.
+     * @return null if queued with room to spare, the element removed to make room,
+     * or the given element itself if it was not queued.
+     */
+    E offerDisplacing(E element, Object flow, double weight) {
+        lock.lock();
+        try {
+            Flow queued = flows.get(flow);
+            int own = queued == null ? 0 : queued.entries.size();
+            if (own >= flowCapacity) {
+                return element;
+            }
+            if (count < capacity) {
+                enqueue(element, flow, weight);
+                return null;
+            }
+            Flow longest = null;
+            for (Flow candidate : flows.values()) {
+                if (longest == null || candidate.entries.size() > longest.entries.size()) {
+                    longest = candidate;
+                }
+            }
+            if (longest == null || longest.entries.size() <= own + 1) {
+                return element;
+            }
+            Entry<E> displaced = longest.entries.pollLast();
+            longest.lastTag = longest.entries.isEmpty() ? virtualTime : longest.entries.peekLast().tag;
+            count--;
+            if (longest.entries.isEmpty()) {
+                activeWeight -= longest.weight;
+            }
+            enqueue(element, flow, weight);
+            return displaced.element;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * An estimate of the number of elements that would be taken before an element
+     * queued now in the given flow: while the flows with elements waiting keep
+     * them waiting, the flow gets its weight's share of the turns.
+     */
+    int ahead(Object flow, double weight) {
+        lock.lock();
+        try {
+            Flow queued = flows.get(flow);
+            int own = queued == null ? 0 : queued.entries.size();
+            double active = activeWeight + (own == 0 ? weight : 0);
+            return (int) Math.min(count, Math.ceil((own + 1) * active / weight) - 1);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isFull(Object flow) {
+        Flow queued = flows.get(flow);
+        return count >= capacity || (queued != null && queued.entries.size() >= flowCapacity);
+    }
+
+    private void enqueue(E element, Object key, double weight) {
+        Flow flow = flows.get(key);
+        if (flow == null) {
+            flow = new Flow();
+            flows.put(key, flow);
+        }
+        if (flow.entries.isEmpty()) {
+            flow.weight = weight;
+            activeWeight += weight;
+        }
+        flow.lastTag = nextTag(flow, weight);
+        flow.entries.add(new Entry<>(element, flow.lastTag));
+        count++;
+        notEmpty.signal();
+    }
+
+    private double nextTag(Flow flow, double weight) {
+        return (flow == null ? virtualTime : Math.max(virtualTime, flow.lastTag)) + 1 / weight;
+    }
+
+    /**
+     * Drops the flows that are empty and caught up with the virtual time, as an
+     * element queued in them now would be tagged the same without them.
+     */
+    private void forgetIdleFlows() {
+        for (Iterator<Flow> it = flows.values().iterator(); it.hasNext(); ) {
+            Flow flow = it.next();
+            if (flow.entries.isEmpty() && flow.lastTag <= virtualTime) {
+                it.remove();
+            }
+        }
+    }
+
+    private class Flow {
+        final ArrayDeque<Entry<E>> entries = new ArrayDeque<>();
+        double lastTag;
+        double weight;
+    }
+
+    private static class Entry<E> {
+        final E element;
+        final double tag;
+
+        Entry(E element, double tag) {
+            this.element = element;
+            this.tag = tag;
+        }
+    }
+}
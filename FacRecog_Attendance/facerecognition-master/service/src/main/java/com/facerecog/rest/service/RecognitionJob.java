@@ -0,0 +1,51 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+
+package com.facerecog.rest.service;
+
+/**
+ * One recognition request, split into the steps the stages of the
+ * {@link RecognitionPipeline} run. The steps are called in order, each
+ * possibly on another thread, but never at the same time.
+ * @param <T> the result of the request.
+ */
+public interface RecognitionJob<T> {
+
+    /**
+     * Reads the image of the request into native memory.
+     */
+    void decode() throws Exception;
+
+    /**
+     * Scales the image down, recognises and detects faces in it.
+     */
+    void recognise() throws Exception;
+
+    /**
+     * Turns the result into the response.
+     */
+    T encode() throws Exception;
+
+    /**
+     * Called once when the job is done, after its last step, also when the job
+     * is dropped before its first step.
+     * @param failure the failure that ended the job early, or null if it completed.
+     */
+    void finish(Exception failure);
+}
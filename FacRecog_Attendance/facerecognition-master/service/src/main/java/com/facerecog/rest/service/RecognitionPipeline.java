@@ -0,0 +1,440 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+
+package com.facerecog.rest.service;
+
+import com.facerecog.rest.metrics.RecognitionMetrics;
+import com.facerecog.rest.metrics.RecognitionMetrics.Stage;
+import com.facerecog.rest.metrics.RecognitionMetrics.StageTimer;
+import com.facerecog.rest.metrics.RequestTrace;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.boot.actuate.endpoint.PublicMetrics;
+import org.springframework.boot.actuate.metrics.Metric;
+import org.springframework.util.concurrent.ListenableFuture;
+import org.springframework.util.concurrent.SettableListenableFuture;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs recognition requests in stages: decoding, recognition and encoding,
+ * each on a thread pool of its own with a bounded queue in front of it, so
+ * decoding and encoding, which wait for the network more than they compute,
+ * do not hold up the threads recognising faces. A stage hands a request on by
+ * waiting for room in the queue of the next stage, so a slow stage slows the
+ * stages before it down until the requests back up in front of the first.
+ * <p>
+ * Requests the pipeline cannot answer before their deadline are shed instead
+ * of letting every request get slower under overload. A request is refused
+ * when its queue in front of the first stage is full, or when the wait for
+ * the requests taken before it in every stage, estimated from the average time
+ * each stage takes, would make it miss its deadline. A request that can no longer finish in time is
+ * dropped when a stage takes it from its queue. Refused and dropped requests
+ * fail with {@link ServiceOverloadedException}, and are counted per reason.
+ * <p>
+ * The queues are fair between tenants, the cameras or clients sending the
+ * requests, so a busy camera does not starve the others: every tenant has a
+ * queue of its own for each class of request, and the stages take from them by
+ * weighted fair queuing, in proportion to the weight of the class. Cheap
+ * detection requests are given a greater weight than identification requests
+ * by default, so they do not wait behind them. A tenant queueing more requests
+ * only makes its own requests wait longer, and is refused once its own queue
+ * is full. The latency and queue of the recently seen tenants are published
+ * with the other metrics.
+ */
+public class RecognitionPipeline implements PublicMetrics {
+
+    private static final String PREFIX = "recognition.pipeline.";
+    private static final double SERVICE_TIME_SMOOTHING = 0.05;
+    private static final double TENANT_LATENCY_SMOOTHING = 0.1;
+    private static final int MAX_TRACKED_TENANTS = 64;
+
+    /**
+     * The classes of requests, each with a weight of its own.
+     */
+    public enum RequestClass {
+        DETECT, IDENTIFY, MATCH
+    }
+
+    private final List<PipelineStage> stages = new ArrayList<>();
+    private final long defaultDeadlineMillis;
+    private final long maxDeadlineMillis;
+    private final RecognitionMetrics metrics;
+    private final AtomicLong shedQueueFull = new AtomicLong();
+    private final AtomicLong shedDeadline = new AtomicLong();
+    private final AtomicLong shedExpired = new AtomicLong();
+    private final Map<RequestClass, Double> weights = new EnumMap<>(RequestClass.class);
+    private final Map<String, Tenant> tenants = new LinkedHashMap<String, Tenant>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Tenant> eldest) {
+            return size() > MAX_TRACKED_TENANTS;
+        }
+    };
+    private Logger logger = LoggerFactory.getLogger(RecognitionPipeline.class);
+
+    /**
+     * @param queueCapacity the most requests waiting in front of the recognise and encode stages,
+     *                      and the most requests of one tenant and class waiting to be decoded.
+     * @param decodeQueueCapacity the most requests of all tenants waiting to be decoded.
+     * @param defaultDeadlineMillis the deadline of requests that do not set one.
+     * @param maxDeadlineMillis the longest deadline a request may set.
+     */
+    public RecognitionPipeline(int decodeThreads, int recogniseThreads, int encodeThreads, int queueCapacity,
+                               int decodeQueueCapacity, long defaultDeadlineMillis, long maxDeadlineMillis,
+                               RecognitionMetrics metrics) {
+        this.defaultDeadlineMillis = defaultDeadlineMillis;
+        this.maxDeadlineMillis = maxDeadlineMillis;
+        this.metrics = metrics;
+        for (RequestClass requestClass : RequestClass.values()) {
+            weights.put(requestClass, 1.0);
+        }
+        // requests wait for their turn in front of the first stage, where each tenant may queue up to the capacity
+        stages.add(new PipelineStage("decode", 0, decodeThreads, new FairQueue<Request<?>>(decodeQueueCapacity, queueCapacity)));
+        stages.add(new PipelineStage("recognise", 1, recogniseThreads, new FairQueue<Request<?>>(queueCapacity, queueCapacity)));
+        stages.add(new PipelineStage("encode", 2, encodeThreads, new FairQueue<Request<?>>(queueCapacity, queueCapacity)));
+        for (PipelineStage stage : stages) {
+            stage.start();
+        }
+        logger.info(String.format(Locale.ROOT, "Recognising on %d decode, %d recognise and %d encode threads, "
+                        + "queueing up to %d requests to decode and %d per later stage, deadline %dms unless requested, "
+                        + "at most %dms",
+                decodeThreads, recogniseThreads, encodeThreads, decodeQueueCapacity, queueCapacity, defaultDeadlineMillis,
+                maxDeadlineMillis));
+    }
+
+    /**
+     * Sets the weight of a class of requests: while several tenants or classes
+     * have requests waiting, each gets its turn in proportion to its weight.
+     */
+    public void setWeight(RequestClass requestClass, double weight) {
+        if (weight <= 0) {
+            throw new IllegalArgumentException("The weight of " + requestClass + " must be greater than 0: " + weight);
+        }
+        weights.put(requestClass, weight);
+    }
+
+    /**
+     * Queues a request, unless it cannot be answered in time.
+     * @param tenant the camera or client sending the request, sharing the pipeline fairly with the others.
+     * @param deadlineMillis how long the client waits for the answer from now, or null for the default,
+     *                       up to the longest deadline the pipeline allows.
+     * @return the answer, or a ServiceOverloadedException if dropped on the way.
+     * @throws ServiceOverloadedException if refused right away.
+     */
+    public <T> ListenableFuture<T> submit(RecognitionJob<T> job, RequestClass requestClass, String tenant,
+                                          Long deadlineMillis, RequestTrace trace) {
+        long now = System.nanoTime();
+        long deadline = now + TimeUnit.MILLISECONDS.toNanos(deadlineMillis == null ? defaultDeadlineMillis
+                : Math.max(0, Math.min(deadlineMillis, maxDeadlineMillis)));
+        Request<T> request = new Request<>(job, tenant(tenant), tenant + "/" + requestClass, weights.get(requestClass), now, deadline);
+        long expected = request.expectedNanos(0);
+        if (now + expected > deadline) {
+            shedDeadline.incrementAndGet();
+            request.tenant.shed.incrementAndGet();
+            ServiceOverloadedException refused = new ServiceOverloadedException("Too busy to answer within the deadline",
+                    retryAfterSeconds(expected));
+            job.finish(refused);
+            throw refused;
+        }
+
+        request.queued = metrics.start(Stage.QUEUE, trace);
+        request.tenant.queued.incrementAndGet();
+        request.tenant.inFlight.incrementAndGet();
+        // a full queue makes room for a tenant queueing less than the one queueing most
+        Request<?> displaced = stages.get(0).queue.offerDisplacing(request, request.flow, request.weight);
+        if (displaced != null && displaced != request) {
+            displaced.shed(new ServiceOverloadedException("Pushed out of the queue by other tenants", retryAfterSeconds(expected)));
+        }
+        if (displaced == request) {
+            shedQueueFull.incrementAndGet();
+            request.tenant.queued.decrementAndGet();
+            request.tenant.inFlight.decrementAndGet();
+            request.tenant.shed.incrementAndGet();
+            ServiceOverloadedException refused = new ServiceOverloadedException("The queue is full", retryAfterSeconds(expected));
+            request.queued.failed(refused);
+            job.finish(refused);
+            throw refused;
+        }
+        return request.future;
+    }
+
+    private Tenant tenant(String name) {
+        synchronized (tenants) {
+            Tenant tenant = tenants.get(name);
+            if (tenant == null) {
+                tenant = new Tenant(name);
+                tenants.put(name, tenant);
+            }
+            return tenant;
+        }
+    }
+
+    /**
+     * The time a new request of the given flow would take from the given stage on:
+     * in every stage, the requests taken before it are worked off by all threads
+     * of the stage at once, each taking the average time of the stage.
+     */
+    private long expectedNanos(int fromStage, Object flow, double weight) {
+        long expected = 0;
+        for (int i = fromStage; i < stages.size(); i++) {
+            PipelineStage stage = stages.get(i);
+            int ahead = stage.queue.ahead(flow, weight) + stage.active.get() + 1 - stage.threads.length;
+            expected += (ahead <= 0 ? 0 : (long) (ahead * stage.serviceNanos / stage.threads.length)) + (long) stage.serviceNanos;
+        }
+        return expected;
+    }
+
+    private long remainingServiceNanos(int fromStage) {
+        long remaining = 0;
+        for (int i = fromStage; i < stages.size(); i++) {
+            remaining += (long) stages.get(i).serviceNanos;
+        }
+        return remaining;
+    }
+
+    private static long retryAfterSeconds(long expectedNanos) {
+        return Math.max(1, (long) Math.ceil(expectedNanos / 1e9));
+    }
+
+    public void shutdown() {
+        for (PipelineStage stage : stages) {
+            for (Thread thread : stage.threads) {
+                thread.interrupt();
+            }
+        }
+    }
+
+    @Override
+    public Collection<Metric<?>> metrics() {
+        Collection<Metric<?>> metrics = new ArrayList<>();
+        for (PipelineStage stage : stages) {
+            String prefix = PREFIX + stage.name + ".";
+            metrics.add(new Metric<>(prefix + "threads", stage.threads.length));
+            metrics.add(new Metric<>(prefix + "active", stage.active.get()));
+            metrics.add(new Metric<>(prefix + "queued", stage.queue.size()));
+            metrics.add(new Metric<>(prefix + "service-time.mean", stage.serviceNanos / 1e6));
+        }
+        metrics.add(new Metric<>(PREFIX + "shed.queue-full", shedQueueFull.get()));
+        metrics.add(new Metric<>(PREFIX + "shed.deadline", shedDeadline.get()));
+        metrics.add(new Metric<>(PREFIX + "shed.expired", shedExpired.get()));
+        metrics.add(new Metric<>(PREFIX + "shed", shedQueueFull.get() + shedDeadline.get() + shedExpired.get()));
+        for (RequestClass requestClass : RequestClass.values()) {
+            metrics.add(new Metric<>(PREFIX + "weight." + requestClass.name().toLowerCase(Locale.ROOT), weights.get(requestClass)));
+        }
+        List<Tenant> recentTenants;
+        synchronized (tenants) {
+            recentTenants = new ArrayList<>(tenants.values());
+        }
+        for (Tenant tenant : recentTenants) {
+            String prefix = PREFIX + "tenant." + tenant.name.replaceAll("[^A-Za-z0-9_-]", "_") + ".";
+            metrics.add(new Metric<>(prefix + "queued", tenant.queued.get()));
+            metrics.add(new Metric<>(prefix + "in-flight", tenant.inFlight.get()));
+            metrics.add(new Metric<>(prefix + "completed", tenant.completed.get()));
+            metrics.add(new Metric<>(prefix + "shed", tenant.shed.get()));
+            metrics.add(new Metric<>(prefix + "wait.mean", tenant.waitNanos / 1e6));
+            metrics.add(new Metric<>(prefix + "latency.mean", tenant.latencyNanos / 1e6));
+        }
+        return metrics;
+    }
+
+    /**
+     * A request on its way through the stages.
+     */
+    private class Request<T> {
+
+        final RecognitionJob<T> job;
+        final Tenant tenant;
+        final Object flow;
+        final double weight;
+        final long submitted;
+        final long deadline;
+        final SettableListenableFuture<T> future = new SettableListenableFuture<>();
+        StageTimer queued;
+
+        Request(RecognitionJob<T> job, Tenant tenant, Object flow, double weight, long submitted, long deadline) {
+            this.job = job;
+            this.tenant = tenant;
+            this.flow = flow;
+            this.weight = weight;
+            this.submitted = submitted;
+            this.deadline = deadline;
+        }
+
+        long expectedNanos(int fromStage) {
+            return RecognitionPipeline.this.expectedNanos(fromStage, flow, weight);
+        }
+
+        /**
+         * Runs the step of the given stage, and hands the request on to the next stage.
+         */
+        void run(PipelineStage stage) throws InterruptedException {
+            long start = System.nanoTime();
+            if (stage.index == 0) {
+                queued.stop();
+                tenant.queued.decrementAndGet();
+                tenant.waited(start - submitted);
+            }
+            if (start + remainingServiceNanos(stage.index) > deadline) {
+                shedExpired.incrementAndGet();
+                tenant.shed.incrementAndGet();
+                fail(new ServiceOverloadedException("Waited too long to answer within the deadline",
+                        retryAfterSeconds(expectedNanos(0))));
+                return;
+            }
+            T result = null;
+            try {
+                switch (stage.index) {
+                    case 0: job.decode(); break;
+                    case 1: job.recognise(); break;
+                    default: result = job.encode();
+                }
+            } catch (Exception e) {
+                fail(e);
+                return;
+            } finally {
+                stage.serviceTime(System.nanoTime() - start);
+            }
+
+            if (stage.index == stages.size() - 1) {
+                job.finish(null);
+                tenant.completed(System.nanoTime() - submitted);
+                future.set(result);
+            } else if (!stages.get(stage.index + 1).queue.offer(this, flow, weight, deadline - System.nanoTime(), TimeUnit.NANOSECONDS)) {
+                shedExpired.incrementAndGet();
+                tenant.shed.incrementAndGet();
+                fail(new ServiceOverloadedException("Waited too long to answer within the deadline",
+                        retryAfterSeconds(expectedNanos(0))));
+            }
+        }
+
+        /**
+         * Fails a request taken out of the first queue before its turn.
+         */
+        void shed(ServiceOverloadedException failure) {
+            shedQueueFull.incrementAndGet();
+            tenant.queued.decrementAndGet();
+            tenant.shed.incrementAndGet();
+            queued.failed(failure);
+            fail(failure);
+        }
+
+        void fail(Exception failure) {
+            job.finish(failure);
+            tenant.inFlight.decrementAndGet();
+            future.setException(failure);
+        }
+    }
+
+    /**
+     * A camera or client sending requests, with the latency of its requests and
+     * how many are waiting.
+     */
+    private static class Tenant {
+
+        final String name;
+        final AtomicInteger queued = new AtomicInteger();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong completed = new AtomicLong();
+        final AtomicLong shed = new AtomicLong();
+        volatile double waitNanos;
+        volatile double latencyNanos;
+
+        Tenant(String name) {
+            this.name = name;
+        }
+
+        synchronized void waited(long nanos) {
+            waitNanos = waitNanos == 0 ? nanos : waitNanos + TENANT_LATENCY_SMOOTHING * (nanos - waitNanos);
+        }
+
+        synchronized void completed(long nanos) {
+            inFlight.decrementAndGet();
+            completed.incrementAndGet();
+            latencyNanos = latencyNanos == 0 ? nanos : latencyNanos + TENANT_LATENCY_SMOOTHING * (nanos - latencyNanos);
+        }
+    }
+
+    /**
+     * A stage of the pipeline: a queue and the threads taking requests from it.
+     */
+    private class PipelineStage {
+
+        final String name;
+        final int index;
+        final FairQueue<Request<?>> queue;
+        final Thread[] threads;
+        final AtomicInteger active = new AtomicInteger();
+        volatile double serviceNanos;
+
+        PipelineStage(String name, int index, int threadCount, FairQueue<Request<?>> queue) {
+            this.name = name;
+            this.index = index;
+            this.queue = queue;
+            this.threads = new Thread[threadCount];
+            for (int i = 0; i < threadCount; i++) {
+                threads[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        work();
+                    }
+                }, "recognition-" + name + "-" + (i + 1));
+                threads[i].setDaemon(true);
+            }
+        }
+
+        void start() {
+            for (Thread thread : threads) {
+                thread.start();
+            }
+        }
+
+        private void work() {
+            Request<?> request = null;
+            try {
+                while (true) {
+                    request = queue.take();
+                    active.incrementAndGet();
+                    try {
+                        request.run(this);
+                    } finally {
+                        active.decrementAndGet();
+                    }
+                    request = null;
+                }
+            } catch (InterruptedException e) {
+                if (request != null) {
+                    request.fail(new ServiceOverloadedException("The service is shutting down", 1));
+                }
+            }
+        }
+
+        synchronized void serviceTime(long nanos) {
+            serviceNanos = serviceNanos == 0 ? nanos : serviceNanos + SERVICE_TIME_SMOOTHING * (nanos - serviceNanos);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.service;
+
+import java.io.IOException;
+
+import org.bytedeco.javacpp.opencv_core.Mat;
+
+/**
+ * Receives the result of a streamed recognition request. The image is only
+ * valid for the duration of the call.
+ */
+public interface RecognitionResultWriter {
+
+    /**
+     * @param modelVersion the version of the model that predicted the person, see {@link opencv.FaceRecogniser#getModelVersion}.
+     */
+    void write(String predictedPerson, long modelVersion, Mat image) throws IOException;
+
+}
@@ -18,9 +18,17 @@
 
 package com.facerecog.rest.service;
 
+import com.facerecog.rest.metrics.NativeMemoryMetrics;
+import com.facerecog.rest.metrics.RecognitionMetrics;
+import com.facerecog.rest.metrics.RecognitionMetrics.Stage;
+import com.facerecog.rest.metrics.RecognitionMetrics.StageTimer;
+import com.facerecog.rest.metrics.RequestTrace;
+import dto.EnrollmentDTO;
+import dto.MatchDTO;
 import dto.RecognitionDTO;
 import opencv.FaceDetector;
 import opencv.FaceRecogniser;
+import opencv.MatPool;
 import opencv.Util;
 import org.bytedeco.javacpp.BytePointer;
 import org.bytedeco.javacpp.opencv_core;
@@ -32,8 +40,21 @@ import org.springframework.stereotype.Service;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URISyntaxException;
-import java.util.concurrent.Callable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.bytedeco.javacpp.opencv_core.*;
 import static org.bytedeco.javacpp.opencv_imgproc.*;
@@ -41,11 +62,58 @@ import static org.bytedeco.javacpp.opencv_imgproc.*;
 @Service
 public class RecognitionService {
 
+    private static final int MAX_IDLE_BUFFERS_PER_SIZE = 16;
+    private static final int DOWNSCALE_FACTOR = FaceRecogniser.DEFAULT_DOWNSCALE_FACTOR;
+    private static final String DETECT = "detect";
+    private static final String DETECT_IDENTIFY = "detectIdentify";
+    private static final String DETECT_RAW = "detect.raw";
+    private static final String DETECT_IDENTIFY_RAW = "detectIdentify.raw";
+    private static final String MATCH = "match";
+    private static final int KEPT_ENROLLMENTS = 16;
+
     private FaceDetector detector;
     private FaceRecogniser recogniser;
+    private final ShardCoordinator shards;
+    private final String defaultAlgorithm;
+    private TrainingSetWatcher trainingSetWatcher;
+    private ExecutorService enrollmentDecoders;
+    private int enrollmentDecoderCount;
+    private boolean saveEnrolledImages = true;
+    private final Map<String, BulkEnrollment> enrollments = new LinkedHashMap<String, BulkEnrollment>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, BulkEnrollment> eldest) {
+            return size() > KEPT_ENROLLMENTS && !eldest.getValue().isRunning();
+        }
+    };
+    private final RecognitionMetrics metrics;
+    private final NativeMemoryMetrics nativeMemory;
+    private final MatPool matPool = new MatPool(MAX_IDLE_BUFFERS_PER_SIZE);
     private Logger logger = LoggerFactory.getLogger(RecognitionService.class);
 
-    public RecognitionService() throws FileNotFoundException, URISyntaxException {
+    public RecognitionService(RecognitionMetrics metrics, NativeMemoryMetrics nativeMemory, FaceRecogniser.Algorithm algorithm,
+                              int indexProbes) throws FileNotFoundException, URISyntaxException {
+        this(metrics, nativeMemory, Collections.singletonList(algorithm), false, indexProbes, 0, 1, null);
+    }
+
+    /**
+     * @param algorithms the algorithms to train, which requests choose between. The
+     *                   first one predicts for requests that do not choose.
+     * @param ensemble whether requests that do not choose an algorithm predict with all of them.
+     * @param shardIndex the shard of the training labels this instance holds, see {@link FaceRecogniser#isInShard}.
+     * @param shardCount the number of shards the labels are divided into, 1 for all of them.
+     * @param shards predicts with the shards held by other instances instead of training a
+     *               gallery here, or null to predict with this instance's own gallery.
+     */
+    public RecognitionService(RecognitionMetrics metrics, NativeMemoryMetrics nativeMemory, List<FaceRecogniser.Algorithm> algorithms,
+                              boolean ensemble, int indexProbes, int shardIndex, int shardCount, ShardCoordinator shards)
+            throws FileNotFoundException, URISyntaxException {
+        if (shards != null && ensemble) {
+            throw new IllegalArgumentException("An ensemble cannot be combined over shards, which compare the distances of one algorithm");
+        }
+        this.metrics = metrics;
+        this.nativeMemory = nativeMemory;
+        this.shards = shards;
+        this.defaultAlgorithm = ensemble ? FaceRecogniser.ENSEMBLE : null;
 
         String sep = "/";
         if (System.getProperty("os.name").startsWith("Windows")) {
@@ -56,7 +124,14 @@ public class RecognitionService {
         String trainingSetDirRelative = sep + "resources" + sep + "main" + sep + "recognition" + sep + "training";
         String trainResultsStoragePath = sep + "Users" + sep + "username" + sep + "facerecog" + sep + "storage";
 
-        recogniser = new FaceRecogniser(trainingSetDirRelative, trainResultsStoragePath);
+        if (shards != null) {
+            logger.info("Recognising with the shards at " + shards.getMatchUrls());
+        } else {
+            logger.info("Recognising with " + (ensemble ? "an ensemble of " : "") + algorithms
+                    + (shardCount > 1 ? ", shard " + shardIndex + " of " + shardCount : ""));
+            recogniser = new FaceRecogniser(trainingSetDirRelative, trainResultsStoragePath, algorithms, shardIndex, shardCount);
+            recogniser.setIndexProbes(indexProbes);
+        }
 
         String cascadeResourcePath = sep + "resources" + sep + "main" + sep + "detection" + sep + "haar" + sep + "frontalface_alt.xml";
         detector = new FaceDetector(cascadeResourcePath);
@@ -64,74 +139,387 @@ public class RecognitionService {
     }
 
 
-    public Callable<RecognitionDTO> detectedAndIdentifyAsync(final byte[] byteImage, final int imageType, final int imageWidth, final int imageHeight) {
-        return new Callable<RecognitionDTO>() {
+    public RecognitionJob<RecognitionDTO> detect(final byte[] byteImage, final int type, final int width, final int height,
+                                                 RequestTrace trace) {
+        return new ImageJob<RecognitionDTO>(DETECT, trace) {
+            @Override
+            protected Mat read() {
+                return Util.convertBytesToImage(buffers, byteImage, type, width, height);
+            }
+
+            @Override
+            public void recognise() {
+                imageMatResized = detect(buffers, imageMat, this.trace);
+            }
+
+            @Override
+            protected RecognitionDTO write() {
+                return createIdentificationResponse("", getModelVersion(), imageMatResized);
+            }
+        };
+    }
+
+    /**
+     * @param algorithm the algorithm to predict with, see {@link FaceRecogniser#predictPerson(Mat, String)},
+     *                  or null for the configured one.
+     * @throws IllegalArgumentException if the algorithm cannot predict here, see {@link #checkAlgorithm}.
+     */
+    public RecognitionJob<RecognitionDTO> detectAndIdentify(final byte[] byteImage, final int type, final int width, final int height,
+                                                            final String algorithm, RequestTrace trace) {
+        checkAlgorithm(algorithm);
+        return new ImageJob<RecognitionDTO>(DETECT_IDENTIFY, trace) {
+            @Override
+            protected Mat read() {
+                return Util.convertBytesToImage(buffers, byteImage, type, width, height);
+            }
+
+            @Override
+            public void recognise() {
+                imageMatResized = resize(buffers, imageMat, this.trace);
+                prediction = identify(buffers, imageMatResized, algorithm, this.trace);
+            }
+
+            @Override
+            protected RecognitionDTO write() {
+                return createIdentificationResponse(prediction.person, prediction.modelVersion, imageMatResized);
+            }
+        };
+    }
+
+    /**
+     * Detection on an image streamed straight into native memory. The resulting
+     * image is handed to the writer while its buffer is still leased.
+     */
+    public RecognitionJob<Void> detect(final InputStream imageStream, final int type, final int width, final int height,
+                                       final RecognitionResultWriter resultWriter, RequestTrace trace) {
+        return new ImageJob<Void>(DETECT_RAW, trace) {
+            @Override
+            protected Mat read() throws IOException {
+                return Util.readImage(buffers, imageStream, type, width, height);
+            }
+
+            @Override
+            public void recognise() {
+                imageMatResized = detect(buffers, imageMat, this.trace);
+            }
+
+            @Override
+            protected Void write() throws IOException {
+                resultWriter.write("", getModelVersion(), imageMatResized);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Detection and identification on an image streamed straight into native
+     * memory. The resulting image is handed to the writer while its buffer is
+     * still leased.
+     * @throws IllegalArgumentException if the algorithm cannot predict here, see {@link #checkAlgorithm}.
+     */
+    public RecognitionJob<Void> detectAndIdentify(final InputStream imageStream, final int type, final int width, final int height,
+                                                  final String algorithm, final RecognitionResultWriter resultWriter,
+                                                  RequestTrace trace) {
+        checkAlgorithm(algorithm);
+        return new ImageJob<Void>(DETECT_IDENTIFY_RAW, trace) {
+            @Override
+            protected Mat read() throws IOException {
+                return Util.readImage(buffers, imageStream, type, width, height);
+            }
+
+            @Override
+            public void recognise() {
+                imageMatResized = resize(buffers, imageMat, this.trace);
+                prediction = identify(buffers, imageMatResized, algorithm, this.trace);
+            }
+
+            @Override
+            protected Void write() throws IOException {
+                resultWriter.write(prediction.person, prediction.modelVersion, imageMatResized);
+                return null;
+            }
+        };
+    }
+
+    /**
+     * Predicts with this instance's gallery only, for a face the coordinator of
+     * a sharded gallery has already scaled down.
+     */
+    public RecognitionJob<MatchDTO> match(final InputStream imageStream, final int type, final int width, final int height,
+                                          final String algorithm, RequestTrace trace) {
+        if (recogniser == null) {
+            throw new IllegalStateException("This instance coordinates shards and holds no gallery");
+        }
+        if (FaceRecogniser.ENSEMBLE.equalsIgnoreCase(algorithm)) {
+            throw new IllegalArgumentException("An ensemble has no distance to compare shards by");
+        }
+        checkAlgorithm(algorithm);
+        return new ImageJob<MatchDTO>(MATCH, trace) {
+            @Override
+            protected Mat read() throws IOException {
+                return Util.readImage(buffers, imageStream, type, width, height);
+            }
+
+            @Override
+            public void recognise() {
+                StageTimer predict = metrics.start(Stage.PREDICT, this.trace);
+                prediction = algorithm == null
+                        ? recogniser.predict(imageMat) : recogniser.predict(imageMat, FaceRecogniser.parseAlgorithm(algorithm));
+                predict.stop();
+            }
+
             @Override
-            public RecognitionDTO call() throws Exception {
-                return detectAndIdentify(byteImage, imageType, imageWidth, imageHeight);
+            protected MatchDTO write() {
+                return new MatchDTO(prediction.person, prediction.label, prediction.distance, prediction.modelVersion);
             }
         };
     }
 
-    public RecognitionDTO detect(byte[] byteImage, int type, int width, int height) {
-        long t1 = System.currentTimeMillis();
-        Mat imageMat = convertBytesToImage(byteImage, type, width, height);
+    /**
+     * Checks the algorithm a request chooses before the request is queued: it
+     * must be known, trained here once anything is, and no ensemble on an
+     * instance that coordinates shards.
+     * @param algorithm the name of an algorithm, ENSEMBLE, or null for the configured one.
+     * @throws IllegalArgumentException if the algorithm cannot predict here.
+     */
+    private void checkAlgorithm(String algorithm) {
+        if (algorithm == null) {
+            return;
+        }
+        if (FaceRecogniser.ENSEMBLE.equalsIgnoreCase(algorithm)) {
+            if (shards != null) {
+                throw new IllegalArgumentException("An ensemble cannot be combined over shards, which compare the distances of one algorithm");
+            }
+            return;
+        }
+        FaceRecogniser.Algorithm chosen = FaceRecogniser.parseAlgorithm(algorithm);
+        if (recogniser != null) {
+            Set<FaceRecogniser.Algorithm> trained = recogniser.getTrainedAlgorithms();
+            if (!trained.isEmpty() && !trained.contains(chosen)) {
+                throw new IllegalArgumentException(chosen + " is not trained, only " + trained);
+            }
+        }
+    }
+
+    /**
+     * @return the version of the current model, or 0 on an instance that coordinates shards.
+     */
+    public long getModelVersion() {
+        return recogniser == null ? 0 : recogniser.getModelVersion();
+    }
 
-        Mat imageMatResized = new Mat(imageMat.rows() / 4, imageMat.cols() / 4, imageMat.type());
-        cvResize(imageMat.asCvMat(), imageMatResized.asCvMat(), CV_INTER_AREA);
-        detector.detectFaces(imageMatResized);
-        RecognitionDTO response = createIdentificationResponse("", imageMatResized);
-        logger.info("Request completed after: " + (System.currentTimeMillis() - t1) + "ms");
+    /**
+     * Trains again in the background whenever the training images change, see {@link TrainingSetWatcher}.
+     */
+    public synchronized void watchTrainingSet(long debounceMillis) throws IOException {
+        if (recogniser == null) {
+            throw new IllegalStateException("This instance coordinates shards and holds no training set");
+        }
+        if (trainingSetWatcher == null) {
+            trainingSetWatcher = new TrainingSetWatcher(recogniser, debounceMillis);
+        }
+    }
 
-        return response;
+    /**
+     * @param decoders the number of threads decoding enrolled images, 0 for one per processor.
+     * @param saveImages whether enrolled images are also saved with the training images.
+     */
+    public synchronized void configureEnrollment(int decoders, boolean saveImages) {
+        this.enrollmentDecoderCount = decoders > 0 ? decoders : Runtime.getRuntime().availableProcessors();
+        this.saveEnrolledImages = saveImages;
+    }
 
+    /**
+     * Enrolls the images in a zip archive as it is read from the stream, see {@link BulkEnrollment}.
+     * @param id names the enrollment to ask for its progress with, or null for a generated one.
+     */
+    public EnrollmentDTO enroll(InputStream archive, String id) {
+        if (recogniser == null) {
+            throw new IllegalStateException("This instance coordinates shards and holds no gallery");
+        }
+        BulkEnrollment enrollment = new BulkEnrollment(id == null ? UUID.randomUUID().toString() : id);
+        ExecutorService decoders;
+        TrainingSetWatcher watcher;
+        synchronized (this) {
+            BulkEnrollment earlier = enrollments.get(enrollment.getId());
+            if (earlier != null && earlier.isRunning()) {
+                throw new IllegalStateException("Enrollment " + enrollment.getId() + " is already running");
+            }
+            enrollments.remove(enrollment.getId());
+            enrollments.put(enrollment.getId(), enrollment);
+            decoders = enrollmentDecoders();
+            watcher = trainingSetWatcher;
+        }
+        logger.info("Enrollment " + enrollment.getId() + " started");
+        return enrollment.run(archive, recogniser, decoders, 2 * enrollmentDecoderCount, saveEnrolledImages, watcher);
+    }
+
+    /**
+     * @return the progress of a recent enrollment, or null if there was none by that id.
+     */
+    public synchronized EnrollmentDTO getEnrollment(String id) {
+        BulkEnrollment enrollment = enrollments.get(id);
+        return enrollment == null ? null : enrollment.toDTO();
     }
-    public RecognitionDTO detectAndIdentify(byte[] byteImage, int type, int width, int height) {
-        long t1 = System.currentTimeMillis();
-        Mat imageMat = convertBytesToImage(byteImage, type, width, height);
 
-        Mat imageMatResized = new Mat(imageMat.rows() / 4, imageMat.cols() / 4, imageMat.type());
-        cvResize(imageMat.asCvMat(), imageMatResized.asCvMat(), CV_INTER_AREA);
+    /**
+     * @return the progress of the recent enrollments, oldest first.
+     */
+    public synchronized List<EnrollmentDTO> getEnrollments() {
+        List<EnrollmentDTO> dtos = new ArrayList<>();
+        for (BulkEnrollment enrollment : enrollments.values()) {
+            dtos.add(enrollment.toDTO());
+        }
+        return dtos;
+    }
 
+    /**
+     * Stops watching the training set, the enrollment decoders and the requests to shards.
+     */
+    public synchronized void shutdown() {
+        if (trainingSetWatcher != null) {
+            try {
+                trainingSetWatcher.close();
+            } catch (IOException e) {
+                logger.warn("Could not stop watching the training set", e);
+            }
+        }
+        if (enrollmentDecoders != null) {
+            enrollmentDecoders.shutdownNow();
+        }
+        if (shards != null) {
+            shards.shutdown();
+        }
+    }
+
+    /**
+     * Decoders run at minimum priority, so an enrollment slows recognition requests down as little as it can.
+     */
+    private ExecutorService enrollmentDecoders() {
+        if (enrollmentDecoders == null) {
+            if (enrollmentDecoderCount == 0) {
+                enrollmentDecoderCount = Runtime.getRuntime().availableProcessors();
+            }
+            enrollmentDecoders = Executors.newFixedThreadPool(enrollmentDecoderCount, new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "enrollment-decoder-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }
+            });
+        }
+        return enrollmentDecoders;
+    }
+
+    private Mat detect(MatPool.Lease buffers, Mat imageMat, RequestTrace trace) {
+        Mat imageMatResized = resize(buffers, imageMat, trace);
+        detectFaces(buffers, imageMatResized, trace);
+        return imageMatResized;
+    }
+
+    private FaceRecogniser.Prediction identify(MatPool.Lease buffers, Mat imageMatResized, String algorithm, RequestTrace trace) {
         //cvEqualizeHist(imageMatResized.asCvMat(), imageMatResized.asCvMat());
 
-        String predictedPerson = recogniser.predictPerson(imageMatResized);
-        detector.detectFaces(imageMatResized);
+        StageTimer predict = metrics.start(Stage.PREDICT, trace);
+        if (algorithm == null) {
+            algorithm = defaultAlgorithm;
+        }
+        FaceRecogniser.Prediction prediction = shards != null
+                ? shards.predict(imageMatResized, algorithm) : recogniser.predict(imageMatResized, algorithm);
+        predict.stop();
+        metrics.personPredicted(prediction.person);
+        detectFaces(buffers, imageMatResized, trace);
+        return prediction;
+    }
+
+    private void detectFaces(MatPool.Lease buffers, Mat imageMatResized, RequestTrace trace) {
+        StageTimer detect = metrics.start(Stage.DETECT, trace);
+        int faces = detector.detectFaces(buffers.header(imageMatResized));
+        detect.stop();
+        metrics.facesDetected(faces);
+    }
 
-        RecognitionDTO response = createIdentificationResponse(predictedPerson, imageMatResized);
+    private Mat resize(MatPool.Lease buffers, Mat imageMat, RequestTrace trace) {
+        StageTimer resize = metrics.start(Stage.RESIZE, trace);
+        Mat imageMatResized = Util.downscale(buffers, imageMat, DOWNSCALE_FACTOR);
+        resize.stop();
+        return imageMatResized;
+    }
 
-        logger.info("Request completed after: " + (System.currentTimeMillis() - t1) + "ms (" + predictedPerson + ")");
+    private void requestCompleted(StageTimer total, String predictedPerson) {
+        long elapsed = total.stop();
+        logger.info("Request completed after: " + TimeUnit.NANOSECONDS.toMillis(elapsed) + "ms"
+                + (predictedPerson.isEmpty() ? "" : " (" + predictedPerson + ")"));
+    }
 
-        return response;
+    private void requestFailed(StageTimer total, Exception e) {
+        total.failed(e);
+        metrics.requestFailed(e);
     }
 
-    private Mat convertBytesToImage(byte[] byteImage, int type, int width, int height) {
-        int matType = -1;
+    /**
+     * A request on one image: its buffers are leased when it is decoded, and
+     * returned when it is finished. The steps are timed as the stages of the request.
+     */
+    private abstract class ImageJob<T> implements RecognitionJob<T> {
+
+        private final String requestType;
+        protected final RequestTrace trace;
+        protected MatPool.Lease buffers;
+        private StageTimer total;
+        protected Mat imageMat;
+        protected Mat imageMatResized;
+        protected FaceRecogniser.Prediction prediction;
+
+        ImageJob(String requestType, RequestTrace trace) {
+            this.requestType = requestType;
+            this.trace = trace;
+        }
+
+        protected abstract Mat read() throws IOException;
+
+        protected abstract T write() throws IOException;
+
+        @Override
+        public void decode() throws IOException {
+            total = metrics.start(Stage.TOTAL, trace);
+            buffers = matPool.lease();
+            StageTimer decode = metrics.start(Stage.DECODE, trace);
+            imageMat = read();
+            decode.stop();
+        }
 
-        switch (type) {
-            case BufferedImage.TYPE_3BYTE_BGR:
-                matType = CV_8UC3;
-                break;
-            case BufferedImage.TYPE_BYTE_GRAY:
-                matType = CV_8UC1;
-                break;
-            default:
-                throw new IllegalArgumentException("Unrecognized type");
+        @Override
+        public T encode() throws IOException {
+            StageTimer encode = metrics.start(Stage.ENCODE, trace);
+            T response = write();
+            encode.stop();
+            return response;
         }
-        Mat imageMat = new Mat(height, width, matType);
-        imageMat.ptr().put(byteImage);
 
-        if (matType != CV_8UC1) {
-            Mat matGray = new Mat();
-            cvtColor(imageMat, matGray, CV_RGB2GRAY);
-            imageMat = matGray;
+        @Override
+        public void finish(Exception failure) {
+            if (total == null) {
+                return;
+            }
+            if (failure == null) {
+                requestCompleted(total, prediction == null ? "" : prediction.person);
+            } else {
+                requestFailed(total, failure);
+            }
+            nativeMemory.requestCompleted(requestType, buffers.getLeasedBytes());
+            buffers.close();
         }
-        return imageMat;
     }
 
-    private static RecognitionDTO createIdentificationResponse(String predictedPerson, Mat mat) {
+    private static RecognitionDTO createIdentificationResponse(String predictedPerson, long modelVersion, Mat mat) {
         RecognitionDTO recognitionDTO = new RecognitionDTO();
         recognitionDTO.setPredictedPerson(predictedPerson);
+        recognitionDTO.setModelVersion(modelVersion);
         recognitionDTO.setBytes(Util.matToBytes(mat));
         recognitionDTO.setCols(mat.cols());
         recognitionDTO.setRows(mat.rows());
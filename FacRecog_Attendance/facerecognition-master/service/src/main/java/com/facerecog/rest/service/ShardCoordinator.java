@@ -0,0 +1,162 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.service;
+
+import api.ApiHeaders;
+import api.ApiUrls;
+import com.facerecog.rest.metrics.RecognitionMetrics;
+import dto.MatchDTO;
+import opencv.FaceRecogniser;
+import opencv.Util;
+import org.bytedeco.javacpp.opencv_core.Mat;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.client.SimpleClientHttpRequestFactory;
+import org.springframework.util.LinkedMultiValueMap;
+import org.springframework.util.MultiValueMap;
+import org.springframework.web.client.RestTemplate;
+
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Predicts with a gallery divided between service instances, each trained
+ * with one shard of the labels. A face is sent to all shards at once and the
+ * closest of their matches wins. Shards that fail, or do not answer before the
+ * deadline, are left out, so a prediction only misses the people they hold.
+ * <p>
+ * Distances are only comparable between shards of the same algorithm. Eigen
+ * and Fisher project every shard onto its own basis, so shard those with care.
+ */
+public class ShardCoordinator {
+
+    private final List<String> matchUrls = new ArrayList<>();
+    private final long deadlineMillis;
+    private final RecognitionMetrics metrics;
+    private final RestTemplate restTemplate;
+    private final ExecutorService requests;
+    private Logger logger = LoggerFactory.getLogger(ShardCoordinator.class);
+
+    /**
+     * @param shardUrls root URLs of the shard instances, e.g. http://localhost:8081
+     * @param deadlineMillis how long a prediction waits for the shards.
+     */
+    public ShardCoordinator(List<String> shardUrls, long deadlineMillis, RecognitionMetrics metrics) {
+        if (shardUrls.isEmpty()) {
+            throw new IllegalArgumentException("No shards to coordinate");
+        }
+        for (String shardUrl : shardUrls) {
+            matchUrls.add(shardUrl.replaceAll("/+$", "") + ApiUrls.ROOT_URL_RECOG + ApiUrls.URL_RECOG_MATCH);
+        }
+        this.deadlineMillis = deadlineMillis;
+        this.metrics = metrics;
+
+        // late requests give up by themselves, so abandoned ones do not pile up
+        SimpleClientHttpRequestFactory requestFactory = new SimpleClientHttpRequestFactory();
+        requestFactory.setConnectTimeout((int) deadlineMillis);
+        requestFactory.setReadTimeout((int) deadlineMillis);
+        this.restTemplate = new RestTemplate(requestFactory);
+
+        final AtomicInteger threads = new AtomicInteger();
+        this.requests = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "shard-request-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public List<String> getMatchUrls() {
+        return matchUrls;
+    }
+
+    /**
+     * @param image grayscale face, scaled down as for the recogniser.
+     * @param algorithm the algorithm the shards predict with, or null for their own choice.
+     * @return the person closest to the face in any shard that answered in time,
+     * with the model version of that shard, or "" if none did.
+     */
+    public FaceRecogniser.Prediction predict(Mat image, String algorithm) {
+        MultiValueMap<String, String> headers = new LinkedMultiValueMap<>();
+        headers.add(ApiHeaders.IMAGE_TYPE, String.valueOf(BufferedImage.TYPE_BYTE_GRAY));
+        headers.add(ApiHeaders.IMAGE_WIDTH, String.valueOf(image.cols()));
+        headers.add(ApiHeaders.IMAGE_HEIGHT, String.valueOf(image.rows()));
+        if (algorithm != null) {
+            headers.add(ApiHeaders.ALGORITHM, algorithm);
+        }
+        // shards too busy to answer in time refuse right away, rather than work on an answer that is not waited for
+        headers.add(ApiHeaders.DEADLINE_MILLIS, String.valueOf(deadlineMillis));
+        // a copy on the heap, as requests may still send it after the image is returned to its pool
+        final HttpEntity<byte[]> request = new HttpEntity<>(Util.matToBytes(image), headers);
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+        List<Future<MatchDTO>> matches = new ArrayList<>();
+        for (final String matchUrl : matchUrls) {
+            matches.add(requests.submit(new Callable<MatchDTO>() {
+                @Override
+                public MatchDTO call() {
+                    return restTemplate.postForObject(matchUrl, request, MatchDTO.class);
+                }
+            }));
+        }
+
+        MatchDTO best = null;
+        for (int i = 0; i < matches.size(); i++) {
+            Future<MatchDTO> match = matches.get(i);
+            try {
+                MatchDTO answer = match.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                metrics.shardAnswered();
+                if (answer != null && answer.getLabel() >= 0 && (best == null || answer.getDistance() < best.getDistance())) {
+                    best = answer;
+                }
+            } catch (TimeoutException e) {
+                match.cancel(true);
+                metrics.shardLate();
+                logger.warn("Shard " + matchUrls.get(i) + " did not answer within " + deadlineMillis + "ms");
+            } catch (ExecutionException e) {
+                metrics.shardFailed();
+                logger.warn("Shard " + matchUrls.get(i) + " failed: " + e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (best == null) {
+            return new FaceRecogniser.Prediction(-1, "", Double.MAX_VALUE, 0);
+        }
+        return new FaceRecogniser.Prediction(best.getLabel(), best.getPredictedPerson(), best.getDistance(), best.getModelVersion());
+    }
+
+    public void shutdown() {
+        requests.shutdownNow();
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ *
+ *  * Copyright 2015 Erik Wiséen Åberg
+ *  *
+ *  * Licensed under the Apache License, Version 2.0 (the "License");
+ *  * you may not use this file except in compliance with the License.
+ *  * You may obtain a copy of the License at
+ *  *
+ *  * http://www.apache.org/licenses/LICENSE-2.0
+ *  *
+ *  * Unless required by applicable law or agreed to in writing, software
+ *  * distributed under the License is distributed on an "AS IS" BASIS,
+ *  * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  * See the License for the specific language governing permissions and
+ *  * limitations under the License.
+ *
+ */
+
+package com.facerecog.rest.service;
+
+import opencv.FaceRecogniser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+
+/**
+ * Trains the recogniser again when its training images change. Changes are
+ * collected until none have come for the debounce interval, so copying a
+ * batch of images in retrains once. Training runs on a thread of minimum
+ * priority and swaps the new model in when done, so requests are served by
+ * the old model meanwhile. Hidden files, and files announced with
+ * {@link #expect} because they are in the model already, do not count as
+ * changes.
+ */
+public class TrainingSetWatcher {
+
+    private final FaceRecogniser recogniser;
+    private final long debounceMillis;
+    private final WatchService watchService;
+    private final Thread watcher;
+    private final ScheduledExecutorService trainer;
+    private ScheduledFuture<?> pendingRetrain;
+    private final Map<Path, Integer> expected = new HashMap<Path, Integer>();
+    private Logger logger = LoggerFactory.getLogger(TrainingSetWatcher.class);
+
+    public TrainingSetWatcher(FaceRecogniser recogniser, long debounceMillis) throws IOException {
+        this.recogniser = recogniser;
+        this.debounceMillis = debounceMillis;
+        Path trainingSetDir = recogniser.getTrainingSetDir().toPath();
+        watchService = FileSystems.getDefault().newWatchService();
+        trainingSetDir.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+
+        trainer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "training-set-retrain");
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        watcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch();
+            }
+        }, "training-set-watcher");
+        watcher.setDaemon(true);
+        watcher.start();
+        logger.info("Watching " + trainingSetDir + " to train again " + debounceMillis + "ms after changes");
+    }
+
+    private void watch() {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                int changes = 0;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    logger.debug("Training set " + event.kind().name() + ": " + event.context());
+                    if (!isExpected(event.context())) {
+                        changes++;
+                    }
+                }
+                if (changes > 0) {
+                    scheduleRetrain();
+                }
+                if (!key.reset()) {
+                    logger.warn("Training set directory is gone, no longer watching it");
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    /**
+     * Announces that a file will be moved into the training directory with
+     * images the model already holds, so its arrival does not retrain.
+     * @param fileName the name of the file in the training directory.
+     */
+    public synchronized void expect(String fileName) {
+        Path path = new File(fileName).toPath();
+        Integer count = expected.get(path);
+        expected.put(path, count == null ? 1 : count + 1);
+    }
+
+    /**
+     * @return whether the change to a file is none the model must be trained for,
+     *         which uses up one announcement of the file.
+     */
+    private synchronized boolean isExpected(Object context) {
+        if (!(context instanceof Path)) {
+            // events were lost, so anything may have changed
+            return false;
+        }
+        Path path = (Path) context;
+        if (path.toString().startsWith(".")) {
+            return true;
+        }
+        Integer count = expected.remove(path);
+        if (count == null) {
+            return false;
+        }
+        if (count > 1) {
+            expected.put(path, count - 1);
+        }
+        return true;
+    }
+
+    private synchronized void scheduleRetrain() {
+        if (pendingRetrain != null) {
+            // a retrain already running is not interrupted, the next one follows it
+            pendingRetrain.cancel(false);
+        }
+        pendingRetrain = trainer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                retrain();
+            }
+        }, debounceMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void retrain() {
+        long start = System.nanoTime();
+        try {
+            recogniser.retrain();
+            logger.info("Training set changed, trained model version " + recogniser.getModelVersion() + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + "ms");
+        } catch (RuntimeException e) {
+            logger.error("Training again failed, keeping model version " + recogniser.getModelVersion(), e);
+        }
+    }
+
+    public void close() throws IOException {
+        watchService.close();
+        trainer.shutdownNow();
+    }
+}